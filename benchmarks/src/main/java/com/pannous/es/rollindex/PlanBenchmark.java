@@ -0,0 +1,101 @@
+package com.pannous.es.rollindex;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.joda.time.format.DateTimeFormatter;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.RestController;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the planning of a roll from the metadata, without any request: the alias map of the
+ * metadata is turned into the sorted family, the plan and the alias actions. Run e.g. with
+ *
+ * java -jar benchmarks/target/benchmarks.jar PlanBenchmark -p indices=5000 -p prefixes=1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlanBenchmark {
+
+    // the indices per prefix
+    @Param({"100", "1000"})
+    public int indices;
+    @Param({"1", "100"})
+    public int prefixes;
+    @Param({SyntheticFamilies.TIMESTAMP, SyntheticFamilies.SEQUENCE, SyntheticFamilies.UNPARSEABLE})
+    public String naming;
+
+    private RollAction action;
+    private MetaData metaData;
+    private List<String> prefixList;
+    private RollRequest request;
+    private RollRequest batchRequest;
+    private DateTimeFormatter formatter;
+    private RollFamily family;
+    private String newIndex;
+
+    @Setup public void setup() {
+        Settings settings = ImmutableSettings.settingsBuilder().build();
+        action = new RollAction(settings, new StubClient(null), new RestController(settings));
+        formatter = action.createFormatter();
+        prefixList = SyntheticFamilies.prefixes(prefixes);
+        metaData = SyntheticFamilies.metaData(prefixList, indices, 10, naming, formatter);
+        request = new RollRequest(prefixList.get(0), indices / 2, 10).indexNaming(
+                SyntheticFamilies.SEQUENCE.equals(naming) ? naming : "timestamp");
+        batchRequest = new RollRequest("logs*", indices / 2, 10).indexNaming(request.indexNaming());
+        family = RollFamily.create(metaData, prefixList.get(0));
+        newIndex = SyntheticFamilies.indexName(prefixList.get(0), indices, naming, formatter);
+    }
+
+    /**
+     * The families are created from the alias map for every roll if the registry is not ready.
+     */
+    @Benchmark public RollFamily family() {
+        return RollFamily.create(metaData, prefixList.get(0));
+    }
+
+    @Benchmark public IndicesAliasesRequest plan() {
+        return action.plan(family, request, formatter, newIndex).addTo(new IndicesAliasesRequest());
+    }
+
+    @Benchmark public IndicesAliasesRequest familyAndPlan() {
+        RollFamily created = RollFamily.create(metaData, prefixList.get(0));
+        return action.plan(created, request, formatter, newIndex).addTo(new IndicesAliasesRequest());
+    }
+
+    /**
+     * Resolves the wildcard to all prefixes and plans them into one alias request like a batch roll.
+     */
+    @Benchmark public IndicesAliasesRequest batch() {
+        IndicesAliasesRequest aliasesRequest = new IndicesAliasesRequest();
+        List<RollPlan> plans = new ArrayList<RollPlan>(prefixes);
+        for (String prefix : RollAction.resolvePrefixes(prefixList, batchRequest.indexPrefixes())) {
+            RollFamily created = RollFamily.create(metaData, prefix);
+            plans.add(action.plan(created, batchRequest, formatter,
+                    SyntheticFamilies.indexName(prefix, indices, naming, formatter)));
+        }
+        for (RollPlan plan : plans) {
+            plan.addTo(aliasesRequest);
+        }
+        return aliasesRequest;
+    }
+}
@@ -0,0 +1,110 @@
+package com.pannous.es.rollindex;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.admin.cluster.state.ClusterStateAction;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesAction;
+import org.elasticsearch.action.admin.indices.close.CloseIndexAction;
+import org.elasticsearch.action.admin.indices.create.CreateIndexAction;
+import org.elasticsearch.action.admin.indices.delete.DeleteIndexAction;
+import org.elasticsearch.action.bulk.BulkAction;
+import org.elasticsearch.action.get.MultiGetAction;
+import org.elasticsearch.action.support.PlainActionFuture;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.RestController;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Runs whole rolls against a client which answers immediately and counts the requests of every
+ * roll. Every iteration is a single roll, so the secondary results are the round trips per roll,
+ * including the requests of the sweeper which retires the indices in the background:
+ *
+ * java -jar benchmarks/target/benchmarks.jar RoundTripBenchmark -p prefixes=100
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 20, batchSize = 1)
+@Measurement(iterations = 20, batchSize = 1)
+@Fork(1)
+public class RoundTripBenchmark {
+
+    @Param({"100", "1000"})
+    public int indices;
+    @Param({"1", "100"})
+    public int prefixes;
+    @Param({SyntheticFamilies.TIMESTAMP, SyntheticFamilies.UNPARSEABLE})
+    public String naming;
+
+    private StubClient client;
+    private RollAction action;
+    private RollRequest request;
+
+    /**
+     * The requests of one roll per action.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class RoundTrips {
+
+        public long clusterState;
+        public long journalRead;
+        public long journalWrite;
+        public long create;
+        public long aliases;
+        public long retire;
+        public long total;
+
+        @Setup(Level.Iteration) public void reset() {
+            clusterState = journalRead = journalWrite = create = aliases = retire = total = 0;
+        }
+
+        void add(StubClient client) {
+            clusterState += client.requests(ClusterStateAction.NAME);
+            journalRead += client.requests(MultiGetAction.NAME);
+            journalWrite += client.requests(BulkAction.NAME);
+            create += client.requests(CreateIndexAction.NAME);
+            aliases += client.requests(IndicesAliasesAction.NAME);
+            retire += client.requests(DeleteIndexAction.NAME) + client.requests(CloseIndexAction.NAME);
+            for (Map.Entry<String, ?> e : client.requests().entrySet()) {
+                total += ((Number) e.getValue()).longValue();
+            }
+        }
+    }
+
+    @Setup public void setup() {
+        Settings settings = ImmutableSettings.settingsBuilder().build();
+        List<String> prefixList = SyntheticFamilies.prefixes(prefixes);
+        client = new StubClient(null);
+        action = new RollAction(settings, client, new RestController(settings));
+        client.state(SyntheticFamilies.clusterState(SyntheticFamilies.metaData(prefixList, indices, 10, naming,
+                action.createFormatter())));
+        // a batch roll of all prefixes, with a single prefix it is a plain roll
+        request = new RollRequest(prefixes == 1 ? prefixList.get(0) : "logs*", indices / 2, 10).closeAfterRoll(false).
+                deleteAfterRoll(true);
+    }
+
+    @Benchmark public Map<String, Object> roll(RoundTrips roundTrips) {
+        client.reset();
+        PlainActionFuture<Map<String, Object>> future = PlainActionFuture.newFuture();
+        action.rollIndex(request, future);
+        Map<String, Object> result = future.actionGet();
+        roundTrips.add(client);
+        return result;
+    }
+}
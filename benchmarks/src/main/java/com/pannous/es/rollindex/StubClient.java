@@ -0,0 +1,241 @@
+package com.pannous.es.rollindex;
+
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionFuture;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.GenericAction;
+import org.elasticsearch.action.admin.cluster.ClusterAction;
+import org.elasticsearch.action.admin.cluster.state.ClusterStateAction;
+import org.elasticsearch.action.admin.cluster.state.ClusterStateRequest;
+import org.elasticsearch.action.admin.cluster.state.ClusterStateResponse;
+import org.elasticsearch.action.admin.indices.IndicesAction;
+import org.elasticsearch.action.bulk.BulkAction;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.get.MultiGetAction;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.support.PlainActionFuture;
+import org.elasticsearch.client.AdminClient;
+import org.elasticsearch.client.ClusterAdminClient;
+import org.elasticsearch.client.IndicesAdminClient;
+import org.elasticsearch.client.support.AbstractClient;
+import org.elasticsearch.client.support.AbstractClusterAdminClient;
+import org.elasticsearch.client.support.AbstractIndicesAdminClient;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.hppc.cursors.ObjectCursor;
+import org.elasticsearch.common.regex.Regex;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * A client which answers every request immediately on the calling thread and counts the
+ * requests per action. The cluster state is the specified one and the journal index does not
+ * exist, every other request succeeds with an empty response. Nothing is changed by the
+ * requests, so every roll sees the same families.
+ */
+public class StubClient extends AbstractClient {
+
+    private final Settings settings = ImmutableSettings.settingsBuilder().build();
+    private ClusterState state;
+    private final ConcurrentMap<String, AtomicLong> requests = new ConcurrentHashMap<String, AtomicLong>();
+    private final AdminClient admin = new AdminClient() {
+        @Override public ClusterAdminClient cluster() {
+            return cluster;
+        }
+
+        @Override public IndicesAdminClient indices() {
+            return indices;
+        }
+    };
+    private final ClusterAdminClient cluster = new AbstractClusterAdminClient() {
+        @Override public ThreadPool threadPool() {
+            return null;
+        }
+
+        @Override public <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>> ActionFuture<Response> execute(
+                ClusterAction<Request, Response, RequestBuilder> action, Request request) {
+            return future(action, request);
+        }
+
+        @Override public <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>> void execute(
+                ClusterAction<Request, Response, RequestBuilder> action, Request request, ActionListener<Response> listener) {
+            respond(action, request, listener);
+        }
+
+        @Override public <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>> RequestBuilder prepareExecute(
+                ClusterAction<Request, Response, RequestBuilder> action) {
+            return action.newRequestBuilder(this);
+        }
+    };
+    private final IndicesAdminClient indices = new AbstractIndicesAdminClient() {
+        @Override public ThreadPool threadPool() {
+            return null;
+        }
+
+        @Override public <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>> ActionFuture<Response> execute(
+                IndicesAction<Request, Response, RequestBuilder> action, Request request) {
+            return future(action, request);
+        }
+
+        @Override public <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>> void execute(
+                IndicesAction<Request, Response, RequestBuilder> action, Request request, ActionListener<Response> listener) {
+            respond(action, request, listener);
+        }
+
+        @Override public <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>> RequestBuilder prepareExecute(
+                IndicesAction<Request, Response, RequestBuilder> action) {
+            return action.newRequestBuilder(this);
+        }
+    };
+
+    public StubClient(ClusterState state) {
+        this.state = state;
+    }
+
+    public StubClient state(ClusterState state) {
+        this.state = state;
+        return this;
+    }
+
+    /**
+     * @return the number of requests per action name since the last reset
+     */
+    public Map<String, AtomicLong> requests() {
+        return requests;
+    }
+
+    public long requests(String actionName) {
+        AtomicLong count = requests.get(actionName);
+        return count == null ? 0 : count.get();
+    }
+
+    public void reset() {
+        requests.clear();
+    }
+
+    @Override public Settings settings() {
+        return settings;
+    }
+
+    @Override public ThreadPool threadPool() {
+        return null;
+    }
+
+    @Override public void close() {
+    }
+
+    @Override public AdminClient admin() {
+        return admin;
+    }
+
+    @Override public <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>> ActionFuture<Response> execute(
+            Action<Request, Response, RequestBuilder> action, Request request) {
+        return future(action, request);
+    }
+
+    @Override public <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>> void execute(
+            Action<Request, Response, RequestBuilder> action, Request request, ActionListener<Response> listener) {
+        respond(action, request, listener);
+    }
+
+    @Override public <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>> RequestBuilder prepareExecute(
+            Action<Request, Response, RequestBuilder> action) {
+        return action.newRequestBuilder(this);
+    }
+
+    <Request extends ActionRequest, Response extends ActionResponse> ActionFuture<Response> future(
+            GenericAction<Request, Response> action, Request request) {
+        PlainActionFuture<Response> future = PlainActionFuture.newFuture();
+        respond(action, request, future);
+        return future;
+    }
+
+    @SuppressWarnings("unchecked")
+    <Request extends ActionRequest, Response extends ActionResponse> void respond(GenericAction<Request, Response> action,
+            Request request, ActionListener<Response> listener) {
+        count(action.name());
+        Response response;
+        try {
+            if (ClusterStateAction.NAME.equals(action.name()))
+                response = (Response) clusterState((ClusterStateRequest) request);
+            else if (MultiGetAction.NAME.equals(action.name()))
+                response = (Response) missingJournal((MultiGetRequest) request);
+            else if (BulkAction.NAME.equals(action.name()))
+                response = (Response) indexed((BulkRequest) request);
+            else
+                response = action.newResponse();
+        } catch (Exception ex) {
+            listener.onFailure(ex);
+            return;
+        }
+        listener.onResponse(response);
+    }
+
+    void count(String actionName) {
+        AtomicLong count = requests.get(actionName);
+        if (count == null) {
+            requests.putIfAbsent(actionName, new AtomicLong());
+            count = requests.get(actionName);
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * Like the master only the indices with one of the requested aliases are returned.
+     */
+    ClusterStateResponse clusterState(ClusterStateRequest request) throws Exception {
+        String[] patterns = request.indices();
+        MetaData.Builder metaData = MetaData.builder();
+        for (ObjectCursor<IndexMetaData> cursor : state.metaData().indices().values()) {
+            for (ObjectCursor<String> alias : cursor.value.aliases().keys()) {
+                if (Regex.simpleMatch(patterns, alias.value)) {
+                    metaData.put(cursor.value, false);
+                    break;
+                }
+            }
+        }
+        Constructor<ClusterStateResponse> constructor = ClusterStateResponse.class.getDeclaredConstructor(
+                ClusterName.class, ClusterState.class);
+        constructor.setAccessible(true);
+        return constructor.newInstance(ClusterName.DEFAULT, ClusterState.builder(state).metaData(metaData).build());
+    }
+
+    MultiGetResponse missingJournal(MultiGetRequest request) {
+        List<MultiGetItemResponse> responses = new ArrayList<MultiGetItemResponse>();
+        for (MultiGetRequest.Item item : request) {
+            responses.add(new MultiGetItemResponse(null, new MultiGetResponse.Failure(item.index(), item.type(),
+                    item.id(), "IndexMissingException[[" + item.index() + "] missing]")));
+        }
+        return new MultiGetResponse(responses.toArray(new MultiGetItemResponse[responses.size()]));
+    }
+
+    BulkResponse indexed(BulkRequest request) {
+        BulkItemResponse[] items = new BulkItemResponse[request.requests().size()];
+        for (int i = 0; i < items.length; i++) {
+            IndexRequest indexRequest = (IndexRequest) request.requests().get(i);
+            items[i] = new BulkItemResponse(i, "index", new IndexResponse(indexRequest.index(), indexRequest.type(),
+                    indexRequest.id(), 1, true));
+        }
+        return new BulkResponse(items, 0);
+    }
+}
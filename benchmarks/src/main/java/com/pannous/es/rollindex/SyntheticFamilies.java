@@ -0,0 +1,66 @@
+package com.pannous.es.rollindex;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.AliasMetaData;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.joda.time.format.DateTimeFormatter;
+import org.elasticsearch.common.settings.ImmutableSettings;
+
+/**
+ * Builds the metadata of index families like a cluster which rolled them for a long time: all
+ * indices are in the roll alias, the newest searchIndices in the search alias and the newest one
+ * in the feed alias.
+ */
+public class SyntheticFamilies {
+
+    public static final String TIMESTAMP = "timestamp";
+    public static final String SEQUENCE = "sequence";
+    // names without time or generation, they are ordered by name only
+    public static final String UNPARSEABLE = "unparseable";
+    private static final long HOUR = 3600 * 1000L;
+    private static final long START = 1388534400000L;
+
+    public static List<String> prefixes(int count) {
+        List<String> prefixes = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            prefixes.add("logs" + i);
+        }
+        return prefixes;
+    }
+
+    public static MetaData metaData(List<String> prefixes, int indices, int searchIndices, String naming,
+            DateTimeFormatter formatter) {
+        MetaData.Builder builder = MetaData.builder();
+        for (String prefix : prefixes) {
+            for (int i = 0; i < indices; i++) {
+                IndexMetaData.Builder index = IndexMetaData.builder(indexName(prefix, i, naming, formatter)).
+                        settings(ImmutableSettings.settingsBuilder().
+                                put(IndexMetaData.SETTING_NUMBER_OF_SHARDS, 2).
+                                put(IndexMetaData.SETTING_NUMBER_OF_REPLICAS, 1)).
+                        putAlias(AliasMetaData.builder(prefix + RollFamily.ROLL));
+                if (i >= indices - searchIndices)
+                    index.putAlias(AliasMetaData.builder(prefix + RollFamily.SEARCH));
+                if (i == indices - 1)
+                    index.putAlias(AliasMetaData.builder(prefix + RollFamily.FEED));
+                builder.put(index);
+            }
+        }
+        return builder.build();
+    }
+
+    public static ClusterState clusterState(MetaData metaData) {
+        return ClusterState.builder().metaData(metaData).build();
+    }
+
+    static String indexName(String prefix, int i, String naming, DateTimeFormatter formatter) {
+        if (SEQUENCE.equals(naming))
+            return prefix + "_" + RollFamily.formatGeneration(i + 1);
+        if (UNPARSEABLE.equals(naming))
+            return prefix + "_import" + i;
+        return prefix + "_" + formatter.print(START + i * HOUR);
+    }
+}
@@ -21,7 +21,7 @@ content='{
     "mappings" : '$mappings'
 }'
 echo $content
-curl -XPUT "$host/_rollindex?indexPrefix=$indexprefix&searchIndices=$roll&rollIndices=$roll" -d "$content"
+curl -XPUT "$host/_rollindex?indexPrefix=$indexprefix&searchIndices=$roll&rollIndices=$roll&useTemplate=true" -d "$content"
 
 
 
@@ -0,0 +1,185 @@
+package com.pannous.es.rollindex;
+
+import static org.elasticsearch.common.xcontent.support.XContentMapValues.nodeBooleanValue;
+import static org.elasticsearch.common.xcontent.support.XContentMapValues.nodeIntegerValue;
+import static org.elasticsearch.common.xcontent.support.XContentMapValues.nodeStringValue;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The steps applied to an index after it left the feed alias. Nothing is written into it
+ * anymore, so it does not need to refresh and can be merged down to a few segments. Later it
+ * can be moved from the hot to the warm nodes.
+ */
+public class Demotion {
+
+    private boolean disableRefresh = true;
+    // values smaller than 1 skip the merge
+    private int maxNumSegments = 1;
+    // -1 keeps the replicas
+    private int replicas = -1;
+    // ignored with idFilter, which keeps the index writable for _rollupdate
+    private boolean readOnly = true;
+    // builds the filter of the document ids, see RollIdFilters
+    private boolean idFilter;
+    // moves the index to the nodes with this attribute, e.g. box_type:warm
+    private String requireAttribute;
+    // the attribute of the tier the index leaves, its requirement is cleared with the move
+    private String releaseAttribute;
+    // further index settings, e.g. the search profile, they win over disableRefresh and replicas
+    private Map<String, String> settings = new LinkedHashMap<String, String>();
+
+    /**
+     * @return a demotion which only moves the index to the nodes with the specified attribute
+     */
+    public static Demotion relocation(String requireAttribute) {
+        return new Demotion().disableRefresh(false).maxNumSegments(0).readOnly(false).
+                requireAttribute(requireAttribute);
+    }
+
+    /**
+     * @return a demotion which only applies the specified settings
+     */
+    public static Demotion settingsOnly(Map<String, String> settings) {
+        return new Demotion().disableRefresh(false).maxNumSegments(0).readOnly(false).settings(settings);
+    }
+
+    public boolean disableRefresh() {
+        return disableRefresh;
+    }
+
+    public Demotion disableRefresh(boolean disableRefresh) {
+        this.disableRefresh = disableRefresh;
+        return this;
+    }
+
+    public int maxNumSegments() {
+        return maxNumSegments;
+    }
+
+    public Demotion maxNumSegments(int maxNumSegments) {
+        this.maxNumSegments = maxNumSegments;
+        return this;
+    }
+
+    public int replicas() {
+        return replicas;
+    }
+
+    public Demotion replicas(int replicas) {
+        this.replicas = replicas;
+        return this;
+    }
+
+    public boolean readOnly() {
+        return readOnly;
+    }
+
+    public Demotion readOnly(boolean readOnly) {
+        this.readOnly = readOnly;
+        return this;
+    }
+
+    public boolean idFilter() {
+        return idFilter;
+    }
+
+    public Demotion idFilter(boolean idFilter) {
+        this.idFilter = idFilter;
+        return this;
+    }
+
+    public String requireAttribute() {
+        return requireAttribute;
+    }
+
+    public Demotion requireAttribute(String requireAttribute) {
+        this.requireAttribute = requireAttribute;
+        return this;
+    }
+
+    public String releaseAttribute() {
+        return releaseAttribute;
+    }
+
+    public Demotion releaseAttribute(String releaseAttribute) {
+        this.releaseAttribute = releaseAttribute;
+        return this;
+    }
+
+    public Map<String, String> settings() {
+        return settings;
+    }
+
+    public Demotion settings(Map<String, String> settings) {
+        this.settings.putAll(settings);
+        return this;
+    }
+
+    public Demotion copy() {
+        return parse(toMap());
+    }
+
+    /**
+     * @param attribute the node attribute as name:value
+     * @return the setting key and the value which restrict the allocation to these nodes
+     */
+    public static String[] splitAttribute(String attribute) {
+        int pos = attribute.indexOf(':');
+        if (pos <= 0 || pos == attribute.length() - 1)
+            throw new IllegalArgumentException("node attribute must be specified as name:value but was " + attribute);
+        return new String[]{"index.routing.allocation.require." + attribute.substring(0, pos),
+            attribute.substring(pos + 1)};
+    }
+
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("disableRefresh", disableRefresh);
+        map.put("maxNumSegments", maxNumSegments);
+        map.put("replicas", replicas);
+        map.put("readOnly", readOnly);
+        map.put("idFilter", idFilter);
+        if (requireAttribute != null)
+            map.put("requireAttribute", requireAttribute);
+        if (releaseAttribute != null)
+            map.put("releaseAttribute", releaseAttribute);
+        if (!settings.isEmpty())
+            map.put("settings", new LinkedHashMap<String, String>(settings));
+        return map;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static Demotion parse(Map<String, Object> source) {
+        Demotion demotion = new Demotion();
+        for (Map.Entry<String, Object> e : source.entrySet()) {
+            String key = e.getKey();
+            Object value = e.getValue();
+            if ("disableRefresh".equals(key))
+                demotion.disableRefresh(nodeBooleanValue(value));
+            else if ("maxNumSegments".equals(key))
+                demotion.maxNumSegments(nodeIntegerValue(value));
+            else if ("replicas".equals(key))
+                demotion.replicas(nodeIntegerValue(value));
+            else if ("readOnly".equals(key))
+                demotion.readOnly(nodeBooleanValue(value));
+            else if ("idFilter".equals(key))
+                demotion.idFilter(nodeBooleanValue(value));
+            else if ("requireAttribute".equals(key))
+                demotion.requireAttribute(nodeStringValue(value, null));
+            else if ("releaseAttribute".equals(key))
+                demotion.releaseAttribute(nodeStringValue(value, null));
+            else if ("settings".equals(key))
+                for (Map.Entry<String, Object> setting : ((Map<String, Object>) value).entrySet()) {
+                    demotion.settings.put(setting.getKey(), nodeStringValue(setting.getValue(), null));
+                }
+            else
+                throw new IllegalArgumentException("unknown demotion field " + key);
+        }
+        return demotion;
+    }
+
+    @Override public String toString() {
+        return toMap().toString();
+    }
+}
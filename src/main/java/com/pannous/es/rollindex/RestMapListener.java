@@ -0,0 +1,53 @@
+package com.pannous.es.rollindex;
+
+import static org.elasticsearch.rest.RestStatus.OK;
+import static org.elasticsearch.rest.action.support.RestXContentBuilder.restContentBuilder;
+
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.XContentRestResponse;
+import org.elasticsearch.rest.XContentThrowableRestResponse;
+
+/**
+ * Sends the resulting map as JSON object or the failure to the REST channel.
+ */
+class RestMapListener implements ActionListener<Map<String, Object>> {
+
+    private static final ESLogger logger = Loggers.getLogger(RestMapListener.class);
+    private final RestRequest request;
+    private final RestChannel channel;
+
+    RestMapListener(RestRequest request, RestChannel channel) {
+        this.request = request;
+        this.channel = channel;
+    }
+
+    @Override public void onResponse(Map<String, Object> map) {
+        try {
+            XContentBuilder builder = restContentBuilder(request);
+            builder.startObject();
+            for (Entry<String, Object> e : map.entrySet()) {
+                builder.field(e.getKey(), e.getValue());
+            }
+            builder.endObject();
+            channel.sendResponse(new XContentRestResponse(request, OK, builder));
+        } catch (Throwable ex) {
+            onFailure(ex);
+        }
+    }
+
+    @Override public void onFailure(Throwable ex) {
+        try {
+            channel.sendResponse(new XContentThrowableRestResponse(request, ex));
+        } catch (Exception ex2) {
+            logger.error("failed to send failure response", ex2);
+        }
+    }
+}
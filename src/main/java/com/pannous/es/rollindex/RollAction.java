@@ -3,42 +3,74 @@ package com.pannous.es.rollindex;
 import static org.elasticsearch.rest.RestRequest.Method.POST;
 import static org.elasticsearch.rest.RestRequest.Method.PUT;
 import static org.elasticsearch.rest.RestStatus.BAD_REQUEST;
-import static org.elasticsearch.rest.RestStatus.OK;
 import static org.elasticsearch.rest.action.support.RestXContentBuilder.restContentBuilder;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
 
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthRequest;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthStatus;
 import org.elasticsearch.action.admin.cluster.state.ClusterStateRequest;
+import org.elasticsearch.action.admin.cluster.state.ClusterStateResponse;
 import org.elasticsearch.action.admin.indices.alias.Alias;
 import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest;
 import org.elasticsearch.action.admin.indices.alias.IndicesAliasesResponse;
 import org.elasticsearch.action.admin.indices.alias.get.GetAliasesRequest;
 import org.elasticsearch.action.admin.indices.close.CloseIndexRequest;
+import org.elasticsearch.action.admin.indices.close.CloseIndexResponse;
 import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
+import org.elasticsearch.action.admin.indices.create.CreateIndexResponse;
 import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
+import org.elasticsearch.action.admin.indices.delete.DeleteIndexResponse;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequest;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsResponse;
+import org.elasticsearch.action.admin.indices.stats.IndexStats;
+import org.elasticsearch.action.admin.indices.stats.IndicesStatsRequest;
+import org.elasticsearch.action.admin.indices.stats.IndicesStatsResponse;
+import org.elasticsearch.action.support.PlainActionFuture;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.common.hppc.cursors.ObjectCursor;
 import org.elasticsearch.cluster.metadata.AliasMetaData;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
 import org.elasticsearch.common.collect.ImmutableOpenMap;
 import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.BytesStreamInput;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
 import org.elasticsearch.common.joda.time.format.DateTimeFormat;
 import org.elasticsearch.common.joda.time.format.DateTimeFormatter;
+import org.elasticsearch.common.regex.Regex;
 import org.elasticsearch.common.settings.ImmutableSettings;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.util.concurrent.CountDown;
 import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
 import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.elasticsearch.indices.IndexAlreadyExistsException;
+import org.elasticsearch.indices.IndexMissingException;
 import org.elasticsearch.rest.BaseRestHandler;
 import org.elasticsearch.rest.RestChannel;
 import org.elasticsearch.rest.RestController;
 import org.elasticsearch.rest.RestRequest;
 import org.elasticsearch.rest.XContentRestResponse;
-import org.elasticsearch.rest.XContentThrowableRestResponse;
 
 /**
  * @see issue 1500 https://github.com/elasticsearch/elasticsearch/issues/1500
@@ -48,13 +80,42 @@ import org.elasticsearch.rest.XContentThrowableRestResponse;
  */
 public class RollAction extends BaseRestHandler {
 
-    private final String feedEnd = "feed";
-    private final String searchEnd = "search";
-    // helper alias to fetch all indices which are available to roll
-    private final String rollEnd = "roll";
+    // null if the action is used outside of a node, then the metadata is read for every roll
+    private final RollRegistry registry;
+    private final RollDemoter demoter;
+    private final RollSweeper sweeper;
+    private final RollJournal journal;
+    private final RollTemplates templates;
+    private final RollStats stats;
+    // the callers waiting for the running roll of a prefix with the same parameters, see coalesceKey
+    private final Map<String, List<ActionListener<Map<String, Object>>>> inFlight =
+            new HashMap<String, List<ActionListener<Map<String, Object>>>>();
 
-    @Inject public RollAction(Settings settings, Client client, RestController controller) {
+    public RollAction(Settings settings, Client client, RestController controller) {
+        this(settings, client, controller, null, new RollDemoter(settings, client));
+    }
+
+    public RollAction(Settings settings, Client client, RestController controller, RollRegistry registry,
+            RollDemoter demoter) {
+        this(settings, client, controller, registry, demoter, new RollSweeper(settings, client, null,
+                demoter.idFilters()));
+    }
+
+    public RollAction(Settings settings, Client client, RestController controller, RollRegistry registry,
+            RollDemoter demoter, RollSweeper sweeper) {
+        this(settings, client, controller, registry, demoter, sweeper, new RollJournal(settings, client),
+                new RollTemplates(settings, client), new RollStats(settings));
+    }
+
+    @Inject public RollAction(Settings settings, Client client, RestController controller, RollRegistry registry,
+            RollDemoter demoter, RollSweeper sweeper, RollJournal journal, RollTemplates templates, RollStats stats) {
         super(settings, client);
+        this.registry = registry;
+        this.demoter = demoter;
+        this.sweeper = sweeper;
+        this.journal = journal;
+        this.templates = templates;
+        this.stats = stats;
 
         // Define REST endpoints to do a roll further
         controller.registerHandler(PUT, "/_rollindex", this);
@@ -64,57 +125,135 @@ public class RollAction extends BaseRestHandler {
     @Override public void handleRequest(RestRequest request, RestChannel channel) {
         logger.info("RollAction.handleRequest [{}]", request.params());
         try {
-            XContentBuilder builder = restContentBuilder(request);
             String indexPrefix = request.param("indexPrefix", "");
             if (indexPrefix.isEmpty()) {
+                XContentBuilder builder = restContentBuilder(request);
                 builder.startObject();
                 builder.field("error", "indexPrefix missing");
                 builder.endObject();
                 channel.sendResponse(new XContentRestResponse(request, BAD_REQUEST, builder));
                 return;
             }
-            int searchIndices = request.paramAsInt("searchIndices", 1);
-            int rollIndices = request.paramAsInt("rollIndices", 1);
-            boolean deleteAfterRoll = request.paramAsBoolean("deleteAfterRoll", false);
-            boolean closeAfterRoll = request.paramAsBoolean("closeAfterRoll", true);
-            if (deleteAfterRoll && closeAfterRoll) {
-                if (request.hasParam("closeAfterRoll"))
-                    throw new IllegalArgumentException("Cannot delete and close an index at the same time");
-                else
-                    // if no param was specified use false as default:
-                    closeAfterRoll = false;
-            }
 
-            int newIndexShards = request.paramAsInt("newIndexShards", 2);
-            int newIndexReplicas = request.paramAsInt("newIndexReplicas", 1);
-            String newIndexRefresh = request.param("newIndexRefresh", "10s");
-            String indexTimestampPattern = request.param("indexTimestampPattern");
+            rollIndex(parseRequest(request), new RestMapListener(request, channel));
+        } catch (Throwable ex) {
+            new RestMapListener(request, channel).onFailure(ex);
+        }
+    }
+
+    RollRequest parseRequest(RestRequest request) throws IOException {
+        boolean deleteAfterRoll = request.paramAsBoolean("deleteAfterRoll", false);
+        boolean closeAfterRoll = request.paramAsBoolean("closeAfterRoll", true);
+        if (deleteAfterRoll && closeAfterRoll && !request.hasParam("closeAfterRoll"))
+            // if no param was specified use false as default:
+            closeAfterRoll = false;
 
-            CreateIndexRequest req;
+        CreateIndexRequest req = new CreateIndexRequest("");
+        Settings indexSettings = ImmutableSettings.EMPTY;
+        String template = null;
+        if (request.paramAsBoolean("useTemplate", false)) {
+            // the body is only parsed by the master if the template changed
             if (request.hasContent())
-                req = new CreateIndexRequest("").source(request.content().toUtf8());
+                template = request.content().toUtf8();
             else
-                req = new CreateIndexRequest("").settings(toSettings(createIndexSettings(
-                        newIndexShards, newIndexReplicas, newIndexRefresh).string()));
+                template = "{\"settings\":" + createIndexSettings(request).string() + "}";
+        } else if (request.hasContent()) {
+            Map<String, Object> body = XContentHelper.convertToMap(request.content(), false).v2();
+            indexSettings = removeSettings(body);
+            req.source(body);
+        } else
+            indexSettings = toSettings(createIndexSettings(request).string());
 
-            Map<String, Object> map = rollIndex(indexPrefix, rollIndices, searchIndices,
-                    deleteAfterRoll, closeAfterRoll, indexTimestampPattern, req);
+        return new RollRequest(request.param("indexPrefix"), request.paramAsInt("rollIndices", 1),
+                request.paramAsInt("searchIndices", 1)).
+                deleteAfterRoll(deleteAfterRoll).
+                closeAfterRoll(closeAfterRoll).
+                indexTimestampPattern(request.param("indexTimestampPattern")).
+                indexNaming(request.param("indexNaming", "timestamp")).
+                dryRun(request.paramAsBoolean("dryRun", false)).
+                maxDocs(request.paramAsLong("maxDocs", -1)).
+                maxPrimaryStoreSize(request.paramAsSize("maxPrimaryStoreSize", null)).
+                maxAge(request.paramAsTime("maxAge", null)).
+                standby(request.paramAsBoolean("standby", false)).
+                standbyHealth(ClusterHealthStatus.valueOf(request.param("standbyHealth", "yellow").
+                        toUpperCase(Locale.ROOT))).
+                demotion(parseDemotion(request)).
+                shardSizing(parseShardSizing(request)).
+                profiles(parseProfiles(request)).
+                hotNodeAttribute(request.param("hotNodeAttribute")).
+                warmNodeAttribute(request.param("warmNodeAttribute")).
+                hotIndices(request.paramAsInt("hotIndices", -1)).
+                indexSettings(indexSettings).
+                createIndexRequest(req).
+                template(template);
+    }
 
-            builder.startObject();
-            for (Entry<String, Object> e : map.entrySet()) {
-                builder.field(e.getKey(), e.getValue());
-            }
-            builder.endObject();
-            channel.sendResponse(new XContentRestResponse(request, OK, builder));
+    private static final Set<String> BODY_SECTIONS = new HashSet<String>(
+            Arrays.asList("mappings", "aliases", "warmers"));
+
+    /**
+     * Removes the settings from the body of a create index request, like for the request a body
+     * without settings and without other sections consists only of settings.
+     */
+    @SuppressWarnings("unchecked")
+    static Settings removeSettings(Map<String, Object> body) throws IOException {
+        Object settings = body.remove("settings");
+        if (settings == null && Collections.disjoint(body.keySet(), BODY_SECTIONS)) {
+            settings = new HashMap<String, Object>(body);
+            body.clear();
+        }
+        if (!(settings instanceof Map))
+            return ImmutableSettings.EMPTY;
+        return ImmutableSettings.settingsBuilder().loadFromSource(
+                XContentFactory.jsonBuilder().map((Map<String, Object>) settings).string()).build();
+    }
+
+    /**
+     * @return the request for new indices from the parameters newIndexShards, newIndexReplicas
+     * and newIndexRefresh
+     */
+    CreateIndexRequest createIndexRequest(RestRequest request) {
+        try {
+            return new CreateIndexRequest("").settings(toSettings(createIndexSettings(request).string()));
         } catch (IOException ex) {
-            try {
-                channel.sendResponse(new XContentThrowableRestResponse(request, ex));
-            } catch (Exception ex2) {
-                logger.error("problem while rolling index", ex2);
-            }
+            throw new RuntimeException(ex);
         }
     }
 
+    XContentBuilder createIndexSettings(RestRequest request) {
+        return createIndexSettings(request.paramAsInt("newIndexShards", 2), request.paramAsInt("newIndexReplicas", 1),
+                request.param("newIndexRefresh", "10s"));
+    }
+
+    Demotion parseDemotion(RestRequest request) {
+        if (!request.paramAsBoolean("demote", false))
+            return null;
+        return new Demotion().
+                disableRefresh(request.paramAsBoolean("demoteDisableRefresh", true)).
+                maxNumSegments(request.paramAsInt("demoteMaxNumSegments", 1)).
+                replicas(request.paramAsInt("demoteReplicas", -1)).
+                readOnly(request.paramAsBoolean("demoteReadOnly", true)).
+                idFilter(request.paramAsBoolean("demoteIdFilter", false));
+    }
+
+    ShardSizing parseShardSizing(RestRequest request) {
+        ByteSizeValue target = request.paramAsSize("targetShardSize", null);
+        if (target == null)
+            return null;
+        return new ShardSizing(target).
+                indices(request.paramAsInt("sizingIndices", 3)).
+                minShards(request.paramAsInt("minShards", 1)).
+                maxShards(request.paramAsInt("maxShards", 10));
+    }
+
+    SettingsProfiles parseProfiles(RestRequest request) {
+        if (!request.hasParam("feedSettings") && !request.hasParam("searchSettings"))
+            return null;
+        return new SettingsProfiles().
+                feed(SettingsProfiles.parseSettings(request.param("feedSettings"))).
+                search(SettingsProfiles.parseSettings(request.param("searchSettings")));
+    }
+
     public DateTimeFormatter createFormatter() {
         return createFormatter(null);
     }
@@ -133,7 +272,7 @@ public class RollAction extends BaseRestHandler {
         try {
             return rollIndex(indexPrefix, maxRollIndices, maxSearchIndices, false, true, indexTimestampPattern,
                     new CreateIndexRequest("").settings(toSettings(createIndexSettings(2, 1, "10s").string())));
-        } catch (Exception ex) {
+        } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
     }
@@ -142,111 +281,1250 @@ public class RollAction extends BaseRestHandler {
         return ImmutableSettings.settingsBuilder().loadFromSource(str).build();
     }
 
-    // TODO make client calls async, see RestCreateIndexAction
     public Map<String, Object> rollIndex(String indexPrefix, int maxRollIndices,
             int maxSearchIndices, boolean deleteAfterRoll, boolean closeAfterRoll,
             String indexTimestampPattern, CreateIndexRequest request) {
-        String rollAlias = getRoll(indexPrefix);
-        DateTimeFormatter formatter = createFormatter(indexTimestampPattern);
-        if (maxRollIndices < 1 || maxSearchIndices < 1)
-            throw new RuntimeException("remaining indices, search indices and feeding indices must be at least 1");
-        if (maxSearchIndices > maxRollIndices)
-            throw new RuntimeException("rollIndices must be higher or equal to searchIndices");
+        return rollIndex(indexPrefix, maxRollIndices, maxSearchIndices, deleteAfterRoll, closeAfterRoll,
+                indexTimestampPattern, request, false);
+    }
 
-        // get old aliases
-        ImmutableOpenMap<String, AliasMetaData> allRollingAliases = getAliases(rollAlias);
+    /**
+     * @param dryRun if true nothing is changed and only the computed plan is returned
+     */
+    public Map<String, Object> rollIndex(String indexPrefix, int maxRollIndices,
+            int maxSearchIndices, boolean deleteAfterRoll, boolean closeAfterRoll,
+            String indexTimestampPattern, CreateIndexRequest request, boolean dryRun) {
+        return rollIndex(new RollRequest(indexPrefix, maxRollIndices, maxSearchIndices).
+                deleteAfterRoll(deleteAfterRoll).
+                closeAfterRoll(closeAfterRoll).
+                indexTimestampPattern(indexTimestampPattern).
+                createIndexRequest(request).
+                dryRun(dryRun));
+    }
 
-        // always create new index and append aliases
-        String searchAlias = getSearch(indexPrefix);
-        String feedAlias = getFeed(indexPrefix);
-        String newIndexName = indexPrefix + "_" + formatter.print(System.currentTimeMillis());
-        request.alias(new Alias(searchAlias));
-        request.alias(new Alias(rollAlias));
-        
-        client.admin().indices().create(request.index(newIndexName)).actionGet();
-
-        String deletedIndices = "";
-        String removedAlias = "";
-        String closedIndices = "";
-        String oldFeedIndexName = null;
-        if (allRollingAliases.isEmpty()) {
-            // do nothing for now
+    /**
+     * Synchronous variant of {@link #rollIndex(RollRequest, ActionListener)}. Never call this from
+     * a network thread.
+     */
+    public Map<String, Object> rollIndex(RollRequest request) {
+        PlainActionFuture<Map<String, Object>> future = PlainActionFuture.newFuture();
+        rollIndex(request, future);
+        return future.actionGet();
+    }
+
+    /**
+     * Creates a new index for the specified prefix and moves the aliases in one atomic step. The
+     * steps read state, plan, create, swap aliases and retire are chained via listeners so that
+     * no thread blocks while waiting for the master. A roll of a prefix which is already rolled
+     * with the same parameters by this node or by another node is not executed again, the caller
+     * gets the result of the running roll.
+     */
+    public void rollIndex(final RollRequest request, ActionListener<Map<String, Object>> callerListener) {
+        final DateTimeFormatter formatter;
+        try {
+            request.validate();
+            formatter = createFormatter(request.indexTimestampPattern());
+        } catch (Throwable ex) {
+            callerListener.onFailure(ex);
+            return;
+        }
+
+        if (request.isBatch()) {
+            rollBatch(request, formatter, callerListener);
+            return;
+        }
+
+        final ActionListener<Map<String, Object>> listener;
+        if (request.dryRun()) {
+            listener = callerListener;
         } else {
-            // latest indices comes first
-            TreeMap<Long, String> sortedIndices = new TreeMap<Long, String>(reverseSorter);
-            // Map<String, String> indexToConcrete = new HashMap<String, String>();
-            String[] concreteIndices = getConcreteIndices(allRollingAliases.keys().toArray(String.class));
-            Arrays.sort(concreteIndices);
-            logger.info("aliases:{}, indices:{}", allRollingAliases, Arrays.toString(concreteIndices));
-            // if we cannot parse the time from the index name we just treat them as old indices of time == 0
-            long timeFake = 0;
-            for (String index : concreteIndices) {
-                long timeLong = timeFake++;
-                int pos = index.indexOf("_");
-                if (pos >= 0) {
-                    String indexDateStr = index.substring(pos + 1);
-                    try {
-                        timeLong = formatter.parseMillis(indexDateStr);
-                    } catch (Exception ex) {
-                        logger.warn("index " + index + " is not in the format " + formatter + " error:" + ex.getMessage());
+            listener = coalesce(request, request.indexPrefix(), callerListener);
+            if (listener == null)
+                return;
+        }
+
+        if (!request.hasConditions()) {
+            readState(request, formatter, null, listener);
+            return;
+        }
+
+        // only the stats of the single feed index are necessary to decide
+        final String feedAlias = getFeed(request.indexPrefix());
+        client.admin().indices().stats(new IndicesStatsRequest().clear().docs(true).store(true).indices(feedAlias),
+                new ActionListener<IndicesStatsResponse>() {
+                    @Override public void onResponse(IndicesStatsResponse response) {
+                        try {
+                            if (response.getIndices().isEmpty()) {
+                                readState(request, formatter, "no feed index", listener);
+                                return;
+                            }
+                            IndexStats stats = response.getIndices().values().iterator().next();
+                            String condition = matchingCondition(request, formatter, stats);
+                            if (condition != null) {
+                                readState(request, formatter, condition, listener);
+                            } else {
+                                if (!request.dryRun())
+                                    RollAction.this.stats.skipped(request.indexPrefix());
+                                listener.onResponse(notRolled(stats, formatter));
+                            }
+                        } catch (Throwable t) {
+                            listener.onFailure(t);
+                        }
                     }
-                } else
-                    logger.warn("index " + index + " is not in the format " + formatter);
-
-                String old = sortedIndices.put(timeLong, index);
-                if (old != null)
-                    throw new IllegalStateException("Indices with the identical date are not supported! " + old + " vs. " + index);
-            }
-            int counter = 1;
-            Iterator<String> indexIter = sortedIndices.values().iterator();
-            while (indexIter.hasNext()) {
-                String currentIndexName = indexIter.next();
-                if (counter >= maxRollIndices) {
-                    if (deleteAfterRoll) {
-                        deleteIndex(currentIndexName);
-                        deletedIndices += currentIndexName + " ";
-                    } else {
-                        removeAlias(currentIndexName, feedAlias);
-                        removeAlias(currentIndexName, rollAlias);
-                        removeAlias(currentIndexName, searchAlias);
-
-                        if (closeAfterRoll) {
-                            closeIndex(currentIndexName);
-                            closedIndices += currentIndexName + " ";
-                        } else {
-                            addAlias(currentIndexName, indexPrefix + "_closed");
+
+                    @Override public void onFailure(Throwable t) {
+                        if (ExceptionsHelper.unwrapCause(t) instanceof IndexMissingException)
+                            readState(request, formatter, "no feed index", listener);
+                        else
+                            listener.onFailure(t);
+                    }
+                });
+    }
+
+    /**
+     * @return the prefix together with the parameters of the request, only rolls with the same key
+     * are coalesced
+     */
+    static String coalesceKey(RollRequest request, String indexPrefix) {
+        return indexPrefix + " " + request.parameters();
+    }
+
+    /**
+     * @return the listener for the roll of the specified prefix or null if the caller waits for
+     * the running roll
+     */
+    ActionListener<Map<String, Object>> coalesce(RollRequest request, String indexPrefix,
+            final ActionListener<Map<String, Object>> listener) {
+        final String key = coalesceKey(request, indexPrefix);
+        synchronized (inFlight) {
+            List<ActionListener<Map<String, Object>>> waiting = inFlight.get(key);
+            if (waiting != null) {
+                logger.info("roll of {} is running, waiting for its result", indexPrefix);
+                waiting.add(listener);
+                return null;
+            }
+            inFlight.put(key, new ArrayList<ActionListener<Map<String, Object>>>());
+        }
+        return new ActionListener<Map<String, Object>>() {
+            @Override public void onResponse(Map<String, Object> result) {
+                release(key, result, null);
+                listener.onResponse(result);
+            }
+
+            @Override public void onFailure(Throwable t) {
+                release(key, null, t);
+                listener.onFailure(t);
+            }
+        };
+    }
+
+    /**
+     * Claims the families of a batch which are not rolled right now with the same parameters and
+     * removes the other families, the results of their running rolls are added to the result.
+     *
+     * @return the listener for the roll of the remaining families
+     */
+    ActionListener<Map<String, Object>> coalesceBatch(final RollRequest request, Map<String, RollFamily> families,
+            final ActionListener<Map<String, Object>> listener) {
+        final Map<String, Object> combined = new TreeMap<String, Object>();
+        final List<String> claimed = new ArrayList<String>();
+        final CountDown countDown;
+        synchronized (inFlight) {
+            List<String> running = new ArrayList<String>();
+            for (String prefix : families.keySet()) {
+                if (inFlight.containsKey(coalesceKey(request, prefix)))
+                    running.add(prefix);
+                else
+                    claimed.add(prefix);
+            }
+            countDown = new CountDown(running.size() + 1);
+            for (final String prefix : running) {
+                logger.info("roll of {} is running, waiting for its result", prefix);
+                inFlight.get(coalesceKey(request, prefix)).add(new ActionListener<Map<String, Object>>() {
+                    @Override public void onResponse(Map<String, Object> result) {
+                        synchronized (combined) {
+                            combined.put(prefix, result);
                         }
-                        removedAlias += currentIndexName + " ";
-                        removedAlias += currentIndexName + " ";
+                        if (countDown.countDown())
+                            listener.onResponse(combined);
                     }
-                    // close/delete all the older indices
-                    continue;
+
+                    @Override public void onFailure(Throwable t) {
+                        if (countDown.fastForward())
+                            listener.onFailure(t);
+                    }
+                });
+            }
+            for (String prefix : claimed) {
+                inFlight.put(coalesceKey(request, prefix), new ArrayList<ActionListener<Map<String, Object>>>());
+            }
+        }
+        families.keySet().retainAll(claimed);
+        return new ActionListener<Map<String, Object>>() {
+            @SuppressWarnings("unchecked")
+            @Override public void onResponse(Map<String, Object> results) {
+                for (String prefix : claimed) {
+                    release(coalesceKey(request, prefix), (Map<String, Object>) results.get(prefix), null);
+                }
+                synchronized (combined) {
+                    combined.putAll(results);
+                }
+                if (countDown.countDown())
+                    listener.onResponse(combined);
+            }
+
+            @Override public void onFailure(Throwable t) {
+                for (String prefix : claimed) {
+                    release(coalesceKey(request, prefix), null, t);
+                }
+                if (countDown.fastForward())
+                    listener.onFailure(t);
+            }
+        };
+    }
+
+    /**
+     * Hands the result or the failure of a finished roll to the callers which waited for it.
+     */
+    void release(String key, Map<String, Object> result, Throwable t) {
+        List<ActionListener<Map<String, Object>>> waiting;
+        synchronized (inFlight) {
+            waiting = inFlight.remove(key);
+        }
+        for (ActionListener<Map<String, Object>> l : waiting) {
+            if (t != null) {
+                l.onFailure(t);
+                continue;
+            }
+            Map<String, Object> map = new HashMap<String, Object>(result);
+            map.put("coalesced", true);
+            l.onResponse(map);
+        }
+    }
+
+    String matchingCondition(RollRequest request, DateTimeFormatter formatter, IndexStats stats) {
+        return request.matchingCondition(stats.getPrimaries().getDocs().getCount(),
+                stats.getPrimaries().getStore().getSizeInBytes(), age(stats.getIndex(), formatter));
+    }
+
+    Map<String, Object> notRolled(IndexStats stats, DateTimeFormatter formatter) {
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("rolled", false);
+        map.put("feed", stats.getIndex());
+        map.put("docs", stats.getPrimaries().getDocs().getCount());
+        map.put("primaryStoreSize", stats.getPrimaries().getStore().getSizeInBytes());
+        map.put("age", age(stats.getIndex(), formatter));
+        return map;
+    }
+
+    long age(String index, DateTimeFormatter formatter) {
+        Long start = parseTimestamp(index, formatter);
+        return start == null ? -1 : System.currentTimeMillis() - start;
+    }
+
+    void readState(final RollRequest request, final DateTimeFormatter formatter, final String condition,
+            final ActionListener<Map<String, Object>> listener) {
+        final long started = System.nanoTime();
+        final ActionListener<Map<String, Object>> stateListener =
+                countFailure(request, Collections.singletonList(request.indexPrefix()), listener);
+        readFamilies(new String[]{request.indexPrefix()}, new StepListener<Map<String, RollFamily>>(stateListener) {
+            @Override void run(final Map<String, RollFamily> families) throws IOException {
+                final Map<String, Object> coalesced = new HashMap<String, Object>();
+                readJournal(request, families.values(), coalesced,
+                        new StepListener<Map<String, RollJournal.Entry>>(stateListener) {
+                    @SuppressWarnings("unchecked")
+                    @Override void run(Map<String, RollJournal.Entry> entries) throws IOException {
+                        if (coalesced.containsKey(request.indexPrefix())) {
+                            listener.onResponse((Map<String, Object>) coalesced.get(request.indexPrefix()));
+                            return;
+                        }
+                        RollFamily family = families.get(request.indexPrefix());
+                        RollPlan plan = plan(family, request, formatter, newIndexName(request, family,
+                                formatter, formatter.print(System.currentTimeMillis()), entries));
+                        plan.condition(condition);
+                        plan.timing(RollStats.STATE, started);
+                        journal(plan, entries);
+                        execute(request, formatter, Collections.singletonList(plan),
+                                new StepListener<List<Map<String, Object>>>(listener) {
+                                    @Override void run(List<Map<String, Object>> results) {
+                                        listener.onResponse(results.get(0));
+                                    }
+                                });
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Counts the failures of the state read, the failures of the later phases are counted with
+     * the plans in {@link #execute}.
+     */
+    ActionListener<Map<String, Object>> countFailure(final RollRequest request, final Collection<String> prefixes,
+            final ActionListener<Map<String, Object>> listener) {
+        if (request.dryRun())
+            return listener;
+        return new ActionListener<Map<String, Object>>() {
+            @Override public void onResponse(Map<String, Object> result) {
+                listener.onResponse(result);
+            }
+
+            @Override public void onFailure(Throwable t) {
+                for (String prefix : prefixes) {
+                    stats.failed(prefix, t);
                 }
+                listener.onFailure(t);
+            }
+        };
+    }
 
-                if (counter == 1)
-                    oldFeedIndexName = currentIndexName;
+    /**
+     * Reads the journal entries of the families. A dry run does not need them. The rolls which
+     * run right now on another node or with other parameters are waited for. If they succeeded
+     * their result is put into coalesced, otherwise their entry is returned to resume them.
+     */
+    void readJournal(RollRequest request, Collection<RollFamily> families, final Map<String, Object> coalesced,
+            final ActionListener<Map<String, RollJournal.Entry>> listener) {
+        if (request.dryRun()) {
+            listener.onResponse(Collections.<String, RollJournal.Entry>emptyMap());
+            return;
+        }
+        List<String> prefixes = new ArrayList<String>(families.size());
+        for (RollFamily family : families) {
+            prefixes.add(family.prefix());
+        }
+        journal.read(prefixes, new StepListener<Map<String, RollJournal.Entry>>(listener) {
+            @Override void run(final Map<String, RollJournal.Entry> entries) {
+                final List<String> running = new ArrayList<String>();
+                for (String prefix : entries.keySet()) {
+                    if (entries.get(prefix).isRunning())
+                        running.add(prefix);
+                }
+                if (running.isEmpty()) {
+                    listener.onResponse(entries);
+                    return;
+                }
+                logger.info("roll of {} is running, waiting for its journal", running);
+                journal.await(running, new StepListener<Map<String, RollJournal.Entry>>(listener) {
+                    @Override void run(Map<String, RollJournal.Entry> awaited) {
+                        for (String prefix : running) {
+                            RollJournal.Entry entry = awaited.get(prefix);
+                            entries.remove(prefix);
+                            if (entry == null)
+                                continue;
+                            if (entry.isOpen()) {
+                                entries.put(prefix, entry);
+                                continue;
+                            }
+                            Map<String, Object> map = new HashMap<String, Object>();
+                            map.put("created", entry.newIndex());
+                            map.put("node", entry.node());
+                            map.put("coalesced", true);
+                            coalesced.put(prefix, map);
+                        }
+                        listener.onResponse(entries);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return the new index of an interrupted roll of the family or a new name for the time and
+     * the next generation of the family
+     */
+    static String newIndexName(RollRequest request, RollFamily family, DateTimeFormatter formatter, String time,
+            Map<String, RollJournal.Entry> entries) {
+        RollJournal.Entry entry = entries.get(family.prefix());
+        if (entry != null && entry.resumableIndex() != null)
+            return entry.resumableIndex();
+        return indexName(request, family.prefix(), time, Math.max(0, family.maxGeneration(formatter)) + 1);
+    }
+
+    static String indexName(RollRequest request, String indexPrefix, String time, long generation) {
+        if ("sequence".equals(request.indexNaming()))
+            return indexPrefix + "_" + RollFamily.formatGeneration(generation);
+        if ("timestamp_sequence".equals(request.indexNaming()))
+            return indexPrefix + "_" + time + "_" + RollFamily.formatGeneration(generation);
+        return indexPrefix + "_" + time;
+    }
 
-                if (counter >= maxSearchIndices) {
-                    removeAlias(currentIndexName, searchAlias);
-                    removedAlias += currentIndexName + " ";
+    static void journal(RollPlan plan, Map<String, RollJournal.Entry> entries) {
+        RollJournal.Entry entry = entries.get(plan.getIndexPrefix());
+        if (entry == null)
+            return;
+        plan.journal(null, entry.version());
+        plan.resumed(plan.getNewIndex().equals(entry.resumableIndex()));
+    }
+
+    /**
+     * Resolves the specified prefixes and returns the index family of every prefix. The families
+     * are taken from the registry of the local node if it is up to date, otherwise the metadata
+     * of all roll aliases is read with one request.
+     */
+    void readFamilies(final String[] prefixes, final ActionListener<Map<String, RollFamily>> listener) {
+        if (registry != null && registry.isReady()) {
+            Map<String, RollFamily> families = new TreeMap<String, RollFamily>();
+            for (String prefix : resolvePrefixes(registry.prefixes(), prefixes)) {
+                families.put(prefix, registry.family(prefix));
+            }
+            listener.onResponse(families);
+            return;
+        }
+
+        String[] aliases = new String[prefixes.length * RollFamily.ALIAS_ENDS.length];
+        for (int i = 0; i < prefixes.length; i++) {
+            for (int j = 0; j < RollFamily.ALIAS_ENDS.length; j++) {
+                aliases[i * RollFamily.ALIAS_ENDS.length + j] = prefixes[i] + RollFamily.ALIAS_ENDS[j];
+            }
+        }
+        client.admin().cluster().state(metaDataRequest(aliases), new StepListener<ClusterStateResponse>(listener) {
+            @Override void run(ClusterStateResponse response) {
+                MetaData metaData = response.getState().getMetaData();
+                Set<String> rollPrefixes = new HashSet<String>();
+                for (ObjectCursor<String> alias : metaData.aliases().keys()) {
+                    if (alias.value.endsWith(RollFamily.ROLL))
+                        rollPrefixes.add(alias.value.substring(0, alias.value.length() - RollFamily.ROLL.length()));
+                }
+                Map<String, RollFamily> families = new TreeMap<String, RollFamily>();
+                for (String prefix : resolvePrefixes(rollPrefixes, prefixes)) {
+                    families.put(prefix, RollFamily.create(metaData, prefix));
+                }
+                listener.onResponse(families);
+            }
+        });
+    }
+
+    /**
+     * Rolls several index families, specified as comma separated list or wildcard pattern, with
+     * one metadata read, one atomic alias request and one delete and close request. The result
+     * contains the result of every index family under its prefix.
+     */
+    void rollBatch(final RollRequest request, final DateTimeFormatter formatter,
+            final ActionListener<Map<String, Object>> callerListener) {
+        final long started = System.nanoTime();
+        // the prefixes are not resolved yet, a failure is counted per pattern
+        readFamilies(request.indexPrefixes(), new StepListener<Map<String, RollFamily>>(
+                countFailure(request, Arrays.asList(request.indexPrefixes()), callerListener)) {
+            @Override void run(Map<String, RollFamily> resolved) {
+                Map<String, RollFamily> families = new TreeMap<String, RollFamily>(resolved);
+                ActionListener<Map<String, Object>> listener = request.dryRun() ? callerListener
+                        : coalesceBatch(request, families, callerListener);
+                // the claimed rolls have to be released on every failure
+                try {
+                    checkBatch(request, formatter, families, started, listener);
+                } catch (Throwable t) {
+                    listener.onFailure(t);
+                }
+            }
+        });
+    }
+
+    /**
+     * Rolls the families of a batch which match one of the roll conditions.
+     */
+    void checkBatch(final RollRequest request, final DateTimeFormatter formatter,
+            final Map<String, RollFamily> families, final long started,
+            final ActionListener<Map<String, Object>> listener) throws IOException {
+        final ActionListener<Map<String, Object>> stateListener = countFailure(request, families.keySet(), listener);
+        if (!request.hasConditions()) {
+            planBatch(request, formatter, families.values(), null, started, listener);
+            return;
+        }
+
+        List<String> existing = new ArrayList<String>();
+        for (RollFamily family : families.values()) {
+            if (family.feedIndex() != null)
+                existing.add(family.feedIndex());
+        }
+        if (existing.isEmpty()) {
+            planBatch(request, formatter, families.values(), null, started, listener);
+            return;
+        }
+
+        client.admin().indices().stats(new IndicesStatsRequest().clear().docs(true).store(true).
+                indices(existing.toArray(new String[existing.size()])),
+                new StepListener<IndicesStatsResponse>(stateListener) {
+                    @Override void run(IndicesStatsResponse response) throws IOException {
+                        final Map<String, Object> notRolled = new TreeMap<String, Object>();
+                        Map<String, String> conditions = new HashMap<String, String>();
+                        List<RollFamily> rolled = new ArrayList<RollFamily>();
+                        for (RollFamily family : families.values()) {
+                            String feedIndex = family.feedIndex();
+                            IndexStats stats = feedIndex == null ? null : response.getIndex(feedIndex);
+                            String condition = stats == null ? "no feed index"
+                                    : matchingCondition(request, formatter, stats);
+                            if (condition == null) {
+                                if (!request.dryRun())
+                                    RollAction.this.stats.skipped(family.prefix());
+                                notRolled.put(family.prefix(), notRolled(stats, formatter));
+                            } else {
+                                conditions.put(family.prefix(), condition);
+                                rolled.add(family);
+                            }
+                        }
+                        planBatch(request, formatter, rolled, conditions, started,
+                                new StepListener<Map<String, Object>>(listener) {
+                                    @Override void run(Map<String, Object> results) {
+                                        results.putAll(notRolled);
+                                        listener.onResponse(results);
+                                    }
+                                });
+                    }
+                });
+    }
+
+    /**
+     * @return the explicitly specified prefixes and the known prefixes matching a wildcard prefix
+     */
+    static Set<String> resolvePrefixes(Collection<String> knownPrefixes, String[] prefixes) {
+        Set<String> result = new TreeSet<String>();
+        for (String prefix : prefixes) {
+            if (!Regex.isSimpleMatchPattern(prefix)) {
+                result.add(prefix);
+                continue;
+            }
+            for (String known : knownPrefixes) {
+                if (Regex.simpleMatch(prefix, known))
+                    result.add(known);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param started the value of System.nanoTime() when the state read started
+     */
+    void planBatch(final RollRequest request, final DateTimeFormatter formatter,
+            final Collection<RollFamily> families, final Map<String, String> conditions, final long started,
+            final ActionListener<Map<String, Object>> listener) throws IOException {
+        if (families.isEmpty()) {
+            listener.onResponse(new TreeMap<String, Object>());
+            return;
+        }
+        List<String> prefixes = new ArrayList<String>(families.size());
+        for (RollFamily family : families) {
+            prefixes.add(family.prefix());
+        }
+        final Map<String, Object> coalesced = new TreeMap<String, Object>();
+        readJournal(request, families, coalesced, new StepListener<Map<String, RollJournal.Entry>>(
+                countFailure(request, prefixes, listener)) {
+            @Override void run(Map<String, RollJournal.Entry> entries) throws IOException {
+                String time = formatter.print(System.currentTimeMillis());
+                final List<RollPlan> plans = new ArrayList<RollPlan>(families.size());
+                for (RollFamily family : families) {
+                    if (coalesced.containsKey(family.prefix()))
+                        continue;
+                    RollPlan plan = plan(family, request, formatter,
+                            newIndexName(request, family, formatter, time, entries));
+                    if (conditions != null)
+                        plan.condition(conditions.get(family.prefix()));
+                    journal(plan, entries);
+                    plan.timing(RollStats.STATE, started);
+                    plans.add(plan);
+                }
+                if (plans.isEmpty()) {
+                    listener.onResponse(coalesced);
+                    return;
                 }
+                execute(request, formatter, plans, new StepListener<List<Map<String, Object>>>(listener) {
+                    @Override void run(List<Map<String, Object>> results) {
+                        Map<String, Object> map = new TreeMap<String, Object>(coalesced);
+                        for (int i = 0; i < plans.size(); i++) {
+                            map.put(plans.get(i).getIndexPrefix(), results.get(i));
+                        }
+                        listener.onResponse(map);
+                    }
+                });
+            }
+        });
+    }
 
-                counter++;
+    /**
+     * Executes the specified plans together: creates the new indices in parallel, swaps the
+     * aliases of all plans atomically and queues the retired indices for the sweeper. Every step
+     * is recorded in the journal, a failed roll keeps its last step so that the next roll resumes it.
+     */
+    void execute(final RollRequest request, final DateTimeFormatter formatter, final List<RollPlan> plans,
+            final ActionListener<List<Map<String, Object>>> resultListener) throws IOException {
+        if (request.dryRun()) {
+            List<Map<String, Object>> results = new ArrayList<Map<String, Object>>(plans.size());
+            for (RollPlan plan : plans) {
+                Map<String, Object> map = toMap(plan);
+                map.put("dryRun", true);
+                map.put("plan", plan.toMap());
+                results.add(map);
             }
+            resultListener.onResponse(results);
+            return;
         }
-        if (oldFeedIndexName != null)
-            moveAlias(oldFeedIndexName, newIndexName, feedAlias);
-        else
-            addAlias(newIndexName, feedAlias);
 
+        final ActionListener<List<Map<String, Object>>> listener = new ActionListener<List<Map<String, Object>>>() {
+            @Override public void onResponse(List<Map<String, Object>> results) {
+                stats.rolled(plans);
+                resultListener.onResponse(results);
+            }
+
+            @Override public void onFailure(Throwable t) {
+                journal.fail(plans, t);
+                stats.failed(plans, t);
+                resultListener.onFailure(t);
+            }
+        };
+        final long started = System.nanoTime();
+        journal.record(plans, RollJournal.PLANNED, new StepListener<Void>(listener) {
+            @Override void run(Void v) throws IOException {
+                ensureTemplate(request, plans, new StepListener<Void>(listener) {
+                    @Override void run(Void v) {
+                        sizeShards(request, plans, new StepListener<Void>(listener) {
+                            @Override void run(Void v) throws IOException {
+                                timing(plans, RollStats.PREPARE, started);
+                                create(request, formatter, plans, listener);
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    static void timing(List<RollPlan> plans, String phase, long started) {
+        for (RollPlan plan : plans) {
+            plan.timing(phase, started);
+        }
+    }
+
+    /**
+     * Registers or updates the index template of the plans if the request has one.
+     */
+    void ensureTemplate(RollRequest request, List<RollPlan> plans, ActionListener<Void> listener) {
+        if (request.template() == null) {
+            listener.onResponse(null);
+            return;
+        }
+        List<String> prefixes = new ArrayList<String>(plans.size());
+        for (RollPlan plan : plans) {
+            prefixes.add(plan.getIndexPrefix());
+            if (plan.getPreviousIndex() != null)
+                templates.verify(plan.getIndexPrefix(), plan.getPreviousTemplateHash());
+        }
+        templates.ensure(prefixes, request.template(), listener);
+    }
+
+    /**
+     * Picks the shards of the new indices from the stats of the last rolled indices of every plan.
+     */
+    void sizeShards(RollRequest request, final List<RollPlan> plans, final ActionListener<Void> listener) {
+        final ShardSizing sizing = request.shardSizing();
+        List<String> indices = new ArrayList<String>();
+        for (RollPlan plan : plans) {
+            indices.addAll(plan.sizingWindows().keySet());
+        }
+        if (sizing == null || indices.isEmpty()) {
+            listener.onResponse(null);
+            return;
+        }
+        client.admin().indices().stats(new IndicesStatsRequest().clear().docs(true).store(true).
+                indices(indices.toArray(new String[indices.size()])), new StepListener<IndicesStatsResponse>(listener) {
+                    @Override void run(IndicesStatsResponse response) {
+                        for (RollPlan plan : plans) {
+                            List<ShardSizing.Sample> samples = new ArrayList<ShardSizing.Sample>();
+                            for (Entry<String, Long> e : plan.sizingWindows().entrySet()) {
+                                IndexStats stats = response.getIndex(e.getKey());
+                                if (stats != null)
+                                    samples.add(new ShardSizing.Sample(stats.getPrimaries().getStore().getSizeInBytes(),
+                                            stats.getPrimaries().getDocs().getCount(), e.getValue()));
+                            }
+                            Object[] decision = sizing.decide(samples);
+                            if (decision != null)
+                                plan.shards((Integer) decision[0], (String) decision[1]);
+                        }
+                        listener.onResponse(null);
+                    }
+                });
+    }
+
+    void create(final RollRequest request, final DateTimeFormatter formatter, final List<RollPlan> plans,
+            final ActionListener<List<Map<String, Object>>> listener) throws IOException {
+        final long started = System.nanoTime();
+        createIndices(request, plans, new StepListener<Void>(listener) {
+            @Override void run(Void v) {
+                startStandbys(request, formatter, plans, new StepListener<Void>(listener) {
+                    @Override void run(Void v) {
+                        journal.record(plans, RollJournal.CREATED, new StepListener<Void>(listener) {
+                            @Override void run(Void v) throws IOException {
+                                timing(plans, RollStats.CREATE, started);
+                                swap(request, formatter, plans, listener);
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Waits until the standby indices which get the feed reached the requested health and records
+     * the time they start to take the feed, their names carry the older time of their creation.
+     */
+    void startStandbys(final RollRequest request, final DateTimeFormatter formatter, List<RollPlan> plans,
+            final ActionListener<Void> listener) {
+        final List<String> standbys = new ArrayList<String>();
+        for (RollPlan plan : plans) {
+            if (plan.isPromotedStandby())
+                standbys.add(plan.getNewIndex());
+        }
+        if (standbys.isEmpty()) {
+            listener.onResponse(null);
+            return;
+        }
+        ClusterHealthRequest healthRequest = new ClusterHealthRequest(standbys.toArray(new String[standbys.size()])).
+                waitForStatus(request.standbyHealth());
+        client.admin().cluster().health(healthRequest, new StepListener<ClusterHealthResponse>(listener) {
+            @Override void run(ClusterHealthResponse response) {
+                if (response.isTimedOut())
+                    logger.warn("standby indices {} did not reach {} but are {}", standbys, request.standbyHealth(),
+                            response.getStatus());
+                List<String> timed = new ArrayList<String>(standbys.size());
+                for (String standby : standbys) {
+                    if (parseTimestamp(standby, formatter) != null)
+                        timed.add(standby);
+                }
+                if (timed.isEmpty()) {
+                    listener.onResponse(null);
+                    return;
+                }
+                String[] indices = timed.toArray(new String[timed.size()]);
+                client.admin().indices().updateSettings(new UpdateSettingsRequest(indices).settings(
+                        ImmutableSettings.settingsBuilder().put(RollFamily.START, System.currentTimeMillis())),
+                        new StepListener<UpdateSettingsResponse>(listener) {
+                            @Override void run(UpdateSettingsResponse response) {
+                                listener.onResponse(null);
+                            }
+                        });
+            }
+        });
+    }
+
+    void swap(final RollRequest request, final DateTimeFormatter formatter, final List<RollPlan> plans,
+            final ActionListener<List<Map<String, Object>>> listener) throws IOException {
+        final long started = System.nanoTime();
+        applyAliases(new StepListener<IndicesAliasesResponse>(listener) {
+            @Override void run(IndicesAliasesResponse response) throws IOException {
+                journal.record(plans, RollJournal.SWAPPED, new StepListener<Void>(listener) {
+                    @Override void run(Void v) throws IOException {
+                        timing(plans, RollStats.SWAP, started);
+                        final long retireStarted = System.nanoTime();
+                        final List<Map<String, Object>> results = new ArrayList<Map<String, Object>>(plans.size());
+                        for (RollPlan plan : plans) {
+                            sweeper.retire(plan.getIndexPrefix(), plan.getDeleteIndices(), plan.getCloseIndices());
+                            Map<String, Object> map = toMap(plan);
+                            demote(request, plan, map);
+                            map.put("took", plan.timings());
+                            results.add(map);
+                        }
+                        journal.record(plans, RollJournal.RETIRED, new StepListener<Void>(listener) {
+                            @Override void run(Void v) throws IOException {
+                                timing(plans, RollStats.RETIRE, retireStarted);
+                                if (!request.standby()) {
+                                    listener.onResponse(results);
+                                    return;
+                                }
+                                createStandbys(request, formatter, plans, results, new StepListener<Void>(listener) {
+                                    @Override void run(Void v) {
+                                        listener.onResponse(results);
+                                    }
+                                });
+                            }
+                        });
+                    }
+                });
+            }
+        }, plans.toArray(new RollPlan[plans.size()]));
+    }
+
+    /**
+     * Creates the new indices of all plans in parallel. Prepared standby indices exist already.
+     */
+    void createIndices(RollRequest request, List<RollPlan> plans, final ActionListener<Void> listener)
+            throws IOException {
+        List<String> newIndices = new ArrayList<String>();
+        for (RollPlan plan : plans) {
+            if (!plan.isPromotedStandby())
+                newIndices.add(plan.getNewIndex());
+        }
+        if (newIndices.isEmpty()) {
+            listener.onResponse(null);
+            return;
+        }
+
+        final CountDown countDown = new CountDown(newIndices.size());
+        ActionListener<CreateIndexResponse> createListener = new ActionListener<CreateIndexResponse>() {
+            @Override public void onResponse(CreateIndexResponse response) {
+                if (countDown.countDown())
+                    listener.onResponse(null);
+            }
+
+            @Override public void onFailure(Throwable t) {
+                if (countDown.fastForward())
+                    listener.onFailure(t);
+            }
+        };
+        for (RollPlan plan : plans) {
+            if (plan.isPromotedStandby())
+                continue;
+            ActionListener<CreateIndexResponse> l = createListener;
+            if (plan.isResumed())
+                l = resumedListener(createListener);
+            client.admin().indices().create(newIndexRequest(request, plan.getNewIndex(), plan.getShards()), l);
+        }
+    }
+
+    /**
+     * @param shards overrides the number of shards if positive
+     * @return an empty request if the settings and mappings are registered as template, in both
+     * cases with the feed profile and restricted to the hot nodes
+     */
+    static CreateIndexRequest newIndexRequest(RollRequest request, String index, int shards) throws IOException {
+        ImmutableSettings.Builder overrides = ImmutableSettings.settingsBuilder();
+        if (request.profiles() != null)
+            overrides.put(request.profiles().feed());
+        if (shards > 0)
+            overrides.put(IndexMetaData.SETTING_NUMBER_OF_SHARDS, shards);
+        if (request.hotNodeAttribute() != null) {
+            // the shards are allocated on the hot nodes right away instead of being moved there
+            String[] require = Demotion.splitAttribute(request.hotNodeAttribute());
+            overrides.put(require[0], require[1]);
+        }
+        if (request.template() != null) {
+            // settings of the create request win over the template
+            CreateIndexRequest createRequest = new CreateIndexRequest(index);
+            if (!overrides.internalMap().isEmpty())
+                createRequest.settings(overrides);
+            return createRequest;
+        }
+        if (overrides.internalMap().isEmpty() && request.indexSettings().getAsMap().isEmpty())
+            return copy(request.createIndexRequest()).index(index);
+        Settings settings = indexSettings(request.indexSettings(), overrides.build());
+        return copy(request.createIndexRequest()).index(index).settings(settings);
+    }
+
+    /**
+     * @return the settings with the overrides, an override also replaces the key without the
+     * 'index.' prefix
+     */
+    static Settings indexSettings(Settings settings, Settings overrides) {
+        ImmutableSettings.Builder builder = ImmutableSettings.settingsBuilder().put(settings);
+        for (String key : overrides.getAsMap().keySet()) {
+            // without the index prefix the key would win over the prefixed one
+            if (key.startsWith("index."))
+                builder.remove(key.substring("index.".length()));
+        }
+        return builder.put(overrides).build();
+    }
+
+    /**
+     * The new index of a resumed roll might have been created before the interruption.
+     */
+    static ActionListener<CreateIndexResponse> resumedListener(final ActionListener<CreateIndexResponse> listener) {
+        return new ActionListener<CreateIndexResponse>() {
+            @Override public void onResponse(CreateIndexResponse response) {
+                listener.onResponse(response);
+            }
+
+            @Override public void onFailure(Throwable t) {
+                if (ExceptionsHelper.unwrapCause(t) instanceof IndexAlreadyExistsException)
+                    listener.onResponse(null);
+                else
+                    listener.onFailure(t);
+            }
+        };
+    }
+
+    /**
+     * Queues the demotion of the previous feed index, including its switch to the search profile,
+     * and the move of the indices which left the hot tier.
+     */
+    void demote(RollRequest request, RollPlan plan, Map<String, Object> map) {
+        Map<String, Demotion> demotions = new LinkedHashMap<String, Demotion>();
+        Demotion demotion = request.demotion();
+        if (request.profiles() != null && !request.profiles().search().isEmpty())
+            demotion = (demotion == null ? Demotion.settingsOnly(request.profiles().search())
+                    : demotion.copy().settings(request.profiles().search()));
+        if (demotion != null && plan.getOldFeedIndex() != null) {
+            demotions.put(plan.getOldFeedIndex(), demotion);
+            map.put("demoting", plan.getOldFeedIndex());
+        }
+        for (String index : plan.getWarmIndices()) {
+            Demotion queued = demotions.get(index);
+            demotions.put(index, (queued == null ? Demotion.relocation(request.warmNodeAttribute())
+                    : queued.copy().requireAttribute(request.warmNodeAttribute())).
+                    releaseAttribute(request.hotNodeAttribute()));
+        }
+        for (Entry<String, Demotion> e : demotions.entrySet()) {
+            demoter.demote(e.getKey(), e.getValue());
+        }
+    }
+
+    public RollDemoter demoter() {
+        return demoter;
+    }
+
+    public RollSweeper sweeper() {
+        return sweeper;
+    }
+
+    public RollStats stats() {
+        return stats;
+    }
+
+    /**
+     * Reads the families of the specified prefixes and returns their size together with the roll
+     * counters of this node. Prefixes which were rolled on this node but have no family anymore
+     * are shown with their counters only.
+     */
+    public void rollStats(final String[] prefixes, final ActionListener<Map<String, Object>> listener) {
+        readFamilies(prefixes, new StepListener<Map<String, RollFamily>>(listener) {
+            @SuppressWarnings("unchecked")
+            @Override void run(Map<String, RollFamily> families) {
+                Map<String, Object> counters = stats.toMap(Arrays.asList(prefixes));
+                Map<String, Object> map = new TreeMap<String, Object>();
+                for (Entry<String, Object> e : counters.entrySet()) {
+                    map.put(e.getKey(), new LinkedHashMap<String, Object>((Map<String, Object>) e.getValue()));
+                }
+                for (RollFamily family : families.values()) {
+                    if (family.isEmpty())
+                        continue;
+                    Map<String, Object> prefixMap = (Map<String, Object>) map.get(family.prefix());
+                    if (prefixMap == null) {
+                        prefixMap = new LinkedHashMap<String, Object>();
+                        map.put(family.prefix(), prefixMap);
+                    }
+                    prefixMap.put("family", RollStats.familySize(family));
+                }
+                Map<String, Object> result = new LinkedHashMap<String, Object>();
+                result.put("prefixes", map);
+                result.put("sweeper", sweeper.progress());
+                listener.onResponse(result);
+            }
+        });
+    }
+
+    /**
+     * Creates the next standby index of every plan. The roll waits only for their creation so
+     * that the next roll sees their names as taken, a failure is reported in the result of the
+     * plan and does not fail the roll.
+     */
+    void createStandbys(RollRequest request, DateTimeFormatter formatter, List<RollPlan> plans,
+            final List<Map<String, Object>> results, final ActionListener<Void> listener) throws IOException {
+        final CountDown countDown = new CountDown(plans.size());
+        for (int i = 0; i < plans.size(); i++) {
+            RollPlan plan = plans.get(i);
+            final Map<String, Object> map = results.get(i);
+            final String standbyIndex = nextIndexName(request, plan.getIndexPrefix(), formatter, plan.getNewIndex());
+            map.put("standby", standbyIndex);
+            createStandby(request, plan.getIndexPrefix(), standbyIndex, plan.getShards(), new ActionListener<Void>() {
+                @Override public void onResponse(Void v) {
+                    if (countDown.countDown())
+                        listener.onResponse(null);
+                }
+
+                @Override public void onFailure(Throwable t) {
+                    logger.error("cannot prepare standby index {}", t, standbyIndex);
+                    map.put("standbyError", ExceptionsHelper.detailedMessage(t));
+                    onResponse(null);
+                }
+            });
+        }
+    }
+
+    /**
+     * Creates the specified index with the roll and standby aliases, so that it is part of the
+     * family from the start. The next roll waits for its health before it gets the feed, here
+     * the health is only awaited in the background to report when the standby is ready.
+     */
+    void createStandby(final RollRequest request, final String indexPrefix, final String standbyIndex, int shards,
+            final ActionListener<Void> listener) throws IOException {
+        CreateIndexRequest createRequest = newIndexRequest(request, standbyIndex, shards).
+                alias(new Alias(getRoll(indexPrefix))).alias(new Alias(getStandby(indexPrefix)));
+        client.admin().indices().create(createRequest, new StepListener<CreateIndexResponse>(listener) {
+            @Override void run(CreateIndexResponse response) {
+                listener.onResponse(null);
+                waitForStandby(request, indexPrefix, standbyIndex);
+            }
+        });
+    }
+
+    void waitForStandby(final RollRequest request, final String indexPrefix, final String standbyIndex) {
+        final long started = System.nanoTime();
+        ClusterHealthRequest healthRequest = new ClusterHealthRequest(standbyIndex).
+                waitForStatus(request.standbyHealth());
+        client.admin().cluster().health(healthRequest, new ActionListener<ClusterHealthResponse>() {
+            @Override public void onResponse(ClusterHealthResponse response) {
+                stats.phase(indexPrefix, RollStats.STANDBY, (System.nanoTime() - started) / 1000000);
+                if (response.isTimedOut())
+                    logger.warn("standby index {} did not reach {} but is {}", standbyIndex,
+                            request.standbyHealth(), response.getStatus());
+                else
+                    logger.info("standby index {} is ready", standbyIndex);
+            }
+
+            @Override public void onFailure(Throwable t) {
+                logger.warn("cannot wait for standby index {}", t, standbyIndex);
+            }
+        });
+    }
+
+    private static final long[] BUCKET_STEPS = new long[]{1, 1000, 60 * 1000L, 3600 * 1000L, 24 * 3600 * 1000L,
+        31 * 24 * 3600 * 1000L, 366 * 24 * 3600 * 1000L};
+
+    /**
+     * @return the name with the next generation for sequence naming, otherwise see
+     * {@link #nextIndexName(String, DateTimeFormatter, String)}
+     */
+    String nextIndexName(RollRequest request, String indexPrefix, DateTimeFormatter formatter, String newestIndex) {
+        long generation = RollFamily.parseGeneration(formatter, newestIndex);
+        if (!request.isSequenceNaming() || generation == RollFamily.NO_GENERATION)
+            return nextIndexName(indexPrefix, formatter, newestIndex);
+        return indexName(request, indexPrefix, formatter.print(System.currentTimeMillis()), generation + 1);
+    }
+
+    /**
+     * @return an index name which is newer than the specified index and newer than now, e.g. the
+     * next minute for the default pattern
+     */
+    String nextIndexName(String indexPrefix, DateTimeFormatter formatter, String newestIndex) {
+        long time = System.currentTimeMillis();
+        Long newest = parseTimestamp(newestIndex, formatter);
+        if (newest != null)
+            time = Math.max(time, newest);
+        String current = formatter.print(time);
+        for (long step : BUCKET_STEPS) {
+            String next = formatter.print(time + step);
+            if (!next.equals(current))
+                return indexPrefix + "_" + next;
+        }
+        throw new IllegalStateException("Cannot find an index name after " + newestIndex + " with " + formatter);
+    }
+
+    static CreateIndexRequest copy(CreateIndexRequest request) throws IOException {
+        BytesStreamOutput out = new BytesStreamOutput();
+        request.writeTo(out);
+        CreateIndexRequest copy = new CreateIndexRequest("");
+        copy.readFrom(new BytesStreamInput(out.bytes()));
+        return copy;
+    }
+
+    /**
+     * @return the name of the bucket just before the specified time, e.g. the previous minute for
+     * the default pattern
+     */
+    String previousIndexName(String indexPrefix, DateTimeFormatter formatter, long time) {
+        String current = formatter.print(time);
+        for (long step : BUCKET_STEPS) {
+            String previous = formatter.print(time - step);
+            if (!previous.equals(current))
+                return indexPrefix + "_" + previous;
+        }
+        throw new IllegalStateException("Cannot find an index name before " + current + " with " + formatter);
+    }
+
+    Long parseTimestamp(String index, DateTimeFormatter formatter) {
+        long time = RollFamily.parseTimestamp(formatter, index);
+        return time == RollFamily.NO_TIME ? null : time;
+    }
+
+    Map<String, Object> toMap(RollPlan plan) {
         Map<String, Object> map = new HashMap<String, Object>();
-        map.put("created", newIndexName);
-        map.put("deleted", deletedIndices.trim());
-        map.put("closed", closedIndices.trim());
-        map.put("removedAlias", removedAlias.trim());
+        map.put("rolled", true);
+        if (plan.getCondition() != null)
+            map.put("condition", plan.getCondition());
+        map.put("created", plan.getNewIndex());
+        if (plan.isPromotedStandby())
+            map.put("promotedStandby", true);
+        if (plan.isResumed())
+            map.put("resumed", true);
+        if (plan.getShards() > 0) {
+            map.put("shards", plan.getShards());
+            map.put("shardsReason", plan.getShardsReason());
+        }
+        map.put("deleted", join(plan.getDeleteIndices()));
+        map.put("closed", join(plan.getCloseIndices()));
+        if (!plan.getWarmIndices().isEmpty())
+            map.put("warm", join(plan.getWarmIndices()));
+        map.put("removedAlias", plan.removedAliasIndices());
         return map;
     }
 
+    /**
+     * Computes all alias changes and retired indices of a roll from the specified metadata
+     * snapshot without talking to the cluster.
+     */
+    public RollPlan plan(MetaData metaData, RollRequest request, DateTimeFormatter formatter, String newIndexName) {
+        return plan(metaData, request, request.indexPrefix(), formatter, newIndexName);
+    }
+
+    /**
+     * Computes the plan for the specified prefix, which can differ from the prefix in the request
+     * for a batch roll.
+     */
+    public RollPlan plan(MetaData metaData, RollRequest request, String indexPrefix, DateTimeFormatter formatter,
+            String newIndexName) {
+        return plan(RollFamily.create(metaData, indexPrefix), request, formatter, newIndexName);
+    }
+
+    /**
+     * Computes the plan for the specified index family. Indices with the identical time in their
+     * name are ordered by name.
+     */
+    public RollPlan plan(RollFamily family, RollRequest request, DateTimeFormatter formatter, String newIndexName) {
+        request.validate();
+        String indexPrefix = family.prefix();
+        int maxRollIndices = request.rollIndices();
+        int maxSearchIndices = request.searchIndices();
+        String rollAlias = getRoll(indexPrefix);
+        String searchAlias = getSearch(indexPrefix);
+        String feedAlias = getFeed(indexPrefix);
+        String standbyAlias = getStandby(indexPrefix);
+
+        RollFamily.Timeline timeline = family.timeline(String.valueOf(request.indexTimestampPattern()), formatter);
+        // latest indices comes first, standby indices are not yet part of the rolling indices
+        String standbyIndex = null;
+        List<RollFamily.Member> rollingIndices = new ArrayList<RollFamily.Member>(timeline.size());
+        for (RollFamily.Member member : timeline.newestFirst(RollFamily.ROLL)) {
+            if (member.is(RollFamily.STANDBY))
+                standbyIndex = member.name();
+            else
+                rollingIndices.add(member);
+        }
+        logger.info("indices of {}: {}", rollAlias, rollingIndices);
+
+        RollPlan plan;
+        if (request.standby() && standbyIndex != null) {
+            plan = new RollPlan(indexPrefix, standbyIndex).promotedStandby(true);
+            plan.removeAlias(standbyIndex, standbyAlias);
+            plan.addAlias(standbyIndex, searchAlias);
+            plan.addAlias(standbyIndex, feedAlias);
+        } else {
+            // rolling twice within the resolution of the pattern would hit the existing index
+            if (family.member(newIndexName) != null)
+                newIndexName = nextIndexName(request, indexPrefix, formatter, newIndexName);
+            plan = new RollPlan(indexPrefix, newIndexName);
+            // always append aliases to the new index
+            plan.addAlias(newIndexName, searchAlias);
+            plan.addAlias(newIndexName, rollAlias);
+            plan.addAlias(newIndexName, feedAlias);
+        }
+        RollFamily.Member previous = standbyIndex != null ? family.member(standbyIndex)
+                : rollingIndices.isEmpty() ? null : rollingIndices.get(0);
+        if (previous != null)
+            plan.previousIndex(previous.name(), previous.settings().get(RollTemplates.HASH_SETTING));
+
+        if (request.shardSizing() != null && !plan.isPromotedStandby()) {
+            // the newest open rolling indices, the window of the feed index ends now
+            long now = System.currentTimeMillis();
+            int windows = request.shardSizing().indices();
+            for (int i = timeline.size() - 1; i >= 0 && plan.sizingWindows().size() < windows; i--) {
+                RollFamily.Member member = timeline.get(i);
+                if (!member.is(RollFamily.ROLL) || member.is(RollFamily.STANDBY) || !member.isOpen())
+                    continue;
+                long start = timeline.time(i);
+                plan.sizingIndex(member.name(), start == RollFamily.NO_TIME ? -1
+                        : Math.max(0, Math.min(now, timeline.end(i)) - start));
+            }
+        }
+
+        String[] warm = request.warmNodeAttribute() == null ? null
+                : Demotion.splitAttribute(request.warmNodeAttribute());
+        int counter = 1;
+        for (RollFamily.Member member : rollingIndices) {
+            String currentIndexName = member.name();
+            // the new index is the first hot index, all older indices which stay open are warm
+            boolean retired = counter >= maxRollIndices && (request.deleteAfterRoll() || request.closeAfterRoll());
+            if (warm != null && !retired && counter >= request.hotIndices()
+                    && !warm[1].equals(member.settings().get(warm[0])))
+                plan.warmIndex(currentIndexName);
+
+            if (member.is(RollFamily.FEED))
+                plan.removeAlias(currentIndexName, feedAlias);
+
+            if (counter >= maxRollIndices) {
+                // close/delete all the older indices, the sweeper retires them after the alias swap
+                plan.removeAlias(currentIndexName, rollAlias);
+                if (member.is(RollFamily.SEARCH))
+                    plan.removeAlias(currentIndexName, searchAlias);
+                if (request.deleteAfterRoll()) {
+                    plan.addAlias(currentIndexName, getExpired(indexPrefix));
+                    plan.deleteIndex(currentIndexName);
+                } else if (request.closeAfterRoll()) {
+                    plan.addAlias(currentIndexName, getExpired(indexPrefix));
+                    plan.addAlias(currentIndexName, getArchived(indexPrefix));
+                    plan.closeIndex(currentIndexName);
+                } else {
+                    plan.addAlias(currentIndexName, getClosed(indexPrefix));
+                }
+                continue;
+            }
+
+            if (counter == 1)
+                plan.oldFeedIndex(currentIndexName);
+
+            if (counter >= maxSearchIndices && member.is(RollFamily.SEARCH))
+                plan.removeAlias(currentIndexName, searchAlias);
+
+            counter++;
+        }
+
+        // indices retired by an earlier roll which the sweeper did not finish, e.g. due to a crash
+        for (RollFamily.Member member : family.members()) {
+            if (!member.is(RollFamily.EXPIRED) || !member.isOpen()
+                    || plan.getDeleteIndices().contains(member.name())
+                    || plan.getCloseIndices().contains(member.name()))
+                continue;
+            if (member.is(RollFamily.ARCHIVED))
+                plan.closeIndex(member.name());
+            else
+                plan.deleteIndex(member.name());
+        }
+        return plan;
+    }
+
+    /**
+     * Applies all alias changes of the specified plans in one atomic request.
+     */
+    public void applyAliases(final ActionListener<IndicesAliasesResponse> listener, RollPlan... plans) {
+        final IndicesAliasesRequest request = new IndicesAliasesRequest();
+        boolean changes = false;
+        for (RollPlan plan : plans) {
+            if (plan.hasAliasChanges()) {
+                plan.addTo(request);
+                changes = true;
+            }
+        }
+        if (!changes) {
+            listener.onResponse(null);
+            return;
+        }
+
+        client.admin().indices().aliases(request, new StepListener<IndicesAliasesResponse>(listener) {
+            @Override void run(IndicesAliasesResponse response) {
+                logger.info("({}) applied {} alias changes", response.isAcknowledged(),
+                        request.getAliasActions().size());
+                listener.onResponse(response);
+            }
+        });
+    }
+
+    static String join(Iterable<String> strings) {
+        StringBuilder sb = new StringBuilder();
+        for (String str : strings) {
+            if (sb.length() > 0)
+                sb.append(" ");
+            sb.append(str);
+        }
+        return sb.toString();
+    }
+
     XContentBuilder createIndexSettings(int shards, int replicas, String refresh) {
         try {
             XContentBuilder createIndexSettings = JsonXContent.contentBuilder().startObject().
@@ -259,12 +1537,12 @@ public class RollAction extends BaseRestHandler {
         }
     }
 
-    public void deleteIndex(String indexName) {
-        client.admin().indices().delete(new DeleteIndexRequest(indexName)).actionGet();
+    public void deleteIndex(String... indexNames) {
+        client.admin().indices().delete(new DeleteIndexRequest(indexNames)).actionGet();
     }
 
-    public void closeIndex(String indexName) {
-        client.admin().indices().close(new CloseIndexRequest(indexName)).actionGet();
+    public void closeIndex(String... indexNames) {
+        client.admin().indices().close(new CloseIndexRequest(indexNames)).actionGet();
     }
 
     public void addAlias(String indexName, String alias) {
@@ -272,50 +1550,67 @@ public class RollAction extends BaseRestHandler {
     }
 
     public void removeAlias(String indexName, String alias) {
-    	boolean exists = client.admin().indices().aliasesExist(new GetAliasesRequest().aliases(alias).indices(indexName)).actionGet().exists();
+    	boolean exists = client.admin().indices().aliasesExist(new GetAliasesRequest().aliases(alias).
+    	        indices(indexName)).actionGet().exists();
     	if(exists) {
     		client.admin().indices().aliases(new IndicesAliasesRequest().removeAlias(indexName, alias)).actionGet();
     	}
     }
 
     public void moveAlias(String oldIndexName, String newIndexName, String alias) {
-        IndicesAliasesResponse r = client.admin().indices().aliases(new IndicesAliasesRequest().addAlias(alias, newIndexName).
-                removeAlias(oldIndexName, alias)).actionGet();
+        IndicesAliasesResponse r = client.admin().indices().aliases(new IndicesAliasesRequest().
+                addAlias(alias, newIndexName).removeAlias(oldIndexName, alias)).actionGet();
         logger.info("({}) moved {} from {} to {} ", r.isAcknowledged(), alias, oldIndexName, newIndexName);
     }
 
     public ImmutableOpenMap<String, AliasMetaData> getAliases(String alias) {
-        ImmutableOpenMap<String, AliasMetaData> md = client.admin().cluster().state(new ClusterStateRequest()).
-                actionGet().getState().getMetaData().aliases().get(alias);
+        ImmutableOpenMap<String, AliasMetaData> md = getMetaData(alias).aliases().get(alias);
         if (md == null)
             return ImmutableOpenMap.of();
         return md;
     }
-    private static Comparator<Long> reverseSorter = new Comparator<Long>() {
-        @Override
-        public int compare(Long o1, Long o2) {
-            return -o1.compareTo(o2);
-        }
-    };
+
+    /**
+     * Fetches only the metadata of the indices behind the specified aliases instead of the whole
+     * cluster state.
+     */
+    public MetaData getMetaData(String... aliases) {
+        return client.admin().cluster().state(metaDataRequest(aliases)).actionGet().getState().getMetaData();
+    }
+
+    ClusterStateRequest metaDataRequest(String... aliases) {
+        return new ClusterStateRequest().clear().metaData(true).indices(aliases);
+    }
 
     public String[] getConcreteIndices(String[] indices) {
-        return client.admin().cluster().state(new ClusterStateRequest()).actionGet().getState().
-                getMetaData().concreteIndices(indices);
+        return getMetaData(indices).concreteIndices(indices);
     }
 
     String getRoll(String indexName) {
-        return indexName + "_" + rollEnd;
+        return indexName + RollFamily.ROLL;
+    }
+
+    String getStandby(String indexName) {
+        return indexName + RollFamily.STANDBY;
+    }
+
+    String getClosed(String indexName) {
+        return indexName + RollFamily.CLOSED;
+    }
+
+    String getArchived(String indexName) {
+        return indexName + RollFamily.ARCHIVED;
+    }
+
+    String getExpired(String indexName) {
+        return indexName + RollFamily.EXPIRED;
     }
 
     String getFeed(String indexName) {
-        if (feedEnd.isEmpty())
-            return indexName;
-        return indexName + "_" + feedEnd;
+        return indexName + RollFamily.FEED;
     }
 
     String getSearch(String indexName) {
-        if (searchEnd.isEmpty())
-            return indexName;
-        return indexName + "_" + searchEnd;
+        return indexName + RollFamily.SEARCH;
     }
 }
@@ -0,0 +1,360 @@
+package com.pannous.es.rollindex;
+
+import static org.elasticsearch.rest.RestRequest.Method.POST;
+import static org.elasticsearch.rest.RestRequest.Method.PUT;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesResponse;
+import org.elasticsearch.action.admin.indices.create.CreateIndexResponse;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.joda.Joda;
+import org.elasticsearch.common.joda.time.format.DateTimeFormatter;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.CountDown;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.indices.IndexAlreadyExistsException;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+
+/**
+ * Feeds a bulk request into the indices of a family according to the timestamp of every
+ * document instead of into the feed alias, so that late and backfilled documents end up in the
+ * index of their time:
+ *
+ * curl -XPOST 'localhost:9200/tweets/tweet/_rollbulk?timestampField=created&retention=30d' --data-binary @bulk.json
+ *
+ * Documents without timestamp as well as deletes and updates go into the feed index. For
+ * documents older than all indices an index per bucket is created. Documents of a write blocked
+ * index are rejected.
+ */
+public class RollBulkAction extends BaseRestHandler {
+
+    private static final DateTimeFormatter dateParser = Joda.forPattern("dateOptionalTime").parser();
+    private final RollAction rollAction;
+
+    @Inject public RollBulkAction(Settings settings, Client client, RestController controller, RollAction rollAction) {
+        super(settings, client);
+        this.rollAction = rollAction;
+
+        controller.registerHandler(POST, "/{index}/_rollbulk", this);
+        controller.registerHandler(PUT, "/{index}/_rollbulk", this);
+        controller.registerHandler(POST, "/{index}/{type}/_rollbulk", this);
+        controller.registerHandler(PUT, "/{index}/{type}/_rollbulk", this);
+    }
+
+    @Override public void handleRequest(RestRequest request, RestChannel channel) {
+        final RestMapListener listener = new RestMapListener(request, channel);
+        try {
+            String indexPrefix = request.param("index");
+            BulkRequest bulkRequest = new BulkRequest();
+            bulkRequest.add(request.content(), request.contentUnsafe(), indexPrefix, request.param("type"));
+            bulkRequest.refresh(request.paramAsBoolean("refresh", bulkRequest.refresh()));
+            RollBulkRequest rollBulkRequest = new RollBulkRequest(indexPrefix, bulkRequest).
+                    timestampField(request.param("timestampField", "timestamp")).
+                    indexTimestampPattern(request.param("indexTimestampPattern")).
+                    retention(request.paramAsTime("retention", null)).
+                    bucket(request.paramAsTime("bucket", TimeValue.timeValueHours(24))).
+                    createIndexRequest(rollAction.createIndexRequest(request));
+            bulk(rollBulkRequest, new StepListener<BulkResponse>(listener) {
+                @Override void run(BulkResponse response) {
+                    listener.onResponse(toMap(response));
+                }
+            });
+        } catch (Throwable ex) {
+            listener.onFailure(ex);
+        }
+    }
+
+    /**
+     * Routes every document to its index, creates the missing indices and sends one bulk request
+     * per index in parallel. The items of the response are in the order of the request.
+     */
+    public void bulk(final RollBulkRequest request, final ActionListener<BulkResponse> listener) {
+        final long start = System.currentTimeMillis();
+        try {
+            request.validate();
+        } catch (Throwable ex) {
+            listener.onFailure(ex);
+            return;
+        }
+        String[] prefixes = new String[]{request.indexPrefix()};
+        rollAction.readFamilies(prefixes, new StepListener<Map<String, RollFamily>>(listener) {
+            @Override void run(Map<String, RollFamily> families) throws Exception {
+                List<ActionRequest> items = request.bulkRequest().requests();
+                final BulkItemResponse[] responses = new BulkItemResponse[items.size()];
+                final Map<String, List<Integer>> routed = new LinkedHashMap<String, List<Integer>>();
+                RollFamily family = families.get(request.indexPrefix());
+                final Set<String> missing = route(request, family, responses, routed);
+                final ActionListener<Void> sendListener = new StepListener<Void>(listener) {
+                    @Override void run(Void v) {
+                        send(request.bulkRequest(), routed, responses, start, listener);
+                    }
+                };
+                // the id filter of an index would miss the new documents
+                Set<String> filtered = new TreeSet<String>();
+                for (String index : routed.keySet()) {
+                    RollFamily.Member member = family.member(index);
+                    if (member != null && member.idFilter() != RollFamily.NO_TIME)
+                        filtered.add(index);
+                }
+                rollAction.demoter().idFilters().invalidate(filtered, new StepListener<Void>(listener) {
+                    @Override void run(Void v) throws Exception {
+                        if (missing.isEmpty())
+                            sendListener.onResponse(null);
+                        else
+                            createBuckets(request, missing, sendListener);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Sets the target index of every item and collects the item positions per index. Rejected
+     * items get their failure response right away.
+     *
+     * @return the indices which have to be created
+     */
+    Set<String> route(RollBulkRequest request, RollFamily family, BulkItemResponse[] responses,
+            Map<String, List<Integer>> routed) {
+        DateTimeFormatter formatter = rollAction.createFormatter(request.indexTimestampPattern());
+        RollFamily.Timeline timeline = family.timeline(String.valueOf(request.indexTimestampPattern()), formatter);
+        String feedIndex = family.feedIndex();
+        if (feedIndex == null)
+            throw new IllegalStateException("no feed index for " + request.indexPrefix() + ", roll first");
+
+        long horizon = request.retention() == null ? Long.MIN_VALUE
+                : System.currentTimeMillis() - request.retention().millis();
+        long bucket = request.bucket().millis();
+        Set<String> missing = new TreeSet<String>();
+        List<ActionRequest> items = request.bulkRequest().requests();
+        for (int i = 0; i < items.size(); i++) {
+            ActionRequest item = items.get(i);
+            String target = feedIndex;
+            if (item instanceof IndexRequest) {
+                IndexRequest indexRequest = (IndexRequest) item;
+                long time;
+                try {
+                    time = timestamp(indexRequest, request.timestampField());
+                } catch (Exception ex) {
+                    responses[i] = reject(i, indexRequest, "cannot parse " + request.timestampField() + ": "
+                            + ex.getMessage());
+                    continue;
+                }
+                if (time != RollFamily.NO_TIME) {
+                    if (time < horizon) {
+                        responses[i] = reject(i, indexRequest, "older than the retention of " + request.retention());
+                        continue;
+                    }
+                    RollFamily.Member member = timeline.containing(time);
+                    if (member != null && member.writeBlocked()) {
+                        // another index would mix up the time windows
+                        responses[i] = reject(i, indexRequest, "index " + member.name()
+                                + " is write blocked, demote with demoteReadOnly=false to backfill");
+                        continue;
+                    }
+                    if (member != null) {
+                        target = member.name();
+                    } else {
+                        target = request.indexPrefix() + "_" + formatter.print(time - (time % bucket));
+                        if (family.member(target) != null) {
+                            responses[i] = reject(i, indexRequest, "index " + target + " is not rolling anymore");
+                            continue;
+                        }
+                        missing.add(target);
+                    }
+                }
+                indexRequest.index(target);
+            } else if (item instanceof DeleteRequest) {
+                DeleteRequest deleteRequest = (DeleteRequest) item;
+                if (request.indexPrefix().equals(deleteRequest.index()))
+                    deleteRequest.index(target);
+                else
+                    target = deleteRequest.index();
+            } else if (item instanceof UpdateRequest) {
+                UpdateRequest updateRequest = (UpdateRequest) item;
+                if (request.indexPrefix().equals(updateRequest.index()))
+                    updateRequest.index(target);
+                else
+                    target = updateRequest.index();
+            }
+
+            List<Integer> positions = routed.get(target);
+            if (positions == null) {
+                positions = new ArrayList<Integer>();
+                routed.put(target, positions);
+            }
+            positions.add(i);
+        }
+        return missing;
+    }
+
+    /**
+     * @return the time of the document in milliseconds or NO_TIME if it has no timestamp
+     */
+    static long timestamp(IndexRequest request, String timestampField) {
+        Object value = request.timestamp();
+        if (value == null)
+            value = XContentMapValues.extractValue(timestampField,
+                    XContentHelper.convertToMap(request.source(), false).v2());
+        if (value == null)
+            return RollFamily.NO_TIME;
+        if (value instanceof Number)
+            return ((Number) value).longValue();
+        String str = value.toString();
+        for (int i = 0; i < str.length(); i++) {
+            if (!Character.isDigit(str.charAt(i)))
+                return dateParser.parseMillis(str);
+        }
+        return Long.parseLong(str);
+    }
+
+    static BulkItemResponse reject(int pos, IndexRequest request, String reason) {
+        return new BulkItemResponse(pos, request.opType().lowercase(), new BulkItemResponse.Failure(request.index(),
+                request.type(), request.id(), new ElasticsearchIllegalArgumentException(reason)));
+    }
+
+    /**
+     * Creates the missing indices in parallel and adds them to the roll and search alias of the
+     * family with one request.
+     */
+    void createBuckets(final RollBulkRequest request, final Set<String> indices, final ActionListener<Void> listener)
+            throws Exception {
+        final ActionListener<Void> aliasListener = new StepListener<Void>(listener) {
+            @Override void run(Void v) {
+                IndicesAliasesRequest aliasesRequest = new IndicesAliasesRequest();
+                for (String index : indices) {
+                    aliasesRequest.addAlias(rollAction.getRoll(request.indexPrefix()), index);
+                    aliasesRequest.addAlias(rollAction.getSearch(request.indexPrefix()), index);
+                }
+                client.admin().indices().aliases(aliasesRequest, new StepListener<IndicesAliasesResponse>(listener) {
+                    @Override void run(IndicesAliasesResponse response) {
+                        logger.info("created indices {} for older documents", indices);
+                        listener.onResponse(null);
+                    }
+                });
+            }
+        };
+        final CountDown countDown = new CountDown(indices.size());
+        ActionListener<CreateIndexResponse> createListener = new ActionListener<CreateIndexResponse>() {
+            @Override public void onResponse(CreateIndexResponse response) {
+                if (countDown.countDown())
+                    aliasListener.onResponse(null);
+            }
+
+            @Override public void onFailure(Throwable t) {
+                // a concurrent bulk request created the index
+                if (ExceptionsHelper.unwrapCause(t) instanceof IndexAlreadyExistsException)
+                    onResponse(null);
+                else if (countDown.fastForward())
+                    aliasListener.onFailure(t);
+            }
+        };
+        for (String index : indices) {
+            client.admin().indices().create(RollAction.copy(request.createIndexRequest()).index(index), createListener);
+        }
+    }
+
+    void send(BulkRequest bulkRequest, Map<String, List<Integer>> routed, final BulkItemResponse[] responses,
+            final long start, final ActionListener<BulkResponse> listener) {
+        if (routed.isEmpty()) {
+            listener.onResponse(new BulkResponse(responses, System.currentTimeMillis() - start));
+            return;
+        }
+
+        final CountDown countDown = new CountDown(routed.size());
+        List<ActionRequest> items = bulkRequest.requests();
+        for (Entry<String, List<Integer>> e : routed.entrySet()) {
+            final String index = e.getKey();
+            final List<Integer> positions = e.getValue();
+            final BulkRequest subRequest = new BulkRequest().refresh(bulkRequest.refresh());
+            for (Integer pos : positions) {
+                subRequest.add(items.get(pos));
+            }
+            client.bulk(subRequest, new ActionListener<BulkResponse>() {
+                @Override public void onResponse(BulkResponse response) {
+                    BulkItemResponse[] subResponses = response.getItems();
+                    for (int i = 0; i < subResponses.length; i++) {
+                        BulkItemResponse item = subResponses[i];
+                        int pos = positions.get(i);
+                        responses[pos] = item.isFailed()
+                                ? new BulkItemResponse(pos, item.getOpType(), item.getFailure())
+                                : new BulkItemResponse(pos, item.getOpType(), item.getResponse());
+                    }
+                    done();
+                }
+
+                @Override public void onFailure(Throwable t) {
+                    logger.warn("bulk request into {} failed", t, index);
+                    for (int i = 0; i < positions.size(); i++) {
+                        int pos = positions.get(i);
+                        ActionRequest item = subRequest.requests().get(i);
+                        responses[pos] = new BulkItemResponse(pos, opType(item),
+                                new BulkItemResponse.Failure(index, null, null, t));
+                    }
+                    done();
+                }
+
+                void done() {
+                    if (countDown.countDown())
+                        listener.onResponse(new BulkResponse(responses, System.currentTimeMillis() - start));
+                }
+            });
+        }
+    }
+
+    static String opType(ActionRequest item) {
+        if (item instanceof IndexRequest)
+            return ((IndexRequest) item).opType().lowercase();
+        if (item instanceof DeleteRequest)
+            return "delete";
+        return "update";
+    }
+
+    static Map<String, Object> toMap(BulkResponse response) {
+        List<Map<String, Object>> items = new ArrayList<Map<String, Object>>(response.getItems().length);
+        for (BulkItemResponse item : response.getItems()) {
+            Map<String, Object> map = new LinkedHashMap<String, Object>();
+            map.put("_index", item.getIndex());
+            map.put("_type", item.getType());
+            map.put("_id", item.getId());
+            if (item.isFailed()) {
+                map.put("status", item.getFailure().getStatus().getStatus());
+                map.put("error", item.getFailureMessage());
+            } else {
+                map.put("_version", item.getVersion());
+            }
+            Map<String, Object> wrapper = new LinkedHashMap<String, Object>(1);
+            wrapper.put(item.getOpType(), map);
+            items.add(wrapper);
+        }
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("took", response.getTookInMillis());
+        map.put("errors", response.hasFailures());
+        map.put("items", items);
+        return map;
+    }
+}
@@ -0,0 +1,91 @@
+package com.pannous.es.rollindex;
+
+import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.common.unit.TimeValue;
+
+/**
+ * A bulk request for an index family. Every document goes into the index whose time window
+ * contains the value of its timestamp field.
+ */
+public class RollBulkRequest {
+
+    private final String indexPrefix;
+    private final BulkRequest bulkRequest;
+    private String timestampField = "timestamp";
+    private String indexTimestampPattern;
+    // documents older than now - retention are rejected, null accepts all
+    private TimeValue retention;
+    // the time range of an index which is created for documents older than all indices
+    private TimeValue bucket = TimeValue.timeValueHours(24);
+    private CreateIndexRequest createIndexRequest = new CreateIndexRequest("");
+
+    public RollBulkRequest(String indexPrefix, BulkRequest bulkRequest) {
+        this.indexPrefix = indexPrefix;
+        this.bulkRequest = bulkRequest;
+    }
+
+    public String indexPrefix() {
+        return indexPrefix;
+    }
+
+    public BulkRequest bulkRequest() {
+        return bulkRequest;
+    }
+
+    public String timestampField() {
+        return timestampField;
+    }
+
+    public RollBulkRequest timestampField(String timestampField) {
+        this.timestampField = timestampField;
+        return this;
+    }
+
+    public String indexTimestampPattern() {
+        return indexTimestampPattern;
+    }
+
+    public RollBulkRequest indexTimestampPattern(String indexTimestampPattern) {
+        this.indexTimestampPattern = indexTimestampPattern;
+        return this;
+    }
+
+    public TimeValue retention() {
+        return retention;
+    }
+
+    public RollBulkRequest retention(TimeValue retention) {
+        this.retention = retention;
+        return this;
+    }
+
+    public TimeValue bucket() {
+        return bucket;
+    }
+
+    public RollBulkRequest bucket(TimeValue bucket) {
+        this.bucket = bucket;
+        return this;
+    }
+
+    public CreateIndexRequest createIndexRequest() {
+        return createIndexRequest;
+    }
+
+    public RollBulkRequest createIndexRequest(CreateIndexRequest createIndexRequest) {
+        this.createIndexRequest = createIndexRequest;
+        return this;
+    }
+
+    public void validate() {
+        if (indexPrefix == null || indexPrefix.isEmpty())
+            throw new IllegalArgumentException("indexPrefix missing");
+        if (bucket.millis() <= 0)
+            throw new IllegalArgumentException("bucket must be positive");
+    }
+
+    @Override public String toString() {
+        return indexPrefix + " bulk:" + bulkRequest.numberOfActions();
+    }
+}
@@ -0,0 +1,457 @@
+package com.pannous.es.rollindex;
+
+import static org.elasticsearch.rest.RestRequest.Method.POST;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.cluster.state.ClusterStateResponse;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesResponse;
+import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
+import org.elasticsearch.action.admin.indices.create.CreateIndexResponse;
+import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
+import org.elasticsearch.action.admin.indices.delete.DeleteIndexResponse;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.admin.indices.refresh.RefreshResponse;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequest;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.count.CountResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.common.hppc.cursors.ObjectCursor;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.joda.time.format.DateTimeFormatter;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.CountDown;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHitField;
+
+/**
+ * Copies the oldest consecutive indices of a family which left the search alias into one index
+ * to reduce the number of shards:
+ *
+ * curl -XPOST 'localhost:9200/_rollindex/_compact?indexPrefix=tweets&indices=10'
+ *
+ * The new index is named after the bucket before the oldest source index, so it takes its place
+ * in the timeline, and gets the settings of the newest source, e.g. its warm node requirement.
+ * Writes into the sources are blocked during the copy. The new index replaces the sources in the
+ * roll or closed alias with one alias request and the sources are deleted only if the new index
+ * contains all their documents.
+ */
+public class RollCompactAction extends BaseRestHandler {
+
+    private static final TimeValue SCROLL = TimeValue.timeValueMinutes(5);
+    private final RollAction rollAction;
+
+    @Inject public RollCompactAction(Settings settings, Client client, RestController controller,
+            RollAction rollAction) {
+        super(settings, client);
+        this.rollAction = rollAction;
+
+        controller.registerHandler(POST, "/_rollindex/_compact", this);
+    }
+
+    @Override public void handleRequest(RestRequest request, RestChannel channel) {
+        RestMapListener listener = new RestMapListener(request, channel);
+        try {
+            compact(new RollCompactRequest(request.param("indexPrefix")).
+                    indices(request.paramAsInt("indices", 10)).
+                    indexTimestampPattern(request.param("indexTimestampPattern")).
+                    slices(request.paramAsInt("slices", 2)).
+                    scrollSize(request.paramAsInt("scrollSize", 500)).
+                    indexSettings(rollAction.toSettings(rollAction.createIndexSettings(request).string())), listener);
+        } catch (Throwable ex) {
+            listener.onFailure(ex);
+        }
+    }
+
+    public void compact(final RollCompactRequest request, final ActionListener<Map<String, Object>> listener) {
+        try {
+            request.validate();
+        } catch (Throwable ex) {
+            listener.onFailure(ex);
+            return;
+        }
+        String[] prefixes = new String[]{request.indexPrefix()};
+        rollAction.readFamilies(prefixes, new StepListener<Map<String, RollFamily>>(listener) {
+            @Override void run(Map<String, RollFamily> families) {
+                DateTimeFormatter formatter = rollAction.createFormatter(request.indexTimestampPattern());
+                RollFamily family = families.get(request.indexPrefix());
+                RollFamily.Timeline timeline = family.timeline(String.valueOf(request.indexTimestampPattern()),
+                        formatter);
+                final List<String> sources = sources(timeline, request.indices());
+                final Map<String, Object> map = new LinkedHashMap<String, Object>();
+                if (sources.size() < 2) {
+                    map.put("compacted", false);
+                    listener.onResponse(map);
+                    return;
+                }
+
+                final String aliasEnd = family.member(sources.get(0)).is(RollFamily.ROLL)
+                        ? RollFamily.ROLL : RollFamily.CLOSED;
+                final String target = targetName(family, timeline, formatter, sources.get(0));
+                // the write block of already read-only sources is kept on failure
+                final List<String> writable = new ArrayList<String>();
+                for (String source : sources) {
+                    if (!family.member(source).writeBlocked())
+                        writable.add(source);
+                }
+                map.put("compacted", true);
+                map.put("index", target);
+                map.put("sources", sources);
+                final ActionListener<Object> doneListener = new ActionListener<Object>() {
+                    @Override public void onResponse(Object o) {
+                        listener.onResponse(map);
+                    }
+
+                    @Override public void onFailure(final Throwable t) {
+                        blockWrites(writable, false, new ActionListener<Object>() {
+                            @Override public void onResponse(Object o) {
+                                listener.onFailure(t);
+                            }
+
+                            @Override public void onFailure(Throwable t2) {
+                                logger.warn("cannot unblock writes into {}", t2, writable);
+                                listener.onFailure(t);
+                            }
+                        });
+                    }
+                };
+                // the sources stay untouched until the target replaced them in the alias, before
+                // that a failure removes the target
+                final ActionListener<Object> swapListener = new StepListener<Object>(doneListener) {
+                    @Override void run(Object o) {
+                        deleteSources(sources, target, doneListener);
+                    }
+
+                    @Override public void onFailure(final Throwable t) {
+                        client.admin().indices().delete(new DeleteIndexRequest(target),
+                                new ActionListener<DeleteIndexResponse>() {
+                                    @Override public void onResponse(DeleteIndexResponse response) {
+                                        doneListener.onFailure(t);
+                                    }
+
+                                    @Override public void onFailure(Throwable t2) {
+                                        logger.warn("cannot delete incomplete index {}", t2, target);
+                                        doneListener.onFailure(t);
+                                    }
+                                });
+                    }
+                };
+                blockWrites(writable, true, new StepListener<Object>(doneListener) {
+                    @Override void run(Object o) {
+                        create(request, sources, target, new StepListener<Object>(doneListener) {
+                            @Override void run(Object o) {
+                                copy(request, sources, target, new StepListener<Long>(swapListener) {
+                                    @Override void run(Long docs) {
+                                        map.put("docs", docs);
+                                        swap(request.indexPrefix() + aliasEnd, sources, target, swapListener);
+                                    }
+                                });
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return the oldest consecutive indices with a time which are open, not searched via the
+     * search alias and are all in the roll or all in the closed alias
+     */
+    static List<String> sources(RollFamily.Timeline timeline, int max) {
+        List<String> sources = new ArrayList<String>();
+        String aliasEnd = null;
+        for (int i = 0; i < timeline.size() && sources.size() < max; i++) {
+            RollFamily.Member member = timeline.get(i);
+            if (timeline.time(i) == RollFamily.NO_TIME
+                    && timeline.generation(i) == RollFamily.NO_GENERATION)
+                continue;
+            String end = member.is(RollFamily.ROLL) ? RollFamily.ROLL
+                    : member.is(RollFamily.CLOSED) ? RollFamily.CLOSED : null;
+            boolean compactable = end != null && member.isOpen() && !member.is(RollFamily.SEARCH)
+                    && !member.is(RollFamily.FEED) && !member.is(RollFamily.STANDBY);
+            if (!compactable || aliasEnd != null && !aliasEnd.equals(end)) {
+                if (!sources.isEmpty())
+                    break;
+                continue;
+            }
+            aliasEnd = end;
+            sources.add(member.name());
+        }
+        return sources;
+    }
+
+    String targetName(RollFamily family, RollFamily.Timeline timeline, DateTimeFormatter formatter, String oldest) {
+        long generation = RollFamily.parseGeneration(formatter, oldest);
+        if (generation != RollFamily.NO_GENERATION)
+            return sequenceTargetName(family, timeline, oldest, generation);
+
+        long time = RollFamily.parseTimestamp(formatter, oldest);
+        String target = rollAction.previousIndexName(family.prefix(), formatter, time);
+        long targetTime = RollFamily.parseTimestamp(formatter, target);
+        for (int i = 0; i < timeline.size() && !timeline.get(i).name().equals(oldest); i++) {
+            if (timeline.time(i) != RollFamily.NO_TIME && timeline.time(i) >= targetTime)
+                throw new IllegalStateException("no name for the compacted index between " + timeline.get(i).name()
+                        + " and " + oldest);
+        }
+        if (family.member(target) != null)
+            throw new IllegalStateException("index " + target + " already exists");
+        return target;
+    }
+
+    /**
+     * @return the name of the oldest source with the previous generation
+     */
+    String sequenceTargetName(RollFamily family, RollFamily.Timeline timeline, String oldest, long generation) {
+        if (generation == 0)
+            throw new IllegalStateException("no generation for the compacted index before " + oldest);
+        String target = oldest.substring(0, oldest.lastIndexOf('_') + 1) + RollFamily.formatGeneration(generation - 1);
+        for (int i = 0; i < timeline.size() && !timeline.get(i).name().equals(oldest); i++) {
+            if (timeline.generation(i) >= generation - 1)
+                throw new IllegalStateException("no name for the compacted index between " + timeline.get(i).name()
+                        + " and " + oldest);
+        }
+        if (family.member(target) != null)
+            throw new IllegalStateException("index " + target + " already exists");
+        return target;
+    }
+
+    /**
+     * Creates the target index with the mappings of the source indices and the settings of the
+     * newest one, so that it stays on the nodes and keeps the profile of the sources.
+     */
+    void create(final RollCompactRequest request, final List<String> sources, final String target,
+            final ActionListener<Object> listener) {
+        client.admin().cluster().state(rollAction.metaDataRequest(sources.toArray(new String[sources.size()])),
+                new StepListener<ClusterStateResponse>(listener) {
+                    @Override void run(ClusterStateResponse response) throws Exception {
+                        CreateIndexRequest createRequest = RollAction.copy(request.createIndexRequest()).index(target);
+                        Settings newest = response.getState().metaData().index(sources.get(sources.size() - 1)).
+                                settings();
+                        createRequest.settings(RollAction.indexSettings(request.indexSettings(),
+                                sourceSettings(newest)));
+                        List<String> types = new ArrayList<String>();
+                        for (String source : sources) {
+                            IndexMetaData index = response.getState().metaData().index(source);
+                            for (ObjectCursor<MappingMetaData> mapping : index.mappings().values()) {
+                                if (types.contains(mapping.value.type()))
+                                    continue;
+                                types.add(mapping.value.type());
+                                createRequest.mapping(mapping.value.type(), mapping.value.source().string());
+                            }
+                        }
+                        client.admin().indices().create(createRequest, new StepListener<CreateIndexResponse>(listener) {
+                            @Override void run(CreateIndexResponse response) {
+                                listener.onResponse(response);
+                            }
+                        });
+                    }
+                });
+    }
+
+    /**
+     * @return the settings of a source without its number of shards, write block, identity and
+     * roll bookkeeping
+     */
+    static Settings sourceSettings(Settings source) {
+        ImmutableSettings.Builder builder = ImmutableSettings.settingsBuilder();
+        for (Map.Entry<String, String> e : source.getAsMap().entrySet()) {
+            String key = e.getKey();
+            if (!key.equals(IndexMetaData.SETTING_NUMBER_OF_SHARDS) && !key.startsWith("index.blocks.")
+                    && !key.startsWith("index.version.") && !key.equals("index.uuid")
+                    && !key.equals("index.creation_date") && !key.startsWith("index.rollindex."))
+                builder.put(key, e.getValue());
+        }
+        return builder.build();
+    }
+
+    /**
+     * Copies the source indices, request.slices() at a time, and compares the document counts.
+     *
+     * @return the number of copied documents
+     */
+    void copy(final RollCompactRequest request, final List<String> sources, final String target,
+            final ActionListener<Long> listener) {
+        final AtomicLong expected = new AtomicLong();
+        final AtomicInteger next = new AtomicInteger();
+        final CountDown countDown = new CountDown(sources.size());
+        final ActionListener<Object> verifyListener = new StepListener<Object>(listener) {
+            @Override void run(Object o) {
+                verify(sources, target, expected.get(), listener);
+            }
+        };
+        ActionListener<Long> sourceListener = new ActionListener<Long>() {
+            @Override public void onResponse(Long docs) {
+                expected.addAndGet(docs);
+                if (countDown.countDown()) {
+                    verifyListener.onResponse(null);
+                    return;
+                }
+                int i = next.getAndIncrement();
+                if (i < sources.size())
+                    copy(request, sources.get(i), target, this);
+            }
+
+            @Override public void onFailure(Throwable t) {
+                if (countDown.fastForward())
+                    verifyListener.onFailure(t);
+            }
+        };
+        for (int i = 0; i < Math.min(request.slices(), sources.size()); i++) {
+            copy(request, sources.get(next.getAndIncrement()), target, sourceListener);
+        }
+    }
+
+    /**
+     * Copies one index with a scan and one bulk request per page.
+     *
+     * @return the number of documents in the source index
+     */
+    void copy(final RollCompactRequest request, final String source, final String target,
+            final ActionListener<Long> listener) {
+        client.admin().indices().refresh(new RefreshRequest(source), new StepListener<RefreshResponse>(listener) {
+            @Override void run(RefreshResponse response) {
+                client.prepareSearch(source).setSearchType(SearchType.SCAN).setScroll(SCROLL).
+                        setQuery(QueryBuilders.matchAllQuery()).setSize(request.scrollSize()).
+                        addFields("_source", "_routing", "_parent").
+                        execute(new StepListener<SearchResponse>(listener) {
+                            @Override void run(SearchResponse response) {
+                                scroll(response.getScrollId(), target, response.getHits().getTotalHits(), listener);
+                            }
+                        });
+            }
+        });
+    }
+
+    void scroll(String scrollId, final String target, final long docs, final ActionListener<Long> listener) {
+        client.prepareSearchScroll(scrollId).setScroll(SCROLL).execute(new StepListener<SearchResponse>(listener) {
+            @Override void run(final SearchResponse response) {
+                if (response.getHits().getHits().length == 0) {
+                    listener.onResponse(docs);
+                    return;
+                }
+                BulkRequest bulk = new BulkRequest();
+                for (SearchHit hit : response.getHits()) {
+                    IndexRequest indexRequest = new IndexRequest(target, hit.getType(), hit.getId()).
+                            source(hit.sourceRef(), false);
+                    SearchHitField routing = hit.field("_routing");
+                    if (routing != null)
+                        indexRequest.routing(routing.<String>getValue());
+                    SearchHitField parent = hit.field("_parent");
+                    if (parent != null)
+                        indexRequest.parent(parent.<String>getValue());
+                    bulk.add(indexRequest);
+                }
+                client.bulk(bulk, new StepListener<BulkResponse>(listener) {
+                    @Override void run(BulkResponse bulkResponse) {
+                        if (bulkResponse.hasFailures())
+                            throw new IllegalStateException("copying into " + target + " failed: "
+                                    + bulkResponse.buildFailureMessage());
+                        scroll(response.getScrollId(), target, docs, listener);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Counts the sources again and the target. A write into the sources which raced with the
+     * write block changes the count of the sources.
+     */
+    void verify(final List<String> sources, final String target, final long expected,
+            final ActionListener<Long> listener) {
+        final String[] indices = sources.toArray(new String[sources.size() + 1]);
+        indices[sources.size()] = target;
+        client.admin().indices().refresh(new RefreshRequest(indices), new StepListener<RefreshResponse>(listener) {
+            @Override void run(RefreshResponse response) {
+                client.prepareCount(sources.toArray(new String[sources.size()])).
+                        execute(new StepListener<CountResponse>(listener) {
+                            @Override void run(CountResponse response) {
+                                if (response.getCount() != expected)
+                                    throw new IllegalStateException(sources + " contain " + response.getCount()
+                                            + " documents instead of the " + expected + " copied into " + target
+                                            + ", the sources were kept");
+                                countTarget(sources, target, expected, listener);
+                            }
+                        });
+            }
+        });
+    }
+
+    void countTarget(final List<String> sources, final String target, final long expected,
+            final ActionListener<Long> listener) {
+        client.prepareCount(target).execute(new StepListener<CountResponse>(listener) {
+            @Override void run(CountResponse response) {
+                if (response.getCount() != expected)
+                    throw new IllegalStateException(target + " contains " + response.getCount()
+                            + " documents instead of " + expected + " of " + sources
+                            + ", the sources were kept");
+                listener.onResponse(expected);
+            }
+        });
+    }
+
+    /**
+     * Blocks or allows writes into the specified indices.
+     */
+    void blockWrites(List<String> indices, boolean block, final ActionListener<Object> listener) {
+        if (indices.isEmpty()) {
+            listener.onResponse(null);
+            return;
+        }
+        client.admin().indices().updateSettings(new UpdateSettingsRequest(indices.toArray(new String[indices.size()])).
+                settings(ImmutableSettings.settingsBuilder().put("index.blocks.write", block)),
+                new StepListener<UpdateSettingsResponse>(listener) {
+                    @Override void run(UpdateSettingsResponse response) {
+                        listener.onResponse(response);
+                    }
+                });
+    }
+
+    /**
+     * Replaces the sources with the target in the alias.
+     */
+    void swap(String alias, List<String> sources, String target, final ActionListener<Object> listener) {
+        IndicesAliasesRequest aliasesRequest = new IndicesAliasesRequest().addAlias(alias, target);
+        for (String source : sources) {
+            aliasesRequest.removeAlias(source, alias);
+        }
+        client.admin().indices().aliases(aliasesRequest, new StepListener<IndicesAliasesResponse>(listener) {
+            @Override void run(IndicesAliasesResponse response) {
+                listener.onResponse(response);
+            }
+        });
+    }
+
+    void deleteSources(final List<String> sources, final String target, final ActionListener<Object> listener) {
+        client.admin().indices().delete(new DeleteIndexRequest(sources.toArray(new String[sources.size()])),
+                new StepListener<DeleteIndexResponse>(listener) {
+                    @Override void run(DeleteIndexResponse response) {
+                        rollAction.demoter().idFilters().remove(sources);
+                        logger.info("compacted {} into {}", sources, target);
+                        listener.onResponse(response);
+                    }
+                });
+    }
+}
@@ -0,0 +1,108 @@
+package com.pannous.es.rollindex;
+
+import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+
+/**
+ * Merges the oldest consecutive indices of a family which are not searched via the search alias
+ * anymore into one index.
+ */
+public class RollCompactRequest {
+
+    private final String indexPrefix;
+    // the maximum number of indices merged into one
+    private int indices = 10;
+    private String indexTimestampPattern;
+    // the number of source indices copied in parallel
+    private int slices = 2;
+    private int scrollSize = 500;
+    private Settings indexSettings = ImmutableSettings.EMPTY;
+    private CreateIndexRequest createIndexRequest = new CreateIndexRequest("");
+
+    public RollCompactRequest(String indexPrefix) {
+        this.indexPrefix = indexPrefix;
+    }
+
+    public String indexPrefix() {
+        return indexPrefix;
+    }
+
+    public int indices() {
+        return indices;
+    }
+
+    public RollCompactRequest indices(int indices) {
+        this.indices = indices;
+        return this;
+    }
+
+    public String indexTimestampPattern() {
+        return indexTimestampPattern;
+    }
+
+    public RollCompactRequest indexTimestampPattern(String indexTimestampPattern) {
+        this.indexTimestampPattern = indexTimestampPattern;
+        return this;
+    }
+
+    public int slices() {
+        return slices;
+    }
+
+    public RollCompactRequest slices(int slices) {
+        this.slices = slices;
+        return this;
+    }
+
+    public int scrollSize() {
+        return scrollSize;
+    }
+
+    public RollCompactRequest scrollSize(int scrollSize) {
+        this.scrollSize = scrollSize;
+        return this;
+    }
+
+    public Settings indexSettings() {
+        return indexSettings;
+    }
+
+    /**
+     * The settings of the new index, e.g. its number of shards. The settings of the newest source
+     * like its node requirement and search profile win, the result replaces the settings of the
+     * create index request.
+     */
+    public RollCompactRequest indexSettings(Settings indexSettings) {
+        this.indexSettings = indexSettings;
+        return this;
+    }
+
+    /**
+     * @return the request for the aliases of the new index, the mappings are taken from the
+     * sources
+     */
+    public CreateIndexRequest createIndexRequest() {
+        return createIndexRequest;
+    }
+
+    public RollCompactRequest createIndexRequest(CreateIndexRequest createIndexRequest) {
+        this.createIndexRequest = createIndexRequest;
+        return this;
+    }
+
+    public void validate() {
+        if (indexPrefix == null || indexPrefix.isEmpty())
+            throw new IllegalArgumentException("indexPrefix missing");
+        if (indices < 2)
+            throw new IllegalArgumentException("at least 2 indices have to be compacted");
+        if (slices < 1)
+            throw new IllegalArgumentException("slices must be positive");
+        if (scrollSize < 1)
+            throw new IllegalArgumentException("scrollSize must be positive");
+    }
+
+    @Override public String toString() {
+        return indexPrefix + " compact:" + indices;
+    }
+}
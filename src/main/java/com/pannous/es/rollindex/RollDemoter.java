@@ -0,0 +1,244 @@
+package com.pannous.es.rollindex;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthRequest;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
+import org.elasticsearch.action.admin.cluster.reroute.ClusterRerouteRequest;
+import org.elasticsearch.action.admin.cluster.reroute.ClusterRerouteResponse;
+import org.elasticsearch.action.admin.indices.optimize.OptimizeRequest;
+import org.elasticsearch.action.admin.indices.optimize.OptimizeResponse;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.admin.indices.refresh.RefreshResponse;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequest;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+
+/**
+ * Demotes indices which left the feed alias, one index after the other: disables the refresh
+ * and lowers the replicas or applies the search profile, merges the segments, refreshes once,
+ * moves the index to the warm nodes, builds the filter of the document ids and blocks writes. As
+ * only one merge or relocation is requested at a time they do not compete with each other for
+ * disk, CPU and recovery bandwidth.
+ */
+public class RollDemoter extends AbstractComponent {
+
+    private static final int MAX_PROGRESS = 100;
+    private final Client client;
+    private final RollIdFilters idFilters;
+    private final TimeValue relocationTimeout;
+    private final Queue<Object[]> queue = new ConcurrentLinkedQueue<Object[]>();
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    // the state of the last demotions, the oldest are dropped
+    private final Map<String, Map<String, Object>> progress = new LinkedHashMap<String, Map<String, Object>>() {
+        @Override protected boolean removeEldestEntry(Map.Entry<String, Map<String, Object>> eldest) {
+            return size() > MAX_PROGRESS;
+        }
+    };
+
+    public RollDemoter(Settings settings, Client client) {
+        this(settings, client, new RollIdFilters(settings, client));
+    }
+
+    @Inject public RollDemoter(Settings settings, Client client, RollIdFilters idFilters) {
+        super(settings);
+        this.client = client;
+        this.idFilters = idFilters;
+        this.relocationTimeout = settings.getAsTime("rollindex.demotion.relocation_timeout",
+                TimeValue.timeValueMinutes(30));
+    }
+
+    /**
+     * Queues the demotion of the specified index and returns immediately.
+     */
+    public void demote(String index, Demotion demotion) {
+        progress(index, "queued", null);
+        queue.add(new Object[]{index, demotion});
+        next();
+    }
+
+    void next() {
+        if (!running.compareAndSet(false, true))
+            return;
+        Object[] task = queue.poll();
+        if (task == null) {
+            running.set(false);
+            // a task could have been queued after the poll but before the reset
+            if (!queue.isEmpty())
+                next();
+            return;
+        }
+        run((String) task[0], (Demotion) task[1]);
+    }
+
+    void run(final String index, final Demotion demotion) {
+        final ActionListener<Object> doneListener = new ActionListener<Object>() {
+            @Override public void onResponse(Object o) {
+                progress(index, "done", null);
+                finished();
+            }
+
+            @Override public void onFailure(Throwable t) {
+                logger.error("demotion of {} failed", t, index);
+                progress(index, "failed", ExceptionsHelper.detailedMessage(t));
+                finished();
+            }
+        };
+        final ActionListener<Object> blockListener = new StepListener<Object>(doneListener) {
+            @Override void run(Object o) {
+                // the updates routed via the id filter have to reach the index
+                if (!demotion.readOnly() || demotion.idFilter()) {
+                    doneListener.onResponse(null);
+                    return;
+                }
+                progress(index, "readOnly", null);
+                updateSettings(index, ImmutableSettings.settingsBuilder().put("index.blocks.write", true),
+                        doneListener);
+            }
+        };
+        final ActionListener<Object> filterListener = new StepListener<Object>(doneListener) {
+            @Override void run(Object o) {
+                if (!demotion.idFilter()) {
+                    blockListener.onResponse(null);
+                    return;
+                }
+                progress(index, "idFilter", null);
+                idFilters.build(index, blockListener);
+            }
+        };
+        final ActionListener<Object> relocateListener = new StepListener<Object>(doneListener) {
+            @Override void run(Object o) {
+                if (demotion.requireAttribute() == null) {
+                    filterListener.onResponse(null);
+                    return;
+                }
+                progress(index, "relocating", null);
+                String[] require = Demotion.splitAttribute(demotion.requireAttribute());
+                ImmutableSettings.Builder settings = ImmutableSettings.settingsBuilder();
+                if (demotion.releaseAttribute() != null) {
+                    // the index would require both tiers and could not be allocated anywhere
+                    settings.put(Demotion.splitAttribute(demotion.releaseAttribute())[0], "");
+                }
+                updateSettings(index, settings.put(require[0], require[1]),
+                        new StepListener<Object>(doneListener) {
+                            @Override void run(Object o) {
+                                waitForRelocation(index, filterListener);
+                            }
+                        });
+            }
+        };
+        final ActionListener<Object> refreshListener = new StepListener<Object>(doneListener) {
+            @Override void run(Object o) {
+                if (!demotion.disableRefresh() && demotion.maxNumSegments() < 1) {
+                    relocateListener.onResponse(null);
+                    return;
+                }
+                // the refresh is disabled, make the last documents and the merged segments visible once
+                client.admin().indices().refresh(new RefreshRequest(index),
+                        new StepListener<RefreshResponse>(doneListener) {
+                            @Override void run(RefreshResponse response) {
+                                relocateListener.onResponse(null);
+                            }
+                        });
+            }
+        };
+        final ActionListener<Object> mergeListener = new StepListener<Object>(doneListener) {
+            @Override void run(Object o) {
+                if (demotion.maxNumSegments() < 1) {
+                    refreshListener.onResponse(null);
+                    return;
+                }
+                progress(index, "merging", null);
+                client.admin().indices().optimize(new OptimizeRequest(index).maxNumSegments(demotion.maxNumSegments()).
+                        waitForMerge(true), new StepListener<OptimizeResponse>(doneListener) {
+                            @Override void run(OptimizeResponse response) {
+                                refreshListener.onResponse(null);
+                            }
+                        });
+            }
+        };
+
+        ImmutableSettings.Builder settings = ImmutableSettings.settingsBuilder();
+        if (demotion.disableRefresh())
+            settings.put("index.refresh_interval", "-1");
+        if (demotion.replicas() >= 0)
+            settings.put("index.number_of_replicas", demotion.replicas());
+        settings.put(demotion.settings());
+        if (settings.internalMap().isEmpty()) {
+            mergeListener.onResponse(null);
+        } else {
+            progress(index, "settings", null);
+            updateSettings(index, settings, mergeListener);
+        }
+    }
+
+    /**
+     * Waits until the shards of the index moved so that the next relocation does not compete
+     * with this one for the recovery bandwidth. The index moves on even after the timeout.
+     */
+    void waitForRelocation(final String index, final ActionListener<Object> listener) {
+        ClusterRerouteRequest rerouteRequest = new ClusterRerouteRequest();
+        client.admin().cluster().reroute(rerouteRequest, new StepListener<ClusterRerouteResponse>(listener) {
+            @Override void run(ClusterRerouteResponse response) {
+                client.admin().cluster().health(new ClusterHealthRequest(index).waitForRelocatingShards(0).
+                        timeout(relocationTimeout), new StepListener<ClusterHealthResponse>(listener) {
+                            @Override void run(ClusterHealthResponse response) {
+                                if (response.isTimedOut())
+                                    logger.warn("shards of {} still relocating after {}", index, relocationTimeout);
+                                listener.onResponse(response);
+                            }
+                        });
+            }
+        });
+    }
+
+    void updateSettings(String index, ImmutableSettings.Builder settings, final ActionListener<Object> listener) {
+        client.admin().indices().updateSettings(new UpdateSettingsRequest(index).settings(settings),
+                new StepListener<UpdateSettingsResponse>(listener) {
+                    @Override void run(UpdateSettingsResponse response) {
+                        listener.onResponse(response);
+                    }
+                });
+    }
+
+    public RollIdFilters idFilters() {
+        return idFilters;
+    }
+
+    void finished() {
+        running.set(false);
+        next();
+    }
+
+    void progress(String index, String phase, String error) {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("phase", phase);
+        map.put("time", System.currentTimeMillis());
+        if (error != null)
+            map.put("error", error);
+        synchronized (progress) {
+            progress.remove(index);
+            progress.put(index, map);
+        }
+    }
+
+    /**
+     * @return the phase of the last demotions per index
+     */
+    public Map<String, Object> progress() {
+        synchronized (progress) {
+            return new LinkedHashMap<String, Object>(progress);
+        }
+    }
+}
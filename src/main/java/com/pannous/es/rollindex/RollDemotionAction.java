@@ -0,0 +1,33 @@
+package com.pannous.es.rollindex;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+
+/**
+ * Shows the progress of the demotions started on this node:
+ *
+ * curl 'localhost:9200/_rollindex/_demotion'
+ */
+public class RollDemotionAction extends BaseRestHandler {
+
+    private final RollDemoter demoter;
+
+    @Inject public RollDemotionAction(Settings settings, Client client, RestController controller,
+            RollDemoter demoter) {
+        super(settings, client);
+        this.demoter = demoter;
+
+        controller.registerHandler(GET, "/_rollindex/_demotion", this);
+    }
+
+    @Override public void handleRequest(RestRequest request, RestChannel channel) {
+        new RestMapListener(request, channel).onResponse(demoter.progress());
+    }
+}
@@ -0,0 +1,454 @@
+package com.pannous.es.rollindex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.elasticsearch.cluster.metadata.AliasMetaData;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.collect.ImmutableOpenMap;
+import org.elasticsearch.common.hppc.cursors.ObjectCursor;
+import org.elasticsearch.common.joda.time.Chronology;
+import org.elasticsearch.common.joda.time.DateTimeUtils;
+import org.elasticsearch.common.joda.time.format.DateTimeFormatter;
+import org.elasticsearch.common.joda.time.format.DateTimeParserBucket;
+import org.elasticsearch.common.settings.Settings;
+
+/**
+ * An immutable view of all indices of one prefix together with their aliases. The indices
+ * sorted by the time in their name are computed once per pattern and cached.
+ */
+public class RollFamily {
+
+    public static final String FEED = "_feed";
+    public static final String SEARCH = "_search";
+    // helper alias to fetch all indices which are available to roll
+    public static final String ROLL = "_roll";
+    public static final String CLOSED = "_closed";
+    public static final String STANDBY = "_standby";
+    // marks the indices which were closed by a roll, so that they can be reopened for a search
+    public static final String ARCHIVED = "_archived";
+    // marks the indices which a roll retired until they are deleted or closed, see RollSweeper
+    public static final String EXPIRED = "_expired";
+    static final String[] ALIAS_ENDS = new String[]{FEED, SEARCH, ROLL, CLOSED, STANDBY, ARCHIVED, EXPIRED};
+    /**
+     * The time a promoted standby index started to take the feed. Its name carries the time of its
+     * creation, which is older.
+     */
+    public static final String START = "index.rollindex.start";
+    /**
+     * The time the stored id filter of the index was built, see RollIdFilters.
+     */
+    public static final String ID_FILTER = "index.rollindex.idfilter";
+    /**
+     * The timestamp of indices with a name not matching the pattern. They are treated as oldest.
+     */
+    public static final long NO_TIME = Long.MIN_VALUE;
+    /**
+     * The generation of indices without a sequence number at the end of their name.
+     */
+    public static final long NO_GENERATION = -1;
+    // the minimum number of digits of a generation, more digits would overflow a long
+    static final int GENERATION_DIGITS = 6;
+    private static final int MAX_GENERATION_DIGITS = 18;
+
+    private final String prefix;
+    private final Map<String, Member> members;
+    private final ConcurrentMap<String, Timeline> timelines = new ConcurrentHashMap<String, Timeline>();
+
+    RollFamily(String prefix, Map<String, Member> members) {
+        this.prefix = prefix;
+        this.members = Collections.unmodifiableMap(members);
+    }
+
+    /**
+     * Collects all indices which have one of the aliases of the specified prefix.
+     */
+    public static RollFamily create(MetaData metaData, String prefix) {
+        Map<String, Member> members = new HashMap<String, Member>();
+        for (String end : ALIAS_ENDS) {
+            ImmutableOpenMap<String, AliasMetaData> indices = metaData.aliases().get(prefix + end);
+            if (indices == null)
+                continue;
+            for (ObjectCursor<String> index : indices.keys()) {
+                if (!members.containsKey(index.value))
+                    members.put(index.value, new Member(metaData.index(index.value), prefix));
+            }
+        }
+        return new RollFamily(prefix, members);
+    }
+
+    /**
+     * @return the prefixes of all families the specified index belongs to
+     */
+    static Set<String> prefixes(IndexMetaData index) {
+        Set<String> prefixes = new HashSet<String>(2);
+        for (ObjectCursor<String> alias : index.aliases().keys()) {
+            for (String end : ALIAS_ENDS) {
+                if (alias.value.endsWith(end) && alias.value.length() > end.length())
+                    prefixes.add(alias.value.substring(0, alias.value.length() - end.length()));
+            }
+        }
+        return prefixes;
+    }
+
+    public String prefix() {
+        return prefix;
+    }
+
+    public boolean isEmpty() {
+        return members.isEmpty();
+    }
+
+    public Collection<Member> members() {
+        return members.values();
+    }
+
+    public Member member(String index) {
+        return members.get(index);
+    }
+
+    /**
+     * @return the current feed index or null
+     */
+    public String feedIndex() {
+        for (Member m : members.values()) {
+            if (m.is(FEED))
+                return m.name();
+        }
+        return null;
+    }
+
+    /**
+     * @return the highest generation of all members or NO_GENERATION
+     */
+    public long maxGeneration(DateTimeFormatter formatter) {
+        long max = NO_GENERATION;
+        for (Member m : members.values()) {
+            max = Math.max(max, parseGeneration(formatter, m.name()));
+        }
+        return max;
+    }
+
+    /**
+     * @param key identifies the formatter, e.g. its pattern
+     */
+    public Timeline timeline(String key, DateTimeFormatter formatter) {
+        Timeline timeline = timelines.get(key);
+        if (timeline == null) {
+            timeline = new Timeline(this, formatter);
+            timelines.putIfAbsent(key, timeline);
+        }
+        return timeline;
+    }
+
+    /**
+     * Parses the time of the index name after the first underscore without throwing exceptions
+     * for names which do not match.
+     *
+     * @return the time in milliseconds or NO_TIME
+     */
+    public static long parseTimestamp(DateTimeFormatter formatter, String index) {
+        int pos = index.indexOf("_");
+        if (pos < 0)
+            return NO_TIME;
+        long time = parseText(formatter, index.substring(pos + 1));
+        // a sequence named index can have the time before its generation
+        int genPos = index.lastIndexOf('_');
+        if (time == NO_TIME && genPos > pos && parseDigits(index) != NO_GENERATION)
+            time = parseText(formatter, index.substring(pos + 1, genPos));
+        return time;
+    }
+
+    private static long parseText(DateTimeFormatter formatter, String text) {
+        Chronology chrono = DateTimeUtils.getChronology(formatter.getChronology());
+        if (formatter.getZone() != null)
+            chrono = chrono.withZone(formatter.getZone());
+        DateTimeParserBucket bucket = new DateTimeParserBucket(0, chrono, formatter.getLocale(),
+                formatter.getPivotYear(), formatter.getDefaultYear());
+        int newPos = formatter.getParser().parseInto(bucket, text, 0);
+        if (newPos < text.length())
+            return NO_TIME;
+        try {
+            return bucket.computeMillis(true, text);
+        } catch (IllegalArgumentException ex) {
+            return NO_TIME;
+        }
+    }
+
+    /**
+     * Reads the zero padded number after the last underscore. A name which is a timestamp of the
+     * formatter has no generation, e.g. tweets_201401011200 for the pattern yyyyMMddHHmm.
+     *
+     * @return the generation, e.g. 42 for tweets_000042 or tweets_2014-01-01_000042, or NO_GENERATION
+     */
+    public static long parseGeneration(DateTimeFormatter formatter, String index) {
+        int pos = index.indexOf("_");
+        if (pos < 0)
+            return NO_GENERATION;
+        String text = index.substring(pos + 1);
+        long time = parseText(formatter, text);
+        // only a name printed by the formatter is a timestamp, the generation 000042 is no date of yyyyMMdd
+        if (time != NO_TIME && text.equals(formatter.print(time)))
+            return NO_GENERATION;
+        return parseDigits(index);
+    }
+
+    private static long parseDigits(String index) {
+        int pos = index.lastIndexOf('_');
+        int digits = index.length() - pos - 1;
+        if (pos < 0 || digits < GENERATION_DIGITS || digits > MAX_GENERATION_DIGITS)
+            return NO_GENERATION;
+        long generation = 0;
+        for (int i = pos + 1; i < index.length(); i++) {
+            char c = index.charAt(i);
+            if (c < '0' || c > '9')
+                return NO_GENERATION;
+            generation = generation * 10 + c - '0';
+        }
+        return generation;
+    }
+
+    /**
+     * @return the generation padded with zeros to GENERATION_DIGITS digits
+     */
+    public static String formatGeneration(long generation) {
+        StringBuilder sb = new StringBuilder(GENERATION_DIGITS);
+        String str = Long.toString(generation);
+        for (int i = str.length(); i < GENERATION_DIGITS; i++) {
+            sb.append('0');
+        }
+        return sb.append(str).toString();
+    }
+
+    @Override public String toString() {
+        return prefix + " " + members.keySet();
+    }
+
+    /**
+     * One index of the family.
+     */
+    public static class Member {
+
+        private final String name;
+        private final Set<String> aliasEnds = new HashSet<String>(4);
+        private final boolean open;
+        private final int shards;
+        private final int replicas;
+        private final long start;
+        private final long idFilter;
+        private final Settings settings;
+
+        Member(IndexMetaData index, String prefix) {
+            this.name = index.index();
+            for (ObjectCursor<String> alias : index.aliases().keys()) {
+                if (alias.value.startsWith(prefix))
+                    aliasEnds.add(alias.value.substring(prefix.length()));
+            }
+            this.open = index.state() == IndexMetaData.State.OPEN;
+            this.shards = index.numberOfShards();
+            this.replicas = index.numberOfReplicas();
+            this.start = index.settings().getAsLong(START, NO_TIME);
+            this.idFilter = index.settings().getAsLong(ID_FILTER, NO_TIME);
+            this.settings = index.settings();
+        }
+
+        public String name() {
+            return name;
+        }
+
+        /**
+         * @param aliasEnd e.g. RollFamily.FEED
+         */
+        public boolean is(String aliasEnd) {
+            return aliasEnds.contains(aliasEnd);
+        }
+
+        public boolean isOpen() {
+            return open;
+        }
+
+        public int shards() {
+            return shards;
+        }
+
+        public int replicas() {
+            return replicas;
+        }
+
+        /**
+         * @return the recorded start of a promoted standby index or NO_TIME
+         */
+        public long start() {
+            return start;
+        }
+
+        /**
+         * @return the time the valid id filter of the index was built or NO_TIME
+         */
+        public long idFilter() {
+            return idFilter;
+        }
+
+        public Settings settings() {
+            return settings;
+        }
+
+        /**
+         * @return true if the index rejects writes, e.g. after a demotion with readOnly
+         */
+        public boolean writeBlocked() {
+            return settings.getAsBoolean("index.blocks.write", false);
+        }
+
+        @Override public String toString() {
+            return name + aliasEnds;
+        }
+    }
+
+    /**
+     * The members of a family, oldest first. Sequence named indices are sorted by their generation
+     * and are newer than all indices without generation, which are sorted by the time parsed from
+     * their names or by their recorded start. Indices with an unparseable name come first in the
+     * order of their names.
+     */
+    public static class Timeline {
+
+        private final Member[] members;
+        private final long[] times;
+        private final long[] generations;
+        // the start of the next newer index, i.e. the exclusive end of the time window
+        private final long[] ends;
+        // false if members without time are newer than members with time, e.g. sequence named ones
+        private final boolean timesSorted;
+
+        Timeline(RollFamily family, DateTimeFormatter formatter) {
+            int size = family.members.size();
+            final Map<Member, Long> timeMap = new HashMap<Member, Long>(size);
+            final Map<Member, Long> generationMap = new HashMap<Member, Long>(size);
+            Member[] tmp = family.members.values().toArray(new Member[size]);
+            for (Member m : tmp) {
+                timeMap.put(m, m.start() != NO_TIME ? m.start() : parseTimestamp(formatter, m.name()));
+                generationMap.put(m, parseGeneration(formatter, m.name()));
+            }
+            Arrays.sort(tmp, new Comparator<Member>() {
+                @Override public int compare(Member o1, Member o2) {
+                    int res = generationMap.get(o1).compareTo(generationMap.get(o2));
+                    if (res == 0 && generationMap.get(o1) == NO_GENERATION)
+                        res = timeMap.get(o1).compareTo(timeMap.get(o2));
+                    return res != 0 ? res : o1.name().compareTo(o2.name());
+                }
+            });
+            members = tmp;
+            times = new long[size];
+            generations = new long[size];
+            boolean sorted = true;
+            for (int i = 0; i < size; i++) {
+                times[i] = timeMap.get(members[i]);
+                generations[i] = generationMap.get(members[i]);
+                if (i > 0 && times[i] < times[i - 1])
+                    sorted = false;
+            }
+            timesSorted = sorted;
+            // standby indices contain no documents yet and do not end the window of the feed index
+            ends = new long[size];
+            long minStart = Long.MAX_VALUE;
+            for (int i = size - 1; i >= 0; i--) {
+                ends[i] = i < size - 1 && times[i] == times[i + 1] ? ends[i + 1] : minStart;
+                if (times[i] != NO_TIME && !members[i].is(STANDBY))
+                    minStart = times[i];
+            }
+        }
+
+        public int size() {
+            return members.length;
+        }
+
+        public Member get(int i) {
+            return members[i];
+        }
+
+        public long time(int i) {
+            return times[i];
+        }
+
+        /**
+         * @return the generation of the member or NO_GENERATION
+         */
+        public long generation(int i) {
+            return generations[i];
+        }
+
+        /**
+         * @return the start of the next newer index with a time or Long.MAX_VALUE
+         */
+        public long end(int i) {
+            return ends[i];
+        }
+
+        /**
+         * @return the members with the specified alias whose window [start, start of the next
+         * index) overlaps [from, to], newest first. Members without time always overlap.
+         */
+        public List<Member> overlapping(String aliasEnd, long from, long to) {
+            List<Member> list = new ArrayList<Member>();
+            for (int i = members.length - 1; i >= 0; i--) {
+                if (members[i].is(aliasEnd) && (times[i] == NO_TIME || times[i] <= to && ends[i] > from))
+                    list.add(members[i]);
+            }
+            return list;
+        }
+
+        /**
+         * @return the newest rolling member, except standby indices, which starts before or at the
+         * specified time, or null if the time is older than all members with a time. The member may
+         * be write blocked, see Member.writeBlocked
+         */
+        public Member containing(long time) {
+            if (!timesSorted) {
+                for (int i = times.length - 1; i >= 0; i--) {
+                    if (times[i] != NO_TIME && times[i] <= time && members[i].is(ROLL) && !members[i].is(STANDBY))
+                        return members[i];
+                }
+                return null;
+            }
+            // binary search for the last member which starts before or at the time
+            int low = 0;
+            int high = times.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (times[mid] <= time)
+                    low = mid + 1;
+                else
+                    high = mid - 1;
+            }
+            for (int i = high; i >= 0 && times[i] != NO_TIME; i--) {
+                if (members[i].is(ROLL) && !members[i].is(STANDBY))
+                    return members[i];
+            }
+            return null;
+        }
+
+        /**
+         * @return the members with the specified alias, newest first
+         */
+        public List<Member> newestFirst(String aliasEnd) {
+            List<Member> list = new ArrayList<Member>(members.length);
+            for (int i = members.length - 1; i >= 0; i--) {
+                if (members[i].is(aliasEnd))
+                    list.add(members[i]);
+            }
+            return list;
+        }
+    }
+}
@@ -0,0 +1,363 @@
+package com.pannous.es.rollindex;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
+import org.elasticsearch.action.admin.indices.create.CreateIndexResponse;
+import org.elasticsearch.action.admin.indices.mapping.put.PutMappingRequest;
+import org.elasticsearch.action.admin.indices.mapping.put.PutMappingResponse;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.admin.indices.refresh.RefreshResponse;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequest;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsResponse;
+import org.elasticsearch.action.count.CountResponse;
+import org.elasticsearch.action.delete.DeleteResponse;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.Base64;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.BytesStreamInput;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.BloomFilter;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.indices.IndexAlreadyExistsException;
+import org.elasticsearch.indices.IndexMissingException;
+import org.elasticsearch.search.SearchHit;
+
+/**
+ * A bloom filter of the document ids per rolled index. It is built once the index does not get
+ * new documents anymore and stored as document of type 'idfilter' in the '.rollindex' index, so
+ * that an update can be sent to the owning index without searching all indices. The time the filter
+ * was built is recorded in the index setting RollFamily.ID_FILTER and only a filter of this time is
+ * used, a late write into the index resets the setting via invalidate. The loaded filters are kept
+ * in memory up to rollindex.idfilter.cache_size bytes, the least recently used ones are dropped
+ * first and the filters of closed indices right away.
+ */
+public class RollIdFilters extends AbstractComponent {
+
+    public static final String TYPE = "idfilter";
+    private static final TimeValue SCROLL = TimeValue.timeValueMinutes(2);
+    // indices without stored filter are looked up again after this time
+    private static final long MISSING_TTL = 60 * 1000L;
+    private final Client client;
+    private final double fpp;
+    private final long cacheSize;
+    // in access order, so that the least recently used filter comes first
+    private final LinkedHashMap<String, Cached> cache = new LinkedHashMap<String, Cached>(16, 0.75f, true);
+    private long cachedBytes;
+
+    /**
+     * The filter of one build of an index or, if it was not found, the time it was looked up.
+     */
+    static class Cached {
+
+        final long built;
+        final BloomFilter filter;
+        final long lookedUp;
+
+        Cached(long built, BloomFilter filter, long lookedUp) {
+            this.built = built;
+            this.filter = filter;
+            this.lookedUp = lookedUp;
+        }
+
+        long sizeInBytes() {
+            return filter == null ? 0 : filter.getSizeInBytes();
+        }
+    }
+
+    @Inject public RollIdFilters(Settings settings, Client client) {
+        super(settings);
+        this.client = client;
+        this.fpp = settings.getAsDouble("rollindex.idfilter.fpp", 0.01);
+        this.cacheSize = settings.getAsBytesSize("rollindex.idfilter.cache_size",
+                new ByteSizeValue(64, ByteSizeUnit.MB)).bytes();
+    }
+
+    /**
+     * Reads all ids of the index with a scan and stores their filter. If the index got documents
+     * meanwhile the filter is invalidated right away.
+     */
+    public void build(final String index, final ActionListener<Object> listener) {
+        final long built = System.currentTimeMillis();
+        client.admin().indices().refresh(new RefreshRequest(index), new StepListener<RefreshResponse>(listener) {
+            @Override void run(RefreshResponse response) {
+                client.prepareSearch(index).setSearchType(SearchType.SCAN).setScroll(SCROLL).
+                        setQuery(QueryBuilders.matchAllQuery()).setSize(500).setNoFields().
+                        execute(new StepListener<SearchResponse>(listener) {
+                            @Override void run(SearchResponse response) {
+                                long docs = response.getHits().getTotalHits();
+                                BloomFilter filter = BloomFilter.create((int) Math.min(Integer.MAX_VALUE,
+                                        Math.max(1, docs)), fpp);
+                                scroll(index, response.getScrollId(), filter, built, docs, listener);
+                            }
+                        });
+            }
+        });
+    }
+
+    void scroll(final String index, String scrollId, final BloomFilter filter, final long built, final long docs,
+            final ActionListener<Object> listener) {
+        client.prepareSearchScroll(scrollId).setScroll(SCROLL).execute(new StepListener<SearchResponse>(listener) {
+            @Override void run(SearchResponse response) throws Exception {
+                if (response.getHits().getHits().length == 0) {
+                    store(index, filter, built, docs, listener);
+                    return;
+                }
+                for (SearchHit hit : response.getHits()) {
+                    filter.put(new BytesRef(hit.getId()));
+                }
+                scroll(index, response.getScrollId(), filter, built, docs, listener);
+            }
+        });
+    }
+
+    void store(final String index, final BloomFilter filter, final long built, final long docs,
+            final ActionListener<Object> listener) throws Exception {
+        BytesStreamOutput out = new BytesStreamOutput();
+        BloomFilter.writeTo(filter, out);
+        final XContentBuilder source = XContentFactory.jsonBuilder().startObject().
+                field("built", built).
+                field("docs", docs).
+                field("sizeInBytes", filter.getSizeInBytes()).
+                field("filter", out.bytes().toBytes()).endObject();
+        putMapping(new StepListener<Void>(listener) {
+            @Override void run(Void v) {
+                client.prepareIndex(RollPolicy.INDEX, TYPE, index).setSource(source).
+                        execute(new StepListener<IndexResponse>(listener) {
+                            @Override void run(IndexResponse response) {
+                                publish(index, filter, built, docs, listener);
+                            }
+                        });
+            }
+        });
+    }
+
+    /**
+     * Records the time of the stored filter in the index settings and counts the documents again.
+     * A late write which did not see the setting yet changed the count.
+     */
+    void publish(final String index, final BloomFilter filter, final long built, final long docs,
+            final ActionListener<Object> listener) {
+        updateSettings(index, built, new StepListener<UpdateSettingsResponse>(listener) {
+            @Override void run(UpdateSettingsResponse response) {
+                cache(index, new Cached(built, filter, 0));
+                RefreshRequest refreshRequest = new RefreshRequest(index);
+                client.admin().indices().refresh(refreshRequest, new StepListener<RefreshResponse>(listener) {
+                    @Override void run(RefreshResponse response) {
+                        client.prepareCount(index).execute(new StepListener<CountResponse>(listener) {
+                            @Override void run(CountResponse response) {
+                                if (response.getCount() == docs) {
+                                    logger.info("stored id filter of {} with {} docs and {} bytes", index, docs,
+                                            filter.getSizeInBytes());
+                                    listener.onResponse(response);
+                                    return;
+                                }
+                                logger.warn("{} got documents while its id filter was built, dropping the filter",
+                                        index);
+                                invalidate(Collections.singleton(index), new StepListener<Void>(listener) {
+                                    @Override void run(Void v) {
+                                        listener.onResponse(null);
+                                    }
+                                });
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Puts the mapping of the filter documents, so that the filter is stored as binary and not indexed.
+     */
+    void putMapping(final ActionListener<Void> listener) throws Exception {
+        final XContentBuilder mapping = XContentFactory.jsonBuilder().startObject().startObject(TYPE).
+                startObject("properties").
+                startObject("built").field("type", "long").endObject().
+                startObject("docs").field("type", "long").endObject().
+                startObject("sizeInBytes").field("type", "long").endObject().
+                startObject("filter").field("type", "binary").endObject().
+                endObject().endObject().endObject();
+        client.admin().indices().create(new CreateIndexRequest(RollPolicy.INDEX).mapping(TYPE, mapping),
+                new ActionListener<CreateIndexResponse>() {
+                    @Override public void onResponse(CreateIndexResponse response) {
+                        listener.onResponse(null);
+                    }
+
+                    @Override public void onFailure(Throwable t) {
+                        if (!(ExceptionsHelper.unwrapCause(t) instanceof IndexAlreadyExistsException)) {
+                            listener.onFailure(t);
+                            return;
+                        }
+                        client.admin().indices().putMapping(new PutMappingRequest(RollPolicy.INDEX).type(TYPE).
+                                source(mapping), new StepListener<PutMappingResponse>(listener) {
+                                    @Override void run(PutMappingResponse response) {
+                                        listener.onResponse(null);
+                                    }
+                                });
+                    }
+                });
+    }
+
+    /**
+     * Drops the filters of the specified indices before documents are written into them, they are
+     * searched from now on.
+     */
+    public void invalidate(final Collection<String> indices, final ActionListener<Void> listener) {
+        if (indices.isEmpty()) {
+            listener.onResponse(null);
+            return;
+        }
+        updateSettings(indices.toArray(new String[indices.size()]), RollFamily.NO_TIME,
+                new StepListener<UpdateSettingsResponse>(listener) {
+                    @Override void run(UpdateSettingsResponse response) {
+                        logger.info("invalidated id filters of {}", indices);
+                        remove(indices);
+                        listener.onResponse(null);
+                    }
+                });
+    }
+
+    void updateSettings(String index, long built, ActionListener<UpdateSettingsResponse> listener) {
+        updateSettings(new String[]{index}, built, listener);
+    }
+
+    void updateSettings(String[] indices, long built, ActionListener<UpdateSettingsResponse> listener) {
+        client.admin().indices().updateSettings(new UpdateSettingsRequest(indices).settings(
+                ImmutableSettings.settingsBuilder().put(RollFamily.ID_FILTER, built)), listener);
+    }
+
+    /**
+     * @param built the time of the filter recorded in the index settings, see RollFamily.Member.idFilter
+     * @return TRUE if the index might contain the id, FALSE if it does not and null if no filter
+     * of this time exists for the index
+     */
+    public void mightContain(final String index, final long built, final String id,
+            final ActionListener<Boolean> listener) {
+        if (built == RollFamily.NO_TIME) {
+            listener.onResponse(null);
+            return;
+        }
+        Cached cached;
+        synchronized (cache) {
+            cached = cache.get(index);
+        }
+        if (cached != null && cached.built == built) {
+            if (cached.filter != null) {
+                listener.onResponse(cached.filter.mightContain(new BytesRef(id)));
+                return;
+            }
+            if (System.currentTimeMillis() - cached.lookedUp < MISSING_TTL) {
+                listener.onResponse(null);
+                return;
+            }
+        }
+
+        client.prepareGet(RollPolicy.INDEX, TYPE, index).execute(new ActionListener<GetResponse>() {
+            @Override public void onResponse(GetResponse response) {
+                try {
+                    // the stored filter of another build is ignored
+                    Object stored = response.isExists() ? response.getSource().get("built") : null;
+                    if (!(stored instanceof Number) || ((Number) stored).longValue() != built) {
+                        cache(index, new Cached(built, null, System.currentTimeMillis()));
+                        listener.onResponse(null);
+                        return;
+                    }
+                    byte[] bytes = Base64.decode((String) response.getSource().get("filter"));
+                    BloomFilter filter = BloomFilter.readFrom(new BytesStreamInput(bytes, false));
+                    cache(index, new Cached(built, filter, 0));
+                    listener.onResponse(filter.mightContain(new BytesRef(id)));
+                } catch (Throwable t) {
+                    listener.onFailure(t);
+                }
+            }
+
+            @Override public void onFailure(Throwable t) {
+                if (ExceptionsHelper.unwrapCause(t) instanceof IndexMissingException) {
+                    cache(index, new Cached(built, null, System.currentTimeMillis()));
+                    listener.onResponse(null);
+                } else
+                    listener.onFailure(t);
+            }
+        });
+    }
+
+    /**
+     * Keeps the filter in memory and drops the least recently used ones beyond the cache size. A
+     * filter larger than the whole cache is not kept.
+     */
+    void cache(String index, Cached cached) {
+        synchronized (cache) {
+            Cached old = cache.put(index, cached);
+            if (old != null)
+                cachedBytes -= old.sizeInBytes();
+            cachedBytes += cached.sizeInBytes();
+            for (Iterator<Cached> it = cache.values().iterator(); cachedBytes > cacheSize && it.hasNext(); ) {
+                cachedBytes -= it.next().sizeInBytes();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops the loaded filters of closed indices, the stored filters are kept for a reopen.
+     */
+    public void evict(Iterable<String> indices) {
+        synchronized (cache) {
+            for (String index : indices) {
+                Cached old = cache.remove(index);
+                if (old != null)
+                    cachedBytes -= old.sizeInBytes();
+            }
+        }
+    }
+
+    /**
+     * Removes the filters of deleted indices.
+     */
+    public void remove(Iterable<String> indices) {
+        evict(indices);
+        for (final String index : indices) {
+            client.prepareDelete(RollPolicy.INDEX, TYPE, index).execute(new ActionListener<DeleteResponse>() {
+                @Override public void onResponse(DeleteResponse response) {
+                }
+
+                @Override public void onFailure(Throwable t) {
+                    if (!(ExceptionsHelper.unwrapCause(t) instanceof IndexMissingException))
+                        logger.warn("cannot remove id filter of {}", t, index);
+                }
+            });
+        }
+    }
+
+    Map<String, Cached> cache() {
+        synchronized (cache) {
+            return new LinkedHashMap<String, Cached>(cache);
+        }
+    }
+
+    long cachedBytes() {
+        synchronized (cache) {
+            return cachedBytes;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.pannous.es.rollindex;
+
+import org.elasticsearch.common.inject.AbstractModule;
+
+/**
+ * Binds the node level services of the plugin.
+ */
+public class RollIndexModule extends AbstractModule {
+
+    @Override protected void configure() {
+        bind(RollRegistry.class).asEagerSingleton();
+        bind(RollIdFilters.class).asEagerSingleton();
+        bind(RollDemoter.class).asEagerSingleton();
+        bind(RollReopener.class).asEagerSingleton();
+        bind(RollSweeper.class).asEagerSingleton();
+        bind(RollJournal.class).asEagerSingleton();
+        bind(RollTemplates.class).asEagerSingleton();
+        bind(RollStats.class).asEagerSingleton();
+        bind(RollScheduler.class).asEagerSingleton();
+    }
+}
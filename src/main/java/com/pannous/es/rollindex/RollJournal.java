@@ -0,0 +1,288 @@
+package com.pannous.es.rollindex;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.indices.IndexAlreadyExistsException;
+import org.elasticsearch.indices.IndexMissingException;
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * Records the steps of every roll in a document of type 'journal' per prefix in the '.rollindex'
+ * index. The first step claims the roll via the document version, so two nodes never roll the
+ * same prefix at the same time. A roll which did not reach the last step, e.g. due to a crash,
+ * is resumed by the next roll: it reuses the name of the new index instead of creating another one.
+ * The entry records the node of the roll, a roll of a node which left the cluster is resumed right away.
+ */
+public class RollJournal extends AbstractComponent {
+
+    public static final String TYPE = "journal";
+    public static final String PLANNED = "planned";
+    public static final String CREATED = "created";
+    public static final String SWAPPED = "swapped";
+    public static final String RETIRED = "retired";
+    private static final TimeValue AWAIT_INTERVAL = TimeValue.timeValueMillis(200);
+    private final Client client;
+    // null outside of a node, then the entries have no node and a running roll is not waited for
+    private final ClusterService clusterService;
+    private final ThreadPool threadPool;
+    private final TimeValue staleAfter;
+
+    public RollJournal(Settings settings, Client client) {
+        this(settings, client, null, null);
+    }
+
+    @Inject public RollJournal(Settings settings, Client client, ClusterService clusterService, ThreadPool threadPool) {
+        super(settings);
+        this.client = client;
+        this.clusterService = clusterService;
+        this.threadPool = threadPool;
+        this.staleAfter = settings.getAsTime("rollindex.journal.stale_after", TimeValue.timeValueMinutes(2));
+    }
+
+    /**
+     * The last recorded step of a prefix.
+     */
+    public static class Entry {
+
+        private final String step;
+        private final String newIndex;
+        private final long time;
+        private final boolean failed;
+        private final boolean resumable;
+        private final String node;
+        private final long version;
+        private boolean running;
+
+        Entry(Map<String, Object> source, long version) {
+            this.step = (String) source.get("step");
+            this.newIndex = (String) source.get("created");
+            this.time = ((Number) source.get("time")).longValue();
+            this.failed = Boolean.TRUE.equals(source.get("failed"));
+            this.resumable = !Boolean.FALSE.equals(source.get("resumable"));
+            this.node = (String) source.get("node");
+            this.version = version;
+        }
+
+        public String step() {
+            return step;
+        }
+
+        public String newIndex() {
+            return newIndex;
+        }
+
+        /**
+         * @return the id of the node which recorded the step or null
+         */
+        public String node() {
+            return node;
+        }
+
+        public long version() {
+            return version;
+        }
+
+        public boolean isOpen() {
+            return !RETIRED.equals(step);
+        }
+
+        /**
+         * @return true if another roll is working on the prefix right now: the entry is open, younger
+         * than rollindex.journal.stale_after and its node is still in the cluster
+         */
+        public boolean isRunning() {
+            return running;
+        }
+
+        /**
+         * @return the new index of an interrupted roll before its alias swap, otherwise null
+         */
+        public String resumableIndex() {
+            return resumable && (PLANNED.equals(step) || CREATED.equals(step)) ? newIndex : null;
+        }
+    }
+
+    /**
+     * Reads the entries of the specified prefixes with one request. The entries of prefixes which
+     * are rolled by another roll right now are marked as running, see {@link #await}.
+     *
+     * @return the entries per prefix, prefixes without entry are missing
+     */
+    public void read(final Collection<String> prefixes, final ActionListener<Map<String, Entry>> listener) {
+        final Map<String, Entry> entries = new HashMap<String, Entry>();
+        if (prefixes.isEmpty()) {
+            listener.onResponse(entries);
+            return;
+        }
+        MultiGetRequest request = new MultiGetRequest().realtime(true);
+        for (String prefix : prefixes) {
+            request.add(RollPolicy.INDEX, TYPE, prefix);
+        }
+        client.multiGet(request, new StepListener<MultiGetResponse>(listener) {
+            @Override void run(MultiGetResponse response) {
+                long now = System.currentTimeMillis();
+                for (MultiGetItemResponse item : response) {
+                    // the item fails if the .rollindex index does not exist yet
+                    if (item.isFailed() || !item.getResponse().isExists())
+                        continue;
+                    Entry entry = new Entry(item.getResponse().getSource(), item.getResponse().getVersion());
+                    entry.running = entry.isOpen() && !entry.failed && now - entry.time < staleAfter.millis()
+                            && isMember(entry.node);
+                    if (entry.isOpen() && !entry.running)
+                        logger.info("resuming roll of {} interrupted after step {}", item.getId(), entry.step);
+                    entries.put(item.getId(), entry);
+                }
+                listener.onResponse(entries);
+            }
+
+            @Override public void onFailure(Throwable t) {
+                if (ExceptionsHelper.unwrapCause(t) instanceof IndexMissingException)
+                    listener.onResponse(entries);
+                else
+                    listener.onFailure(t);
+            }
+        });
+    }
+
+    /**
+     * @return false if the node left the cluster
+     */
+    boolean isMember(String node) {
+        return node == null || clusterService == null || clusterService.state().nodes().nodeExists(node);
+    }
+
+    /**
+     * Waits until the running rolls of the specified prefixes finished, failed or became resumable
+     * because their node left the cluster. Fails right away outside of a node.
+     *
+     * @return the last entries of the prefixes
+     */
+    public void await(final Collection<String> prefixes, final ActionListener<Map<String, Entry>> listener) {
+        if (threadPool == null) {
+            listener.onFailure(new IllegalStateException("roll of " + prefixes + " in progress"));
+            return;
+        }
+        threadPool.schedule(AWAIT_INTERVAL, ThreadPool.Names.GENERIC, new Runnable() {
+            @Override public void run() {
+                read(prefixes, new StepListener<Map<String, Entry>>(listener) {
+                    @Override void run(Map<String, Entry> entries) {
+                        for (Entry entry : entries.values()) {
+                            if (entry.isRunning()) {
+                                await(prefixes, listener);
+                                return;
+                            }
+                        }
+                        listener.onResponse(entries);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Records the step of all plans with one bulk request. Fails if another roll recorded a step
+     * for one of the prefixes in between.
+     */
+    public void record(final List<RollPlan> plans, final String step, final ActionListener<Void> listener) {
+        record(plans, step, false, true, listener);
+    }
+
+    /**
+     * Keeps the last step of failed plans but marks them as resumable right away. If the new index
+     * already existed it belongs to someone else, e.g. a standby index, and the next roll must
+     * not take its name.
+     */
+    public void fail(List<RollPlan> plans, Throwable cause) {
+        // plans of the same roll share their step, unclaimed plans belong to another roll
+        final List<RollPlan> claimed = new ArrayList<RollPlan>();
+        String step = null;
+        for (RollPlan plan : plans) {
+            if (plan.journalStep() != null) {
+                claimed.add(plan);
+                step = plan.journalStep();
+            }
+        }
+        if (claimed.isEmpty())
+            return;
+        logger.warn("roll of {} failed after step {}", cause, prefixes(claimed), step);
+        boolean resumable = !(PLANNED.equals(step)
+                && ExceptionsHelper.unwrapCause(cause) instanceof IndexAlreadyExistsException);
+        record(claimed, step, true, resumable, new ActionListener<Void>() {
+            @Override public void onResponse(Void v) {
+            }
+
+            @Override public void onFailure(Throwable t) {
+                logger.warn("cannot record failed roll of {}", t, prefixes(claimed));
+            }
+        });
+    }
+
+    void record(final List<RollPlan> plans, final String step, boolean failed, boolean resumable,
+            final ActionListener<Void> listener) {
+        BulkRequest bulk = new BulkRequest();
+        long now = System.currentTimeMillis();
+        for (RollPlan plan : plans) {
+            Map<String, Object> source = new LinkedHashMap<String, Object>();
+            source.put("step", step);
+            source.put("time", now);
+            source.put("created", plan.getNewIndex());
+            source.put("failed", failed);
+            source.put("resumable", resumable);
+            if (clusterService != null)
+                source.put("node", clusterService.localNode().id());
+            source.put("delete", plan.getDeleteIndices());
+            source.put("close", plan.getCloseIndices());
+            IndexRequest request = new IndexRequest(RollPolicy.INDEX, TYPE, plan.getIndexPrefix()).source(source);
+            if (plan.journalVersion() < 0)
+                request.create(true);
+            else
+                request.version(plan.journalVersion());
+            bulk.add(request);
+        }
+        client.bulk(bulk, new StepListener<BulkResponse>(listener) {
+            @Override void run(BulkResponse response) {
+                String failure = null;
+                for (BulkItemResponse item : response) {
+                    RollPlan plan = plans.get(item.getItemId());
+                    if (item.isFailed()) {
+                        failure = "roll of " + plan.getIndexPrefix() + " was claimed by another roll: "
+                                + item.getFailureMessage();
+                        continue;
+                    }
+                    plan.journal(step, item.getVersion());
+                }
+                if (failure != null)
+                    throw new IllegalStateException(failure);
+                listener.onResponse(null);
+            }
+        });
+    }
+
+    static String prefixes(List<RollPlan> plans) {
+        StringBuilder sb = new StringBuilder();
+        for (RollPlan plan : plans) {
+            sb.append(plan.getIndexPrefix()).append(" ");
+        }
+        return sb.toString().trim();
+    }
+}
@@ -0,0 +1,278 @@
+package com.pannous.es.rollindex;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest;
+
+/**
+ * All changes of one roll, computed from a single cluster state snapshot. The alias changes are
+ * applied via one IndicesAliasesRequest so that the feed, search and roll aliases never show a
+ * half-rolled state.
+ */
+public class RollPlan {
+
+    private final String indexPrefix;
+    private final String newIndex;
+    private final List<String[]> addedAliases = new ArrayList<String[]>();
+    private final List<String[]> removedAliases = new ArrayList<String[]>();
+    private final List<String> deleteIndices = new ArrayList<String>();
+    private final List<String> closeIndices = new ArrayList<String>();
+    private final List<String> warmIndices = new ArrayList<String>();
+    private String oldFeedIndex;
+    private String previousIndex;
+    private String previousTemplateHash;
+    private String condition;
+    private boolean promotedStandby;
+    private boolean resumed;
+    // the last step recorded in the journal and the version of the journal entry, -1 if none exists
+    private String journalStep;
+    private long journalVersion = -1;
+    // the last rolled indices and their time window to size the shards of the new index
+    private final Map<String, Long> sizingWindows = new LinkedHashMap<String, Long>();
+    // 0 keeps the shards of the create index request
+    private int shards;
+    private String shardsReason;
+    // the milliseconds per roll phase, see RollStats
+    private final Map<String, Long> timings = new LinkedHashMap<String, Long>();
+
+    public RollPlan(String indexPrefix, String newIndex) {
+        this.indexPrefix = indexPrefix;
+        this.newIndex = newIndex;
+    }
+
+    public String getIndexPrefix() {
+        return indexPrefix;
+    }
+
+    public String getNewIndex() {
+        return newIndex;
+    }
+
+    public String getOldFeedIndex() {
+        return oldFeedIndex;
+    }
+
+    RollPlan oldFeedIndex(String oldFeedIndex) {
+        this.oldFeedIndex = oldFeedIndex;
+        return this;
+    }
+
+    /**
+     * @return the index created by the previous roll, i.e. the standby or the feed index, or null
+     */
+    public String getPreviousIndex() {
+        return previousIndex;
+    }
+
+    /**
+     * @return the template hash of the previous index or null if it was not created from a template
+     */
+    public String getPreviousTemplateHash() {
+        return previousTemplateHash;
+    }
+
+    RollPlan previousIndex(String previousIndex, String previousTemplateHash) {
+        this.previousIndex = previousIndex;
+        this.previousTemplateHash = previousTemplateHash;
+        return this;
+    }
+
+    /**
+     * @return the roll condition which fired or null if the roll was unconditional
+     */
+    public String getCondition() {
+        return condition;
+    }
+
+    RollPlan condition(String condition) {
+        this.condition = condition;
+        return this;
+    }
+
+    /**
+     * @return true if the new index is a prepared standby index and does not need to be created
+     */
+    public boolean isPromotedStandby() {
+        return promotedStandby;
+    }
+
+    RollPlan promotedStandby(boolean promotedStandby) {
+        this.promotedStandby = promotedStandby;
+        return this;
+    }
+
+    /**
+     * @return true if the new index was planned by an interrupted roll and might exist already
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    RollPlan resumed(boolean resumed) {
+        this.resumed = resumed;
+        return this;
+    }
+
+    String journalStep() {
+        return journalStep;
+    }
+
+    long journalVersion() {
+        return journalVersion;
+    }
+
+    RollPlan journal(String step, long version) {
+        this.journalStep = step;
+        this.journalVersion = version;
+        return this;
+    }
+
+    Map<String, Long> sizingWindows() {
+        return sizingWindows;
+    }
+
+    RollPlan sizingIndex(String index, long window) {
+        sizingWindows.put(index, window);
+        return this;
+    }
+
+    /**
+     * @return the number of shards picked for the new index or 0 if the request specifies them
+     */
+    public int getShards() {
+        return shards;
+    }
+
+    public String getShardsReason() {
+        return shardsReason;
+    }
+
+    RollPlan shards(int shards, String reason) {
+        this.shards = shards;
+        this.shardsReason = reason;
+        return this;
+    }
+
+    public Map<String, Long> timings() {
+        return timings;
+    }
+
+    /**
+     * Records the phase as finished now.
+     *
+     * @param started the value of System.nanoTime() when the phase started
+     */
+    RollPlan timing(String phase, long started) {
+        timings.put(phase, (System.nanoTime() - started) / 1000000);
+        return this;
+    }
+
+    RollPlan addAlias(String index, String alias) {
+        addedAliases.add(new String[]{index, alias});
+        return this;
+    }
+
+    RollPlan removeAlias(String index, String alias) {
+        removedAliases.add(new String[]{index, alias});
+        return this;
+    }
+
+    RollPlan deleteIndex(String index) {
+        deleteIndices.add(index);
+        return this;
+    }
+
+    RollPlan closeIndex(String index) {
+        closeIndices.add(index);
+        return this;
+    }
+
+    RollPlan warmIndex(String index) {
+        warmIndices.add(index);
+        return this;
+    }
+
+    /**
+     * @return the indices which left the hot tier and move to the warm nodes
+     */
+    public List<String> getWarmIndices() {
+        return warmIndices;
+    }
+
+    public List<String> getDeleteIndices() {
+        return deleteIndices;
+    }
+
+    public List<String> getCloseIndices() {
+        return closeIndices;
+    }
+
+    public boolean hasAliasChanges() {
+        return !addedAliases.isEmpty() || !removedAliases.isEmpty();
+    }
+
+    /**
+     * Appends all alias changes of this plan to the specified request. Several plans can share
+     * one request.
+     */
+    public IndicesAliasesRequest addTo(IndicesAliasesRequest request) {
+        for (String[] e : addedAliases) {
+            request.addAlias(e[1], e[0]);
+        }
+        for (String[] e : removedAliases) {
+            request.removeAlias(e[0], e[1]);
+        }
+        return request;
+    }
+
+    /**
+     * @return the indices which lost at least one alias, without the retired ones
+     */
+    String removedAliasIndices() {
+        StringBuilder sb = new StringBuilder();
+        String last = null;
+        for (String[] e : removedAliases) {
+            if (e[0].equals(last) || deleteIndices.contains(e[0]))
+                continue;
+            last = e[0];
+            sb.append(e[0]).append(" ");
+        }
+        return sb.toString().trim();
+    }
+
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("indexPrefix", indexPrefix);
+        map.put("created", newIndex);
+        map.put("promotedStandby", promotedStandby);
+        map.put("resumed", resumed);
+        if (!sizingWindows.isEmpty())
+            map.put("sizingIndices", new ArrayList<String>(sizingWindows.keySet()));
+        map.put("oldFeed", oldFeedIndex);
+        map.put("addAlias", toList(addedAliases));
+        map.put("removeAlias", toList(removedAliases));
+        map.put("delete", deleteIndices);
+        map.put("close", closeIndices);
+        map.put("warm", warmIndices);
+        return map;
+    }
+
+    private static List<Map<String, String>> toList(List<String[]> aliases) {
+        List<Map<String, String>> list = new ArrayList<Map<String, String>>(aliases.size());
+        for (String[] e : aliases) {
+            Map<String, String> m = new HashMap<String, String>(2);
+            m.put("index", e[0]);
+            m.put("alias", e[1]);
+            list.add(m);
+        }
+        return list;
+    }
+
+    @Override public String toString() {
+        return toMap().toString();
+    }
+}
@@ -0,0 +1,338 @@
+package com.pannous.es.rollindex;
+
+import static org.elasticsearch.common.xcontent.support.XContentMapValues.nodeBooleanValue;
+import static org.elasticsearch.common.xcontent.support.XContentMapValues.nodeIntegerValue;
+import static org.elasticsearch.common.xcontent.support.XContentMapValues.nodeLongValue;
+import static org.elasticsearch.common.xcontent.support.XContentMapValues.nodeStringValue;
+import static org.elasticsearch.common.xcontent.support.XContentMapValues.nodeTimeValue;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
+import org.elasticsearch.common.lucene.uid.Versions;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentFactory;
+
+/**
+ * A persisted description of a periodic roll. Stored as document of type 'policy' in the
+ * '.rollindex' index, the id is the name of the policy.
+ */
+public class RollPolicy {
+
+    public static final String INDEX = ".rollindex";
+    public static final String TYPE = "policy";
+
+    private final String name;
+    private String indexPrefix;
+    private TimeValue interval = TimeValue.timeValueHours(24);
+    private int searchIndices = 1;
+    private int rollIndices = 1;
+    // close, delete or alias
+    private String retention = "close";
+    private String indexTimestampPattern;
+    // timestamp, sequence or timestamp_sequence
+    private String indexNaming = "timestamp";
+    // settings and mappings of the new indices
+    private Map<String, Object> index;
+    // register the index property as template instead of sending it on every roll
+    private boolean useTemplate;
+    // optional roll conditions, see RollRequest
+    private long maxDocs = -1;
+    private ByteSizeValue maxPrimaryStoreSize;
+    private TimeValue maxAge;
+    private boolean standby;
+    private Demotion demotion;
+    private ShardSizing shardSizing;
+    private SettingsProfiles profiles;
+    private String hotNodeAttribute;
+    private String warmNodeAttribute;
+    private int hotIndices = -1;
+    private long lastRoll;
+    private String lastError;
+    private long version = Versions.MATCH_ANY;
+
+    public RollPolicy(String name) {
+        this.name = name;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public String indexPrefix() {
+        return indexPrefix;
+    }
+
+    public RollPolicy indexPrefix(String indexPrefix) {
+        this.indexPrefix = indexPrefix;
+        return this;
+    }
+
+    public TimeValue interval() {
+        return interval;
+    }
+
+    public RollPolicy interval(TimeValue interval) {
+        this.interval = interval;
+        return this;
+    }
+
+    public RollPolicy searchIndices(int searchIndices) {
+        this.searchIndices = searchIndices;
+        return this;
+    }
+
+    public RollPolicy rollIndices(int rollIndices) {
+        this.rollIndices = rollIndices;
+        return this;
+    }
+
+    public RollPolicy retention(String retention) {
+        if (!"close".equals(retention) && !"delete".equals(retention) && !"alias".equals(retention))
+            throw new IllegalArgumentException("retention must be close, delete or alias but was " + retention);
+        this.retention = retention;
+        return this;
+    }
+
+    public RollPolicy indexTimestampPattern(String indexTimestampPattern) {
+        this.indexTimestampPattern = indexTimestampPattern;
+        return this;
+    }
+
+    public RollPolicy indexNaming(String indexNaming) {
+        this.indexNaming = indexNaming;
+        return this;
+    }
+
+    public RollPolicy index(Map<String, Object> index) {
+        this.index = index;
+        return this;
+    }
+
+    public RollPolicy useTemplate(boolean useTemplate) {
+        this.useTemplate = useTemplate;
+        return this;
+    }
+
+    public RollPolicy maxDocs(long maxDocs) {
+        this.maxDocs = maxDocs;
+        return this;
+    }
+
+    public RollPolicy maxPrimaryStoreSize(ByteSizeValue maxPrimaryStoreSize) {
+        this.maxPrimaryStoreSize = maxPrimaryStoreSize;
+        return this;
+    }
+
+    public RollPolicy maxAge(TimeValue maxAge) {
+        this.maxAge = maxAge;
+        return this;
+    }
+
+    public RollPolicy standby(boolean standby) {
+        this.standby = standby;
+        return this;
+    }
+
+    public RollPolicy demotion(Demotion demotion) {
+        this.demotion = demotion;
+        return this;
+    }
+
+    public RollPolicy shardSizing(ShardSizing shardSizing) {
+        this.shardSizing = shardSizing;
+        return this;
+    }
+
+    public RollPolicy profiles(SettingsProfiles profiles) {
+        this.profiles = profiles;
+        return this;
+    }
+
+    public RollPolicy hotNodeAttribute(String hotNodeAttribute) {
+        this.hotNodeAttribute = hotNodeAttribute;
+        return this;
+    }
+
+    public RollPolicy warmNodeAttribute(String warmNodeAttribute) {
+        this.warmNodeAttribute = warmNodeAttribute;
+        return this;
+    }
+
+    public RollPolicy hotIndices(int hotIndices) {
+        this.hotIndices = hotIndices;
+        return this;
+    }
+
+    public long lastRoll() {
+        return lastRoll;
+    }
+
+    public RollPolicy lastRoll(long lastRoll) {
+        this.lastRoll = lastRoll;
+        return this;
+    }
+
+    public RollPolicy lastError(String lastError) {
+        this.lastError = lastError;
+        return this;
+    }
+
+    /**
+     * The version of the stored document, used to claim a due roll exactly once.
+     */
+    public long version() {
+        return version;
+    }
+
+    public RollPolicy version(long version) {
+        this.version = version;
+        return this;
+    }
+
+    public boolean isDue(long now) {
+        return now >= lastRoll + interval.millis();
+    }
+
+    public RollRequest toRollRequest() {
+        CreateIndexRequest createIndexRequest = new CreateIndexRequest("");
+        Settings indexSettings = ImmutableSettings.EMPTY;
+        String template = null;
+        try {
+            if (useTemplate) {
+                template = XContentFactory.jsonBuilder().map(index == null ? new HashMap<String, Object>() : index).
+                        string();
+            } else if (index != null) {
+                Map<String, Object> body = new HashMap<String, Object>(index);
+                indexSettings = RollAction.removeSettings(body);
+                createIndexRequest.source(body);
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        return new RollRequest(indexPrefix, rollIndices, searchIndices).
+                deleteAfterRoll("delete".equals(retention)).
+                closeAfterRoll("close".equals(retention)).
+                indexTimestampPattern(indexTimestampPattern).
+                indexNaming(indexNaming).
+                maxDocs(maxDocs).
+                maxPrimaryStoreSize(maxPrimaryStoreSize).
+                maxAge(maxAge).
+                standby(standby).
+                demotion(demotion).
+                shardSizing(shardSizing).
+                profiles(profiles).
+                hotNodeAttribute(hotNodeAttribute).
+                warmNodeAttribute(warmNodeAttribute).
+                hotIndices(hotIndices).
+                indexSettings(indexSettings).
+                createIndexRequest(createIndexRequest).
+                template(template);
+    }
+
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("indexPrefix", indexPrefix);
+        map.put("interval", interval.toString());
+        map.put("searchIndices", searchIndices);
+        map.put("rollIndices", rollIndices);
+        map.put("retention", retention);
+        if (indexTimestampPattern != null)
+            map.put("indexTimestampPattern", indexTimestampPattern);
+        if (!"timestamp".equals(indexNaming))
+            map.put("indexNaming", indexNaming);
+        if (maxDocs >= 0)
+            map.put("maxDocs", maxDocs);
+        if (maxPrimaryStoreSize != null)
+            map.put("maxPrimaryStoreSize", maxPrimaryStoreSize.toString());
+        if (maxAge != null)
+            map.put("maxAge", maxAge.toString());
+        if (standby)
+            map.put("standby", true);
+        if (demotion != null)
+            map.put("demotion", demotion.toMap());
+        if (shardSizing != null)
+            map.put("shardSizing", shardSizing.toMap());
+        if (profiles != null)
+            map.put("profiles", profiles.toMap());
+        if (hotNodeAttribute != null)
+            map.put("hotNodeAttribute", hotNodeAttribute);
+        if (warmNodeAttribute != null)
+            map.put("warmNodeAttribute", warmNodeAttribute);
+        if (hotIndices >= 0)
+            map.put("hotIndices", hotIndices);
+        if (index != null)
+            map.put("index", index);
+        if (useTemplate)
+            map.put("useTemplate", true);
+        map.put("lastRoll", lastRoll);
+        if (lastError != null)
+            map.put("lastError", lastError);
+        return map;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static RollPolicy parse(String name, Map<String, Object> source) {
+        RollPolicy policy = new RollPolicy(name);
+        for (Map.Entry<String, Object> e : source.entrySet()) {
+            String key = e.getKey();
+            Object value = e.getValue();
+            if ("indexPrefix".equals(key))
+                policy.indexPrefix(nodeStringValue(value, null));
+            else if ("interval".equals(key))
+                policy.interval(nodeTimeValue(value));
+            else if ("searchIndices".equals(key))
+                policy.searchIndices(nodeIntegerValue(value));
+            else if ("rollIndices".equals(key))
+                policy.rollIndices(nodeIntegerValue(value));
+            else if ("retention".equals(key))
+                policy.retention(nodeStringValue(value, null));
+            else if ("indexTimestampPattern".equals(key))
+                policy.indexTimestampPattern(nodeStringValue(value, null));
+            else if ("indexNaming".equals(key))
+                policy.indexNaming(nodeStringValue(value, null));
+            else if ("index".equals(key))
+                policy.index((Map<String, Object>) value);
+            else if ("useTemplate".equals(key))
+                policy.useTemplate(nodeBooleanValue(value));
+            else if ("maxDocs".equals(key))
+                policy.maxDocs(nodeLongValue(value));
+            else if ("maxPrimaryStoreSize".equals(key))
+                policy.maxPrimaryStoreSize(ByteSizeValue.parseBytesSizeValue(nodeStringValue(value, null)));
+            else if ("maxAge".equals(key))
+                policy.maxAge(nodeTimeValue(value));
+            else if ("standby".equals(key))
+                policy.standby(nodeBooleanValue(value));
+            else if ("demotion".equals(key))
+                policy.demotion(Demotion.parse((Map<String, Object>) value));
+            else if ("shardSizing".equals(key))
+                policy.shardSizing(ShardSizing.parse((Map<String, Object>) value));
+            else if ("profiles".equals(key))
+                policy.profiles(SettingsProfiles.parse((Map<String, Object>) value));
+            else if ("hotNodeAttribute".equals(key))
+                policy.hotNodeAttribute(nodeStringValue(value, null));
+            else if ("warmNodeAttribute".equals(key))
+                policy.warmNodeAttribute(nodeStringValue(value, null));
+            else if ("hotIndices".equals(key))
+                policy.hotIndices(nodeIntegerValue(value));
+            else if ("lastRoll".equals(key))
+                policy.lastRoll(nodeLongValue(value));
+            else if ("lastError".equals(key))
+                policy.lastError(nodeStringValue(value, null));
+            else
+                throw new IllegalArgumentException("unknown policy field " + key);
+        }
+        policy.toRollRequest().validate();
+        return policy;
+    }
+
+    @Override public String toString() {
+        return name + " " + toMap();
+    }
+}
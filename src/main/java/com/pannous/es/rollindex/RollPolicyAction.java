@@ -0,0 +1,153 @@
+package com.pannous.es.rollindex;
+
+import static org.elasticsearch.rest.RestRequest.Method.DELETE;
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+import static org.elasticsearch.rest.RestRequest.Method.POST;
+import static org.elasticsearch.rest.RestRequest.Method.PUT;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.delete.DeleteResponse;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.indices.IndexMissingException;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.search.SearchHit;
+
+/**
+ * CRUD endpoints for the roll policies executed by the {@link RollScheduler}:
+ *
+ * curl -XPUT 'localhost:9200/_rollindex/_policy/tweets' -d '{"indexPrefix":"tweets", "interval":"1d",
+ * "searchIndices":2, "rollIndices":3, "retention":"close"}'
+ */
+public class RollPolicyAction extends BaseRestHandler {
+
+    @Inject public RollPolicyAction(Settings settings, Client client, RestController controller) {
+        super(settings, client);
+
+        controller.registerHandler(PUT, "/_rollindex/_policy/{name}", this);
+        controller.registerHandler(POST, "/_rollindex/_policy/{name}", this);
+        controller.registerHandler(GET, "/_rollindex/_policy/{name}", this);
+        controller.registerHandler(GET, "/_rollindex/_policy", this);
+        controller.registerHandler(DELETE, "/_rollindex/_policy/{name}", this);
+    }
+
+    @Override public void handleRequest(RestRequest request, RestChannel channel) {
+        RestMapListener listener = new RestMapListener(request, channel);
+        try {
+            String name = request.param("name");
+            switch (request.method()) {
+                case GET:
+                    if (name == null)
+                        getPolicies(listener);
+                    else
+                        getPolicy(name, listener);
+                    break;
+                case DELETE:
+                    deletePolicy(name, listener);
+                    break;
+                default:
+                    if (!request.hasContent())
+                        throw new IllegalArgumentException("policy body missing");
+                    putPolicy(RollPolicy.parse(name, XContentHelper.convertToMap(request.content(), false).v2()),
+                            listener);
+            }
+        } catch (Throwable ex) {
+            listener.onFailure(ex);
+        }
+    }
+
+    /**
+     * Stores the policy but keeps the time of the last roll of an existing policy with the same
+     * name, so that an update does not trigger an additional roll.
+     */
+    public void putPolicy(final RollPolicy policy, final ActionListener<Map<String, Object>> listener) {
+        client.prepareGet(RollPolicy.INDEX, RollPolicy.TYPE, policy.name()).execute(new ActionListener<GetResponse>() {
+            @Override public void onResponse(GetResponse response) {
+                if (response.isExists())
+                    policy.lastRoll(RollPolicy.parse(policy.name(), response.getSourceAsMap()).lastRoll()).
+                            version(response.getVersion());
+                store();
+            }
+
+            @Override public void onFailure(Throwable t) {
+                if (ExceptionsHelper.unwrapCause(t) instanceof IndexMissingException)
+                    store();
+                else
+                    listener.onFailure(t);
+            }
+
+            void store() {
+                client.index(RollScheduler.policyRequest(policy).version(policy.version()),
+                        new StepListener<IndexResponse>(listener) {
+                            @Override void run(IndexResponse response) {
+                                Map<String, Object> map = new LinkedHashMap<String, Object>();
+                                map.put("acknowledged", true);
+                                map.put("name", policy.name());
+                                map.put("version", response.getVersion());
+                                listener.onResponse(map);
+                            }
+                        });
+            }
+        });
+    }
+
+    public void getPolicy(final String name, final ActionListener<Map<String, Object>> listener) {
+        client.prepareGet(RollPolicy.INDEX, RollPolicy.TYPE, name).execute(new StepListener<GetResponse>(listener) {
+            @Override void run(GetResponse response) {
+                if (!response.isExists())
+                    throw new IllegalArgumentException("policy " + name + " does not exist");
+                Map<String, Object> map = new LinkedHashMap<String, Object>();
+                map.put(name, RollPolicy.parse(name, response.getSourceAsMap()).toMap());
+                listener.onResponse(map);
+            }
+        });
+    }
+
+    public void getPolicies(final ActionListener<Map<String, Object>> listener) {
+        client.prepareSearch(RollPolicy.INDEX).setTypes(RollPolicy.TYPE).setSize(1000).
+                execute(new ActionListener<SearchResponse>() {
+                    @Override public void onResponse(SearchResponse response) {
+                        try {
+                            Map<String, Object> map = new LinkedHashMap<String, Object>();
+                            for (SearchHit hit : response.getHits()) {
+                                map.put(hit.getId(), RollPolicy.parse(hit.getId(), hit.sourceAsMap()).toMap());
+                            }
+                            listener.onResponse(map);
+                        } catch (Throwable t) {
+                            listener.onFailure(t);
+                        }
+                    }
+
+                    @Override public void onFailure(Throwable t) {
+                        if (ExceptionsHelper.unwrapCause(t) instanceof IndexMissingException)
+                            listener.onResponse(new LinkedHashMap<String, Object>());
+                        else
+                            listener.onFailure(t);
+                    }
+                });
+    }
+
+    public void deletePolicy(final String name, final ActionListener<Map<String, Object>> listener) {
+        client.prepareDelete(RollPolicy.INDEX, RollPolicy.TYPE, name).setRefresh(true).
+                execute(new StepListener<DeleteResponse>(listener) {
+                    @Override void run(DeleteResponse response) {
+                        Map<String, Object> map = new LinkedHashMap<String, Object>();
+                        map.put("acknowledged", true);
+                        map.put("found", response.isFound());
+                        listener.onResponse(map);
+                    }
+                });
+    }
+}
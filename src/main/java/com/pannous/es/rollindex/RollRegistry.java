@@ -0,0 +1,114 @@
+package com.pannous.es.rollindex;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.cluster.ClusterChangedEvent;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.ClusterStateListener;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.collect.ImmutableMap;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.hppc.cursors.ObjectCursor;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.gateway.GatewayService;
+
+/**
+ * Keeps the index families of all prefixes of the local cluster state in memory. On a metadata
+ * change only the families of the changed indices are rebuilt, so a roll does not need to fetch
+ * and scan the metadata.
+ */
+public class RollRegistry extends AbstractLifecycleComponent<RollRegistry> implements ClusterStateListener {
+
+    private final ClusterService clusterService;
+    private volatile ImmutableMap<String, RollFamily> families = ImmutableMap.of();
+    private volatile MetaData metaData;
+
+    @Inject public RollRegistry(Settings settings, ClusterService clusterService) {
+        super(settings);
+        this.clusterService = clusterService;
+    }
+
+    @Override protected void doStart() throws ElasticsearchException {
+        clusterService.add(this);
+    }
+
+    @Override protected void doStop() throws ElasticsearchException {
+        clusterService.remove(this);
+    }
+
+    @Override protected void doClose() throws ElasticsearchException {
+    }
+
+    @Override public void clusterChanged(ClusterChangedEvent event) {
+        if (metaData == null || event.metaDataChanged())
+            update(event.state().metaData());
+    }
+
+    /**
+     * @return true if the families reflect a recovered cluster state with an elected master
+     */
+    public boolean isReady() {
+        if (metaData == null)
+            return false;
+        ClusterState state = clusterService.state();
+        return state.nodes().masterNodeId() != null
+                && !state.blocks().hasGlobalBlock(GatewayService.STATE_NOT_RECOVERED_BLOCK)
+                && state.metaData() == metaData;
+    }
+
+    public Set<String> prefixes() {
+        return families.keySet();
+    }
+
+    /**
+     * @return the family of the specified prefix, empty if no index has an alias of the prefix
+     */
+    public RollFamily family(String prefix) {
+        RollFamily family = families.get(prefix);
+        return family == null ? new RollFamily(prefix, new HashMap<String, RollFamily.Member>()) : family;
+    }
+
+    synchronized void update(MetaData newMetaData) {
+        MetaData oldMetaData = metaData;
+        Set<String> changed = new HashSet<String>();
+        if (oldMetaData == null) {
+            for (IndexMetaData index : newMetaData) {
+                changed.addAll(RollFamily.prefixes(index));
+            }
+        } else {
+            for (IndexMetaData index : newMetaData) {
+                IndexMetaData old = oldMetaData.index(index.index());
+                if (old == index)
+                    continue;
+                changed.addAll(RollFamily.prefixes(index));
+                if (old != null)
+                    changed.addAll(RollFamily.prefixes(old));
+            }
+            for (ObjectCursor<IndexMetaData> old : oldMetaData.indices().values()) {
+                if (!newMetaData.hasIndex(old.value.index()))
+                    changed.addAll(RollFamily.prefixes(old.value));
+            }
+        }
+
+        if (!changed.isEmpty()) {
+            Map<String, RollFamily> tmp = new HashMap<String, RollFamily>(families);
+            for (String prefix : changed) {
+                RollFamily family = RollFamily.create(newMetaData, prefix);
+                if (family.isEmpty())
+                    tmp.remove(prefix);
+                else
+                    tmp.put(prefix, family);
+            }
+            families = ImmutableMap.copyOf(tmp);
+            logger.debug("updated index families {}", changed);
+        }
+        metaData = newMetaData;
+    }
+}
@@ -0,0 +1,209 @@
+package com.pannous.es.rollindex;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthRequest;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
+import org.elasticsearch.action.admin.indices.close.CloseIndexRequest;
+import org.elasticsearch.action.admin.indices.close.CloseIndexResponse;
+import org.elasticsearch.action.admin.indices.open.OpenIndexRequest;
+import org.elasticsearch.action.admin.indices.open.OpenIndexResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.CountDown;
+
+/**
+ * Opens archived indices for a search and closes the least recently used ones again when more
+ * than rollindex.reopen.max_indices indices or rollindex.reopen.max_shards shards are open.
+ * Concurrent searches which need the same closed index wait for the same open request. Indices
+ * are only closed when no search of this node uses them.
+ */
+public class RollReopener extends AbstractComponent {
+
+    private final Client client;
+    private final int maxIndices;
+    // -1 does not limit the shards
+    private final int maxShards;
+    private final TimeValue openTimeout;
+    // the reopened indices and their shards including replicas, least recently used first
+    private final LinkedHashMap<String, Integer> reopened = new LinkedHashMap<String, Integer>(16, 0.75f, true);
+    // the number of running searches per reopened index
+    private final Map<String, Integer> inUse = new HashMap<String, Integer>();
+    // the listeners waiting for an index to open
+    private final Map<String, List<ActionListener<Object>>> opening =
+            new HashMap<String, List<ActionListener<Object>>>();
+
+    @Inject public RollReopener(Settings settings, Client client) {
+        super(settings);
+        this.client = client;
+        this.maxIndices = settings.getAsInt("rollindex.reopen.max_indices", 5);
+        this.maxShards = settings.getAsInt("rollindex.reopen.max_shards", -1);
+        this.openTimeout = settings.getAsTime("rollindex.reopen.timeout", TimeValue.timeValueMinutes(1));
+    }
+
+    /**
+     * Opens the closed indices and marks all specified indices as used until they are released.
+     * The listener is called when all indices are open.
+     */
+    public void acquire(Collection<RollFamily.Member> members, final ActionListener<Object> listener) {
+        List<RollFamily.Member> closed = new ArrayList<RollFamily.Member>();
+        synchronized (reopened) {
+            for (RollFamily.Member member : members) {
+                Integer count = inUse.get(member.name());
+                inUse.put(member.name(), count == null ? 1 : count + 1);
+                if (reopened.get(member.name()) != null)
+                    continue;
+                if (member.isOpen()) {
+                    // opened elsewhere, it is closed again like the other reopened indices
+                    reopened.put(member.name(), shards(member));
+                    continue;
+                }
+                closed.add(member);
+            }
+        }
+        if (closed.isEmpty()) {
+            listener.onResponse(null);
+            return;
+        }
+
+        final CountDown countDown = new CountDown(closed.size());
+        ActionListener<Object> openListener = new ActionListener<Object>() {
+            @Override public void onResponse(Object o) {
+                if (countDown.countDown())
+                    listener.onResponse(null);
+            }
+
+            @Override public void onFailure(Throwable t) {
+                if (countDown.fastForward())
+                    listener.onFailure(t);
+            }
+        };
+        for (RollFamily.Member member : closed) {
+            boolean first;
+            synchronized (opening) {
+                List<ActionListener<Object>> listeners = opening.get(member.name());
+                first = listeners == null;
+                if (first) {
+                    listeners = new ArrayList<ActionListener<Object>>();
+                    opening.put(member.name(), listeners);
+                }
+                listeners.add(openListener);
+            }
+            if (first)
+                open(member);
+        }
+    }
+
+    void open(final RollFamily.Member member) {
+        final String index = member.name();
+        logger.info("reopening {}", index);
+        final ActionListener<Object> doneListener = new ActionListener<Object>() {
+            @Override public void onResponse(Object o) {
+                synchronized (reopened) {
+                    reopened.put(index, shards(member));
+                }
+                for (ActionListener<Object> l : done(index)) {
+                    l.onResponse(null);
+                }
+                evict();
+            }
+
+            @Override public void onFailure(Throwable t) {
+                for (ActionListener<Object> l : done(index)) {
+                    l.onFailure(t);
+                }
+            }
+        };
+        client.admin().indices().open(new OpenIndexRequest(index), new StepListener<OpenIndexResponse>(doneListener) {
+            @Override void run(OpenIndexResponse response) {
+                // a search fails as long as no shard copy is started
+                client.admin().cluster().health(new ClusterHealthRequest(index).waitForYellowStatus().
+                        timeout(openTimeout), new StepListener<ClusterHealthResponse>(doneListener) {
+                            @Override void run(ClusterHealthResponse response) {
+                                if (response.isTimedOut())
+                                    throw new IllegalStateException("reopened index " + index
+                                            + " not available after " + openTimeout);
+                                doneListener.onResponse(response);
+                            }
+                        });
+            }
+        });
+    }
+
+    List<ActionListener<Object>> done(String index) {
+        synchronized (opening) {
+            return opening.remove(index);
+        }
+    }
+
+    /**
+     * Marks the indices as unused and closes the least recently used indices above the limits.
+     */
+    public void release(Collection<RollFamily.Member> members) {
+        synchronized (reopened) {
+            for (RollFamily.Member member : members) {
+                Integer count = inUse.remove(member.name());
+                if (count != null && count > 1)
+                    inUse.put(member.name(), count - 1);
+            }
+        }
+        evict();
+    }
+
+    void evict() {
+        final List<String> close = new ArrayList<String>();
+        synchronized (reopened) {
+            int shards = 0;
+            for (Integer s : reopened.values()) {
+                shards += s;
+            }
+            int indices = reopened.size();
+            Iterator<Map.Entry<String, Integer>> iter = reopened.entrySet().iterator();
+            while (iter.hasNext() && (indices > maxIndices || maxShards >= 0 && shards > maxShards)) {
+                Map.Entry<String, Integer> e = iter.next();
+                if (inUse.containsKey(e.getKey()))
+                    continue;
+                close.add(e.getKey());
+                indices--;
+                shards -= e.getValue();
+                iter.remove();
+            }
+        }
+        if (close.isEmpty())
+            return;
+
+        logger.info("closing least recently used {}", close);
+        client.admin().indices().close(new CloseIndexRequest(close.toArray(new String[close.size()])),
+                new ActionListener<CloseIndexResponse>() {
+                    @Override public void onResponse(CloseIndexResponse response) {
+                    }
+
+                    @Override public void onFailure(Throwable t) {
+                        logger.warn("cannot close {}", t, close);
+                    }
+                });
+    }
+
+    /**
+     * @return the reopened indices, least recently used first
+     */
+    public List<String> reopened() {
+        synchronized (reopened) {
+            return new ArrayList<String>(reopened.keySet());
+        }
+    }
+
+    static int shards(RollFamily.Member member) {
+        return member.shards() * (1 + member.replicas());
+    }
+}
@@ -0,0 +1,390 @@
+package com.pannous.es.rollindex;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthStatus;
+import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
+import org.elasticsearch.common.Base64;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+
+/**
+ * The parameters of one roll.
+ */
+public class RollRequest {
+
+    private String indexPrefix;
+    private int rollIndices = 1;
+    private int searchIndices = 1;
+    private boolean deleteAfterRoll = false;
+    private boolean closeAfterRoll = true;
+    private String indexTimestampPattern;
+    // timestamp, sequence or timestamp_sequence
+    private String indexNaming = "timestamp";
+    // the settings of the new indices, the roll adds its own settings before creating an index
+    private Settings indexSettings = ImmutableSettings.EMPTY;
+    private CreateIndexRequest createIndexRequest = new CreateIndexRequest("");
+    // the body of the index template for the new indices, null to send createIndexRequest on every roll
+    private String template;
+    private boolean dryRun = false;
+    // roll only if the feed index passed one of these
+    private long maxDocs = -1;
+    private ByteSizeValue maxPrimaryStoreSize;
+    private TimeValue maxAge;
+    // prepare the next index in advance so that a roll is only an alias swap
+    private boolean standby = false;
+    private ClusterHealthStatus standbyHealth = ClusterHealthStatus.YELLOW;
+    // applied to the previous feed index after the roll, null to keep it as it is
+    private Demotion demotion;
+    // picks the number of shards of the new index from the size of the last indices, null to keep it
+    private ShardSizing shardSizing;
+    // the settings while the index is fed and after the roll, null to keep the settings of the create request
+    private SettingsProfiles profiles;
+    // node attributes as name:value, the newest hotIndices indices are allocated to the hot nodes
+    private String hotNodeAttribute;
+    private String warmNodeAttribute;
+    private int hotIndices = -1;
+
+    public RollRequest() {
+    }
+
+    public RollRequest(String indexPrefix, int rollIndices, int searchIndices) {
+        this.indexPrefix = indexPrefix;
+        this.rollIndices = rollIndices;
+        this.searchIndices = searchIndices;
+    }
+
+    public String indexPrefix() {
+        return indexPrefix;
+    }
+
+    public RollRequest indexPrefix(String indexPrefix) {
+        this.indexPrefix = indexPrefix;
+        return this;
+    }
+
+    /**
+     * @return true if several index families are rolled together
+     */
+    public boolean isBatch() {
+        return indexPrefix.indexOf(',') >= 0 || indexPrefix.indexOf('*') >= 0;
+    }
+
+    /**
+     * @return the comma separated prefixes, each can be a wildcard pattern
+     */
+    public String[] indexPrefixes() {
+        return Strings.splitStringByCommaToArray(indexPrefix);
+    }
+
+    public int rollIndices() {
+        return rollIndices;
+    }
+
+    public RollRequest rollIndices(int rollIndices) {
+        this.rollIndices = rollIndices;
+        return this;
+    }
+
+    public int searchIndices() {
+        return searchIndices;
+    }
+
+    public RollRequest searchIndices(int searchIndices) {
+        this.searchIndices = searchIndices;
+        return this;
+    }
+
+    public boolean deleteAfterRoll() {
+        return deleteAfterRoll;
+    }
+
+    public RollRequest deleteAfterRoll(boolean deleteAfterRoll) {
+        this.deleteAfterRoll = deleteAfterRoll;
+        return this;
+    }
+
+    public boolean closeAfterRoll() {
+        return closeAfterRoll;
+    }
+
+    public RollRequest closeAfterRoll(boolean closeAfterRoll) {
+        this.closeAfterRoll = closeAfterRoll;
+        return this;
+    }
+
+    public String indexTimestampPattern() {
+        return indexTimestampPattern;
+    }
+
+    public RollRequest indexTimestampPattern(String indexTimestampPattern) {
+        this.indexTimestampPattern = indexTimestampPattern;
+        return this;
+    }
+
+    public String indexNaming() {
+        return indexNaming;
+    }
+
+    /**
+     * @param indexNaming 'timestamp' names new indices after the current time, 'sequence' after
+     * the next generation of the family and 'timestamp_sequence' after both
+     */
+    public RollRequest indexNaming(String indexNaming) {
+        if (!"timestamp".equals(indexNaming) && !"sequence".equals(indexNaming)
+                && !"timestamp_sequence".equals(indexNaming))
+            throw new IllegalArgumentException("indexNaming must be timestamp, sequence or timestamp_sequence but was "
+                    + indexNaming);
+        this.indexNaming = indexNaming;
+        return this;
+    }
+
+    public String template() {
+        return template;
+    }
+
+    /**
+     * Creates the new indices with an empty body and registers the settings and mappings as
+     * index template instead, see RollTemplates.
+     *
+     * @param template a body like the one of a create index request
+     */
+    public RollRequest template(String template) {
+        this.template = template;
+        return this;
+    }
+
+    /**
+     * @return true if new indices get a generation number
+     */
+    public boolean isSequenceNaming() {
+        return !"timestamp".equals(indexNaming);
+    }
+
+    public Settings indexSettings() {
+        return indexSettings;
+    }
+
+    /**
+     * The settings of the new indices. The shards, the feed profile and the hot node attribute of
+     * the roll are added to them, the result replaces the settings of the create index request.
+     */
+    public RollRequest indexSettings(Settings indexSettings) {
+        this.indexSettings = indexSettings;
+        return this;
+    }
+
+    /**
+     * @return the request for the mappings and aliases of the new indices. Its settings are only
+     * used if neither indexSettings nor the roll specify settings.
+     */
+    public CreateIndexRequest createIndexRequest() {
+        return createIndexRequest;
+    }
+
+    public RollRequest createIndexRequest(CreateIndexRequest createIndexRequest) {
+        this.createIndexRequest = createIndexRequest;
+        return this;
+    }
+
+    public boolean dryRun() {
+        return dryRun;
+    }
+
+    public RollRequest dryRun(boolean dryRun) {
+        this.dryRun = dryRun;
+        return this;
+    }
+
+    public long maxDocs() {
+        return maxDocs;
+    }
+
+    public RollRequest maxDocs(long maxDocs) {
+        this.maxDocs = maxDocs;
+        return this;
+    }
+
+    public ByteSizeValue maxPrimaryStoreSize() {
+        return maxPrimaryStoreSize;
+    }
+
+    public RollRequest maxPrimaryStoreSize(ByteSizeValue maxPrimaryStoreSize) {
+        this.maxPrimaryStoreSize = maxPrimaryStoreSize;
+        return this;
+    }
+
+    public TimeValue maxAge() {
+        return maxAge;
+    }
+
+    public RollRequest maxAge(TimeValue maxAge) {
+        this.maxAge = maxAge;
+        return this;
+    }
+
+    public boolean standby() {
+        return standby;
+    }
+
+    public RollRequest standby(boolean standby) {
+        this.standby = standby;
+        return this;
+    }
+
+    public ClusterHealthStatus standbyHealth() {
+        return standbyHealth;
+    }
+
+    public RollRequest standbyHealth(ClusterHealthStatus standbyHealth) {
+        this.standbyHealth = standbyHealth;
+        return this;
+    }
+
+    public Demotion demotion() {
+        return demotion;
+    }
+
+    public RollRequest demotion(Demotion demotion) {
+        this.demotion = demotion;
+        return this;
+    }
+
+    public ShardSizing shardSizing() {
+        return shardSizing;
+    }
+
+    public RollRequest shardSizing(ShardSizing shardSizing) {
+        this.shardSizing = shardSizing;
+        return this;
+    }
+
+    public SettingsProfiles profiles() {
+        return profiles;
+    }
+
+    public RollRequest profiles(SettingsProfiles profiles) {
+        this.profiles = profiles;
+        return this;
+    }
+
+    public String hotNodeAttribute() {
+        return hotNodeAttribute;
+    }
+
+    public RollRequest hotNodeAttribute(String hotNodeAttribute) {
+        this.hotNodeAttribute = hotNodeAttribute;
+        return this;
+    }
+
+    public String warmNodeAttribute() {
+        return warmNodeAttribute;
+    }
+
+    public RollRequest warmNodeAttribute(String warmNodeAttribute) {
+        this.warmNodeAttribute = warmNodeAttribute;
+        return this;
+    }
+
+    /**
+     * @return the number of indices, including the new one, which stay on the hot nodes. By
+     * default all indices of the search alias are hot.
+     */
+    public int hotIndices() {
+        return hotIndices < 0 ? searchIndices : hotIndices;
+    }
+
+    public RollRequest hotIndices(int hotIndices) {
+        this.hotIndices = hotIndices;
+        return this;
+    }
+
+    public boolean hasConditions() {
+        return maxDocs >= 0 || maxPrimaryStoreSize != null || maxAge != null;
+    }
+
+    /**
+     * @param age the age of the feed index in milliseconds or -1 if unknown
+     * @return the description of the first condition the feed index passed or null if none
+     */
+    public String matchingCondition(long docs, long primaryStoreSize, long age) {
+        if (maxDocs >= 0 && docs >= maxDocs)
+            return "maxDocs [" + maxDocs + "] <= " + docs;
+        if (maxPrimaryStoreSize != null && primaryStoreSize >= maxPrimaryStoreSize.bytes())
+            return "maxPrimaryStoreSize [" + maxPrimaryStoreSize + "] <= " + new ByteSizeValue(primaryStoreSize);
+        if (maxAge != null && age >= 0 && age >= maxAge.millis())
+            return "maxAge [" + maxAge + "] <= " + TimeValue.timeValueMillis(age);
+        return null;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the parameters do not describe a valid roll
+     */
+    public void validate() {
+        if (indexPrefix == null || indexPrefix.isEmpty())
+            throw new IllegalArgumentException("indexPrefix missing");
+        if (rollIndices < 1 || searchIndices < 1)
+            throw new IllegalArgumentException(
+                    "remaining indices, search indices and feeding indices must be at least 1");
+        if (searchIndices > rollIndices)
+            throw new IllegalArgumentException("rollIndices must be higher or equal to searchIndices");
+        if (deleteAfterRoll && closeAfterRoll)
+            throw new IllegalArgumentException("Cannot delete and close an index at the same time");
+        if (hotNodeAttribute != null)
+            Demotion.splitAttribute(hotNodeAttribute);
+        if (warmNodeAttribute != null)
+            Demotion.splitAttribute(warmNodeAttribute);
+        if (hotIndices == 0)
+            throw new IllegalArgumentException("hotIndices must be at least 1");
+        if (shardSizing != null)
+            shardSizing.validate();
+        if (profiles != null)
+            profiles.validate();
+    }
+
+    /**
+     * @return all parameters besides the prefix, concurrent rolls of a prefix are only coalesced if
+     * their parameters are equal
+     */
+    public String parameters() {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("rollIndices", rollIndices);
+        map.put("searchIndices", searchIndices);
+        map.put("deleteAfterRoll", deleteAfterRoll);
+        map.put("closeAfterRoll", closeAfterRoll);
+        map.put("indexTimestampPattern", indexTimestampPattern);
+        map.put("indexNaming", indexNaming);
+        map.put("template", template);
+        map.put("maxDocs", maxDocs);
+        map.put("maxPrimaryStoreSize", maxPrimaryStoreSize);
+        map.put("maxAge", maxAge);
+        map.put("standby", standby);
+        map.put("standbyHealth", standbyHealth);
+        map.put("demotion", demotion);
+        map.put("shardSizing", shardSizing);
+        map.put("profiles", profiles);
+        map.put("hotNodeAttribute", hotNodeAttribute);
+        map.put("warmNodeAttribute", warmNodeAttribute);
+        map.put("hotIndices", hotIndices);
+        map.put("indexSettings", new TreeMap<String, String>(indexSettings.getAsMap()));
+        try {
+            BytesStreamOutput out = new BytesStreamOutput();
+            createIndexRequest.writeTo(out);
+            map.put("createIndexRequest", Base64.encodeBytes(out.bytes().toBytes()));
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        return map.toString();
+    }
+
+    @Override public String toString() {
+        return indexPrefix + " roll:" + rollIndices + " search:" + searchIndices;
+    }
+}
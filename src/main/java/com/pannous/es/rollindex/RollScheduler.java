@@ -0,0 +1,173 @@
+package com.pannous.es.rollindex;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.LocalNodeMasterListener;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.engine.VersionConflictEngineException;
+import org.elasticsearch.indices.IndexMissingException;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * Executes the stored roll policies periodically. Only the elected master checks the policies.
+ * Before a roll is executed the policy document is updated with the version read before, so
+ * that a due roll is claimed exactly once even if the master changes in between.
+ */
+public class RollScheduler extends AbstractLifecycleComponent<RollScheduler> implements LocalNodeMasterListener {
+
+    private final Client client;
+    private final ClusterService clusterService;
+    private final ThreadPool threadPool;
+    private final RollAction rollAction;
+    private final TimeValue checkInterval;
+    private final boolean enabled;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private volatile ScheduledFuture<?> scheduled;
+
+    @Inject public RollScheduler(Settings settings, Client client, ClusterService clusterService,
+            ThreadPool threadPool, RollAction rollAction) {
+        super(settings);
+        this.client = client;
+        this.clusterService = clusterService;
+        this.threadPool = threadPool;
+        this.rollAction = rollAction;
+        this.checkInterval = settings.getAsTime("rollindex.scheduler.interval", TimeValue.timeValueSeconds(10));
+        this.enabled = settings.getAsBoolean("rollindex.scheduler.enabled", true);
+    }
+
+    @Override protected void doStart() throws ElasticsearchException {
+        if (enabled)
+            clusterService.add(this);
+    }
+
+    @Override protected void doStop() throws ElasticsearchException {
+        clusterService.remove(this);
+        offMaster();
+    }
+
+    @Override protected void doClose() throws ElasticsearchException {
+    }
+
+    @Override public void onMaster() {
+        logger.info("elected as master, checking roll policies every {}", checkInterval);
+        scheduled = threadPool.scheduleWithFixedDelay(new Runnable() {
+            @Override public void run() {
+                runDuePolicies();
+            }
+        }, checkInterval);
+    }
+
+    @Override public void offMaster() {
+        ScheduledFuture<?> tmp = scheduled;
+        scheduled = null;
+        if (tmp != null)
+            tmp.cancel(false);
+    }
+
+    @Override public String executorName() {
+        return ThreadPool.Names.GENERIC;
+    }
+
+    /**
+     * Reads all policies and rolls the due ones. A check is skipped if the previous one did not
+     * finish yet.
+     */
+    public void runDuePolicies() {
+        if (!running.compareAndSet(false, true))
+            return;
+
+        client.prepareSearch(RollPolicy.INDEX).setTypes(RollPolicy.TYPE).setVersion(true).setSize(1000).
+                execute(new ActionListener<SearchResponse>() {
+                    @Override public void onResponse(SearchResponse response) {
+                        try {
+                            long now = System.currentTimeMillis();
+                            List<RollPolicy> due = new ArrayList<RollPolicy>();
+                            for (SearchHit hit : response.getHits()) {
+                                // a broken policy must not stop the others
+                                try {
+                                    RollPolicy policy = RollPolicy.parse(hit.getId(), hit.sourceAsMap()).
+                                            version(hit.version());
+                                    if (policy.isDue(now))
+                                        due.add(policy);
+                                } catch (Exception ex) {
+                                    logger.error("cannot parse roll policy {}", ex, hit.getId());
+                                }
+                            }
+                            for (RollPolicy policy : due) {
+                                claimAndRoll(policy, now);
+                            }
+                        } catch (Exception ex) {
+                            logger.error("cannot read roll policies", ex);
+                        } finally {
+                            running.set(false);
+                        }
+                    }
+
+                    @Override public void onFailure(Throwable t) {
+                        running.set(false);
+                        if (!(ExceptionsHelper.unwrapCause(t) instanceof IndexMissingException))
+                            logger.error("cannot read roll policies", t);
+                    }
+                });
+    }
+
+    void claimAndRoll(final RollPolicy policy, long now) {
+        policy.lastRoll(now).lastError(null);
+        client.index(policyRequest(policy).version(policy.version()), new ActionListener<IndexResponse>() {
+            @Override public void onResponse(IndexResponse response) {
+                policy.version(response.getVersion());
+                roll(policy);
+            }
+
+            @Override public void onFailure(Throwable t) {
+                if (ExceptionsHelper.unwrapCause(t) instanceof VersionConflictEngineException)
+                    logger.info("roll of policy {} was already claimed", policy.name());
+                else
+                    logger.error("cannot claim roll of policy {}", t, policy.name());
+            }
+        });
+    }
+
+    void roll(final RollPolicy policy) {
+        logger.info("rolling policy {}", policy.name());
+        rollAction.rollIndex(policy.toRollRequest(), new ActionListener<Map<String, Object>>() {
+            @Override public void onResponse(Map<String, Object> result) {
+                logger.info("rolled policy {}: {}", policy.name(), result);
+            }
+
+            @Override public void onFailure(Throwable t) {
+                logger.error("roll of policy {} failed", t, policy.name());
+                // keep the error for the policy endpoint, the next roll is tried after the interval
+                client.index(policyRequest(policy.lastError(ExceptionsHelper.detailedMessage(t))).
+                        version(policy.version()), new ActionListener<IndexResponse>() {
+                            @Override public void onResponse(IndexResponse response) {
+                            }
+
+                            @Override public void onFailure(Throwable t) {
+                                logger.warn("cannot store error of policy {}", t, policy.name());
+                            }
+                        });
+            }
+        });
+    }
+
+    static IndexRequest policyRequest(RollPolicy policy) {
+        return new IndexRequest(RollPolicy.INDEX, RollPolicy.TYPE, policy.name()).source(policy.toMap()).refresh(true);
+    }
+}
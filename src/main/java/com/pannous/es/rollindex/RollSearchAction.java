@@ -0,0 +1,186 @@
+package com.pannous.es.rollindex;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+import static org.elasticsearch.rest.RestRequest.Method.POST;
+import static org.elasticsearch.rest.action.support.RestXContentBuilder.restContentBuilder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.joda.DateMathParser;
+import org.elasticsearch.common.joda.Joda;
+import org.elasticsearch.common.joda.time.format.DateTimeFormatter;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.XContentRestResponse;
+import org.elasticsearch.rest.XContentThrowableRestResponse;
+import org.elasticsearch.rest.action.search.RestSearchAction;
+import org.elasticsearch.search.internal.InternalSearchResponse;
+
+/**
+ * Searches only the indices of the search alias whose time window overlaps the requested time
+ * range instead of all of them. The window of an index starts at the time in its name and ends
+ * with the start of the next index, so documents are expected to be fed close to their time:
+ *
+ * curl 'localhost:9200/tweets/_rollsearch?timeFrom=now-1h&timeTo=now' -d '{"query":{"match_all":{}}}'
+ *
+ * The parameters from and size keep their meaning of a normal search.
+ * With reopen=true the archived indices of the range are opened for the search, see RollReopener.
+ */
+public class RollSearchAction extends BaseRestHandler {
+
+    private static final DateMathParser dateParser = new DateMathParser(Joda.forPattern("dateOptionalTime"),
+            TimeUnit.MILLISECONDS);
+    private final RollAction rollAction;
+    private final RollReopener reopener;
+
+    public RollSearchAction(Settings settings, Client client, RestController controller, RollAction rollAction) {
+        this(settings, client, controller, rollAction, new RollReopener(settings, client));
+    }
+
+    @Inject public RollSearchAction(Settings settings, Client client, RestController controller, RollAction rollAction,
+            RollReopener reopener) {
+        super(settings, client);
+        this.rollAction = rollAction;
+        this.reopener = reopener;
+
+        controller.registerHandler(GET, "/{index}/_rollsearch", this);
+        controller.registerHandler(POST, "/{index}/_rollsearch", this);
+        controller.registerHandler(GET, "/{index}/{type}/_rollsearch", this);
+        controller.registerHandler(POST, "/{index}/{type}/_rollsearch", this);
+    }
+
+    @Override public void handleRequest(final RestRequest request, final RestChannel channel) {
+        try {
+            long now = System.currentTimeMillis();
+            long from = request.hasParam("timeFrom") ? dateParser.parse(request.param("timeFrom"), now)
+                    : Long.MIN_VALUE;
+            long to = request.hasParam("timeTo") ? dateParser.parseRoundCeil(request.param("timeTo"), now)
+                    : Long.MAX_VALUE;
+            search(request.param("index"), request.param("indexTimestampPattern"), from, to,
+                    request.paramAsBoolean("reopen", false), RestSearchAction.parseSearchRequest(request),
+                    new ActionListener<SearchResponse>() {
+                        @Override public void onResponse(SearchResponse response) {
+                            try {
+                                XContentBuilder builder = restContentBuilder(request);
+                                builder.startObject();
+                                response.toXContent(builder, request);
+                                builder.endObject();
+                                channel.sendResponse(new XContentRestResponse(request, response.status(), builder));
+                            } catch (Throwable t) {
+                                onFailure(t);
+                            }
+                        }
+
+                        @Override public void onFailure(Throwable t) {
+                            try {
+                                channel.sendResponse(new XContentThrowableRestResponse(request, t));
+                            } catch (Exception ex) {
+                                logger.error("failed to send failure response", ex);
+                            }
+                        }
+                    });
+        } catch (Throwable ex) {
+            new RestMapListener(request, channel).onFailure(ex);
+        }
+    }
+
+    /**
+     * Executes the search request against the search indices of the prefix which overlap
+     * [from, to]. If no index overlaps an empty response is returned.
+     */
+    public void search(String indexPrefix, String indexTimestampPattern, long from, long to,
+            SearchRequest searchRequest, ActionListener<SearchResponse> listener) {
+        search(indexPrefix, indexTimestampPattern, from, to, false, searchRequest, listener);
+    }
+
+    /**
+     * @param reopen true if the archived indices which overlap [from, to] should be opened and
+     * searched too
+     */
+    public void search(final String indexPrefix, final String indexTimestampPattern, final long from, final long to,
+            final boolean reopen, final SearchRequest searchRequest, final ActionListener<SearchResponse> listener) {
+        rollAction.readFamilies(new String[]{indexPrefix}, new ActionListener<Map<String, RollFamily>>() {
+            @Override public void onResponse(Map<String, RollFamily> families) {
+                final List<String> indices = new ArrayList<String>();
+                final List<RollFamily.Member> archived;
+                try {
+                    RollFamily family = families.get(indexPrefix);
+                    indices.addAll(Arrays.asList(searchIndices(family, indexTimestampPattern, from, to)));
+                    archived = reopen ? archivedIndices(family, indexTimestampPattern, from, to)
+                            : Collections.<RollFamily.Member>emptyList();
+                } catch (Throwable t) {
+                    listener.onFailure(t);
+                    return;
+                }
+                if (indices.isEmpty() && archived.isEmpty()) {
+                    listener.onResponse(new SearchResponse(InternalSearchResponse.EMPTY, null, 0, 0, 0,
+                            new ShardSearchFailure[0]));
+                    return;
+                }
+                if (archived.isEmpty()) {
+                    client.search(searchRequest.indices(indices.toArray(new String[indices.size()])), listener);
+                    return;
+                }
+
+                for (RollFamily.Member member : archived) {
+                    indices.add(member.name());
+                }
+                final ActionListener<SearchResponse> releaseListener = new ActionListener<SearchResponse>() {
+                    @Override public void onResponse(SearchResponse response) {
+                        reopener.release(archived);
+                        listener.onResponse(response);
+                    }
+
+                    @Override public void onFailure(Throwable t) {
+                        reopener.release(archived);
+                        listener.onFailure(t);
+                    }
+                };
+                reopener.acquire(archived, new StepListener<Object>(releaseListener) {
+                    @Override void run(Object o) {
+                        client.search(searchRequest.indices(indices.toArray(new String[indices.size()])),
+                                releaseListener);
+                    }
+                });
+            }
+
+            @Override public void onFailure(Throwable t) {
+                listener.onFailure(t);
+            }
+        });
+    }
+
+    List<RollFamily.Member> archivedIndices(RollFamily family, String indexTimestampPattern, long from, long to) {
+        DateTimeFormatter formatter = rollAction.createFormatter(indexTimestampPattern);
+        return family.timeline(String.valueOf(indexTimestampPattern), formatter).
+                overlapping(RollFamily.ARCHIVED, from, to);
+    }
+
+    String[] searchIndices(RollFamily family, String indexTimestampPattern, long from, long to) {
+        DateTimeFormatter formatter = rollAction.createFormatter(indexTimestampPattern);
+        List<RollFamily.Member> members = family.timeline(String.valueOf(indexTimestampPattern), formatter).
+                overlapping(RollFamily.SEARCH, from, to);
+        String[] indices = new String[members.size()];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = members.get(i).name();
+        }
+        if (logger.isDebugEnabled())
+            logger.debug("searching {} of {} indices of {}", indices.length, family.members().size(), family.prefix());
+        return indices;
+    }
+}
@@ -0,0 +1,249 @@
+package com.pannous.es.rollindex;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.metrics.MeanMetric;
+import org.elasticsearch.common.regex.Regex;
+import org.elasticsearch.common.settings.Settings;
+
+/**
+ * Counts the rolls and failures per prefix and keeps a histogram of the duration of every roll
+ * phase. All counters are updated without locks, so recording never slows down a roll.
+ */
+public class RollStats extends AbstractComponent {
+
+    public static final String STATE = "state";
+    public static final String PREPARE = "prepare";
+    public static final String CREATE = "create";
+    public static final String SWAP = "swap";
+    public static final String RETIRE = "retire";
+    public static final String STANDBY = "standby";
+    private final ConcurrentMap<String, PrefixStats> prefixes = new ConcurrentHashMap<String, PrefixStats>();
+
+    @Inject public RollStats(Settings settings) {
+        super(settings);
+    }
+
+    /**
+     * The rolls of one prefix on this node.
+     */
+    public static class PrefixStats {
+
+        final CounterMetric rolls = new CounterMetric();
+        final CounterMetric failures = new CounterMetric();
+        final CounterMetric skipped = new CounterMetric();
+        final AtomicLong lastRoll = new AtomicLong();
+        final AtomicLong lastFailure = new AtomicLong();
+        final AtomicReference<String> lastError = new AtomicReference<String>();
+        final ConcurrentMap<String, Histogram> phases = new ConcurrentHashMap<String, Histogram>();
+
+        Histogram phase(String phase) {
+            Histogram histogram = phases.get(phase);
+            if (histogram == null) {
+                Histogram created = new Histogram();
+                histogram = phases.putIfAbsent(phase, created);
+                if (histogram == null)
+                    histogram = created;
+            }
+            return histogram;
+        }
+
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<String, Object>();
+            map.put("rolls", rolls.count());
+            map.put("failures", failures.count());
+            map.put("skipped", skipped.count());
+            map.put("lastRoll", lastRoll.get());
+            if (lastFailure.get() > 0)
+                map.put("lastFailure", lastFailure.get());
+            if (lastError.get() != null)
+                map.put("lastError", lastError.get());
+            Map<String, Object> phaseMap = new TreeMap<String, Object>();
+            for (Map.Entry<String, Histogram> e : phases.entrySet()) {
+                phaseMap.put(e.getKey(), e.getValue().toMap());
+            }
+            map.put("phases", phaseMap);
+            return map;
+        }
+    }
+
+    /**
+     * Durations in milliseconds counted in buckets of powers of two. The percentiles are the
+     * upper bounds of their buckets, precise enough to alert on slow rolls.
+     */
+    public static class Histogram {
+
+        private static final int BUCKETS = 40;
+        private final MeanMetric mean = new MeanMetric();
+        private final AtomicLong max = new AtomicLong();
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        public void record(long millis) {
+            millis = Math.max(0, millis);
+            mean.inc(millis);
+            buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(millis)));
+            long current = max.get();
+            while (millis > current && !max.compareAndSet(current, millis)) {
+                current = max.get();
+            }
+        }
+
+        public long count() {
+            return mean.count();
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the upper bound of the bucket of the percentile or 0 if nothing was recorded
+         */
+        public long percentile(double percentile) {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+                total += counts[i];
+            }
+            if (total == 0)
+                return 0;
+            long rank = (long) Math.ceil(percentile / 100 * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank)
+                    return Math.min(max.get(), i == 0 ? 0 : (1L << i) - 1);
+            }
+            return max.get();
+        }
+
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<String, Object>();
+            map.put("count", mean.count());
+            map.put("totalMillis", mean.sum());
+            map.put("meanMillis", Math.round(mean.mean()));
+            map.put("p50Millis", percentile(50));
+            map.put("p99Millis", percentile(99));
+            map.put("maxMillis", max.get());
+            return map;
+        }
+    }
+
+    PrefixStats prefix(String prefix) {
+        PrefixStats stats = prefixes.get(prefix);
+        if (stats == null) {
+            PrefixStats created = new PrefixStats();
+            stats = prefixes.putIfAbsent(prefix, created);
+            if (stats == null)
+                stats = created;
+        }
+        return stats;
+    }
+
+    public void phase(String prefix, String phase, long millis) {
+        prefix(prefix).phase(phase).record(millis);
+    }
+
+    /**
+     * Records the phases the plans passed and counts them as rolled.
+     */
+    public void rolled(Collection<RollPlan> plans) {
+        long now = System.currentTimeMillis();
+        for (RollPlan plan : plans) {
+            PrefixStats stats = record(plan);
+            stats.rolls.inc();
+            stats.lastRoll.set(now);
+        }
+    }
+
+    /**
+     * Records the phases the plans passed before the failure and counts them as failed.
+     */
+    public void failed(Collection<RollPlan> plans, Throwable cause) {
+        long now = System.currentTimeMillis();
+        String error = ExceptionsHelper.detailedMessage(cause);
+        for (RollPlan plan : plans) {
+            PrefixStats stats = record(plan);
+            stats.failures.inc();
+            stats.lastFailure.set(now);
+            stats.lastError.set(error);
+        }
+    }
+
+    /**
+     * Counts the failure of a roll which failed before its plans were made.
+     */
+    public void failed(String indexPrefix, Throwable cause) {
+        PrefixStats stats = prefix(indexPrefix);
+        stats.failures.inc();
+        stats.lastFailure.set(System.currentTimeMillis());
+        stats.lastError.set(ExceptionsHelper.detailedMessage(cause));
+    }
+
+    /**
+     * Counts a prefix whose feed index did not match a roll condition.
+     */
+    public void skipped(String indexPrefix) {
+        prefix(indexPrefix).skipped.inc();
+    }
+
+    PrefixStats record(RollPlan plan) {
+        PrefixStats stats = prefix(plan.getIndexPrefix());
+        for (Map.Entry<String, Long> e : plan.timings().entrySet()) {
+            stats.phase(e.getKey()).record(e.getValue());
+        }
+        return stats;
+    }
+
+    /**
+     * @return the number of indices, primary shards and shards per alias of the family
+     */
+    public static Map<String, Object> familySize(RollFamily family) {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        for (String end : new String[]{RollFamily.FEED, RollFamily.SEARCH, RollFamily.ROLL, RollFamily.CLOSED}) {
+            long indices = 0;
+            long primaries = 0;
+            long shards = 0;
+            for (RollFamily.Member member : family.members()) {
+                if (!member.is(end))
+                    continue;
+                indices++;
+                primaries += member.shards();
+                shards += member.shards() * (1 + member.replicas());
+            }
+            Map<String, Object> size = new LinkedHashMap<String, Object>();
+            size.put("indices", indices);
+            size.put("primaries", primaries);
+            size.put("shards", shards);
+            map.put(end.substring(1), size);
+        }
+        return map;
+    }
+
+    /**
+     * @param patterns the prefixes or wildcard patterns of the prefixes to show
+     */
+    public Map<String, Object> toMap(List<String> patterns) {
+        Map<String, Object> map = new TreeMap<String, Object>();
+        for (Map.Entry<String, PrefixStats> e : prefixes.entrySet()) {
+            for (String pattern : patterns) {
+                if (Regex.simpleMatch(pattern, e.getKey())) {
+                    map.put(e.getKey(), e.getValue().toMap());
+                    break;
+                }
+            }
+        }
+        return map;
+    }
+}
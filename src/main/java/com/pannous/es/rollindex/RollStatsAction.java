@@ -0,0 +1,39 @@
+package com.pannous.es.rollindex;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+
+/**
+ * Shows per prefix the roll counters and phase durations of the rolls coordinated by this node,
+ * the number of indices and shards per alias of the family and the state of the sweeper:
+ *
+ * curl 'localhost:9200/_rollindex/_stats?indexPrefix=logs*'
+ */
+public class RollStatsAction extends BaseRestHandler {
+
+    private final RollAction rollAction;
+
+    @Inject public RollStatsAction(Settings settings, Client client, RestController controller, RollAction rollAction) {
+        super(settings, client);
+        this.rollAction = rollAction;
+
+        controller.registerHandler(GET, "/_rollindex/_stats", this);
+    }
+
+    @Override public void handleRequest(RestRequest request, RestChannel channel) {
+        try {
+            rollAction.rollStats(Strings.splitStringByCommaToArray(request.param("indexPrefix", "*")),
+                    new RestMapListener(request, channel));
+        } catch (Throwable ex) {
+            new RestMapListener(request, channel).onFailure(ex);
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package com.pannous.es.rollindex;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.cluster.state.ClusterStateRequest;
+import org.elasticsearch.action.admin.cluster.state.ClusterStateResponse;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesResponse;
+import org.elasticsearch.action.admin.indices.close.CloseIndexRequest;
+import org.elasticsearch.action.admin.indices.close.CloseIndexResponse;
+import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
+import org.elasticsearch.action.admin.indices.delete.DeleteIndexResponse;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * Deletes and closes the indices which a roll retired in the background. A roll only swaps the
+ * aliases and marks the retired indices with the '_expired' alias, so that a roll after a crash
+ * finds and queues them again. The indices are retired with one request per batch of
+ * rollindex.sweeper.batch_size indices and a pause of rollindex.sweeper.interval between the
+ * batches. Indices which were deleted since they were queued are skipped. A failed batch is moved
+ * to the end of the queue and retried after rollindex.sweeper.retry_delay.
+ */
+public class RollSweeper extends AbstractComponent {
+
+    private final Client client;
+    // null if used outside of a node, then the batches are sent without pause
+    private final ThreadPool threadPool;
+    private final RollIdFilters idFilters;
+    private final int batchSize;
+    private final TimeValue interval;
+    private final TimeValue retryDelay;
+    // the queued indices and for indices which are closed instead of deleted their expired alias
+    private final LinkedHashMap<String, String> pending = new LinkedHashMap<String, String>();
+    private boolean running;
+    private long deleted;
+    private long closed;
+    private long failures;
+    private String lastError;
+
+    @Inject public RollSweeper(Settings settings, Client client, ThreadPool threadPool, RollIdFilters idFilters) {
+        super(settings);
+        this.client = client;
+        this.threadPool = threadPool;
+        this.idFilters = idFilters;
+        this.batchSize = settings.getAsInt("rollindex.sweeper.batch_size", 20);
+        this.interval = settings.getAsTime("rollindex.sweeper.interval", TimeValue.timeValueSeconds(1));
+        this.retryDelay = settings.getAsTime("rollindex.sweeper.retry_delay", TimeValue.timeValueSeconds(30));
+    }
+
+    /**
+     * Queues the specified indices of the prefix and returns immediately. Already queued indices
+     * are ignored.
+     */
+    public void retire(String indexPrefix, Collection<String> delete, Collection<String> close) {
+        synchronized (pending) {
+            for (String index : delete) {
+                if (!pending.containsKey(index))
+                    pending.put(index, null);
+            }
+            for (String index : close) {
+                if (!pending.containsKey(index))
+                    pending.put(index, indexPrefix + RollFamily.EXPIRED);
+            }
+            if (running || pending.isEmpty())
+                return;
+            running = true;
+        }
+        sweep();
+    }
+
+    void sweep() {
+        final Map<String, String> batch = new LinkedHashMap<String, String>();
+        synchronized (pending) {
+            Iterator<Map.Entry<String, String>> iter = pending.entrySet().iterator();
+            while (iter.hasNext() && batch.size() < batchSize) {
+                Map.Entry<String, String> e = iter.next();
+                batch.put(e.getKey(), e.getValue());
+            }
+            if (batch.isEmpty()) {
+                running = false;
+                return;
+            }
+        }
+
+        final ActionListener<Object> batchListener = new ActionListener<Object>() {
+            @Override public void onResponse(Object o) {
+                schedule(interval);
+            }
+
+            @Override public void onFailure(Throwable t) {
+                logger.warn("retiring {} failed, retrying in {}", t, batch.keySet(), retryDelay);
+                synchronized (pending) {
+                    failures++;
+                    lastError = ExceptionsHelper.detailedMessage(t);
+                    // the indices queued behind the failed batch come first
+                    for (String index : batch.keySet()) {
+                        if (pending.containsKey(index))
+                            pending.put(index, pending.remove(index));
+                    }
+                }
+                if (threadPool == null) {
+                    // without a thread pool the next retire call resumes
+                    synchronized (pending) {
+                        running = false;
+                    }
+                    return;
+                }
+                schedule(retryDelay);
+            }
+        };
+        // the indices might have been deleted or their expired alias removed since they were queued
+        ClusterStateRequest stateRequest = new ClusterStateRequest().clear().metaData(true).
+                indices(batch.keySet().toArray(new String[batch.size()]));
+        client.admin().cluster().state(stateRequest, new StepListener<ClusterStateResponse>(batchListener) {
+                    @Override void run(ClusterStateResponse response) {
+                        retire(batch, response.getState().getMetaData(), batchListener);
+                    }
+                });
+    }
+
+    void retire(Map<String, String> batch, MetaData metaData, final ActionListener<Object> listener) {
+        final List<String> delete = new ArrayList<String>();
+        final List<String> close = new ArrayList<String>();
+        final List<String> missing = new ArrayList<String>();
+        final IndicesAliasesRequest aliasesRequest = new IndicesAliasesRequest();
+        for (Map.Entry<String, String> e : batch.entrySet()) {
+            IndexMetaData index = metaData.index(e.getKey());
+            if (index == null) {
+                missing.add(e.getKey());
+            } else if (e.getValue() == null) {
+                delete.add(e.getKey());
+            } else {
+                close.add(e.getKey());
+                if (index.aliases().containsKey(e.getValue()))
+                    aliasesRequest.removeAlias(e.getKey(), e.getValue());
+            }
+        }
+        if (!missing.isEmpty())
+            logger.info("skipping the retirement of missing indices {}", missing);
+
+        final ActionListener<Object> batchListener = new StepListener<Object>(listener) {
+            @Override void run(Object o) {
+                synchronized (pending) {
+                    deleted += delete.size();
+                    closed += close.size();
+                    for (String index : delete) {
+                        pending.remove(index);
+                    }
+                    for (String index : close) {
+                        pending.remove(index);
+                    }
+                    for (String index : missing) {
+                        pending.remove(index);
+                    }
+                }
+                if (!delete.isEmpty() || !missing.isEmpty()) {
+                    List<String> removed = new ArrayList<String>(delete);
+                    removed.addAll(missing);
+                    idFilters.remove(removed);
+                }
+                if (!close.isEmpty())
+                    idFilters.evict(close);
+                logger.info("retired indices, deleted: {}, closed: {}", delete, close);
+                listener.onResponse(o);
+            }
+        };
+        final ActionListener<Object> closeListener = new StepListener<Object>(batchListener) {
+            @Override void run(Object o) {
+                if (close.isEmpty()) {
+                    batchListener.onResponse(null);
+                    return;
+                }
+                final ActionListener<Object> aliasListener = new StepListener<Object>(batchListener) {
+                    @Override void run(Object o) {
+                        client.admin().indices().close(new CloseIndexRequest(
+                                close.toArray(new String[close.size()])).indicesOptions(IndicesOptions.lenient()),
+                                new StepListener<CloseIndexResponse>(batchListener) {
+                                    @Override void run(CloseIndexResponse response) {
+                                        batchListener.onResponse(response);
+                                    }
+                                });
+                    }
+                };
+                // reopened archived indices must not be closed again by a later sweep
+                if (aliasesRequest.getAliasActions().isEmpty()) {
+                    aliasListener.onResponse(null);
+                    return;
+                }
+                client.admin().indices().aliases(aliasesRequest,
+                        new StepListener<IndicesAliasesResponse>(aliasListener) {
+                            @Override void run(IndicesAliasesResponse response) {
+                                aliasListener.onResponse(response);
+                            }
+                        });
+            }
+        };
+        if (delete.isEmpty())
+            closeListener.onResponse(null);
+        else
+            client.admin().indices().delete(new DeleteIndexRequest(delete.toArray(new String[delete.size()])).
+                    indicesOptions(IndicesOptions.lenient()), new StepListener<DeleteIndexResponse>(closeListener) {
+                        @Override void run(DeleteIndexResponse response) {
+                            closeListener.onResponse(response);
+                        }
+                    });
+    }
+
+    void schedule(TimeValue delay) {
+        if (threadPool == null || delay.millis() <= 0) {
+            sweep();
+            return;
+        }
+        threadPool.schedule(delay, ThreadPool.Names.GENERIC, new Runnable() {
+            @Override public void run() {
+                sweep();
+            }
+        });
+    }
+
+    /**
+     * @return the queued indices and the counters of the retired indices
+     */
+    public Map<String, Object> progress() {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        synchronized (pending) {
+            map.put("pending", new ArrayList<String>(pending.keySet()));
+            map.put("deleted", deleted);
+            map.put("closed", closed);
+            map.put("failures", failures);
+            if (lastError != null)
+                map.put("lastError", lastError);
+        }
+        return map;
+    }
+}
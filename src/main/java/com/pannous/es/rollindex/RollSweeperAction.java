@@ -0,0 +1,33 @@
+package com.pannous.es.rollindex;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+
+/**
+ * Shows the indices which wait for their deletion or close on this node and the counters of
+ * the retired indices:
+ *
+ * curl 'localhost:9200/_rollindex/_sweeper'
+ */
+public class RollSweeperAction extends BaseRestHandler {
+
+    private final RollSweeper sweeper;
+
+    @Inject public RollSweeperAction(Settings settings, Client client, RestController controller, RollSweeper sweeper) {
+        super(settings, client);
+        this.sweeper = sweeper;
+
+        controller.registerHandler(GET, "/_rollindex/_sweeper", this);
+    }
+
+    @Override public void handleRequest(RestRequest request, RestChannel channel) {
+        new RestMapListener(request, channel).onResponse(sweeper.progress());
+    }
+}
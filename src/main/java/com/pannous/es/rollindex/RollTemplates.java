@@ -0,0 +1,153 @@
+package com.pannous.es.rollindex;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.indices.template.get.GetIndexTemplatesResponse;
+import org.elasticsearch.action.admin.indices.template.put.PutIndexTemplateRequest;
+import org.elasticsearch.action.admin.indices.template.put.PutIndexTemplateResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexTemplateMetaData;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.hash.MurmurHash3;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.CountDown;
+import org.elasticsearch.common.xcontent.XContentHelper;
+
+/**
+ * Registers the settings and mappings of the new indices as index template 'rollindex_{prefix}'
+ * for '{prefix}_*', so that a roll creates the new index with an empty body. The hash of the
+ * template source is stored in the template and cached per prefix, the template is only updated
+ * if the source of a roll differs.
+ *
+ * The pattern of the prefix 'a' also matches the indices of the nested prefix 'a_b' and templates
+ * cannot exclude names, so the order of a template is the depth of its prefix: the settings and
+ * mappings of the nested prefix win over the ones of the outer prefix.
+ */
+public class RollTemplates extends AbstractComponent {
+
+    public static final String HASH_SETTING = "index.rollindex.template_hash";
+    private final Client client;
+    // the hash of the registered template source per prefix
+    private final ConcurrentMap<String, String> hashes = new ConcurrentHashMap<String, String>();
+
+    @Inject public RollTemplates(Settings settings, Client client) {
+        super(settings);
+        this.client = client;
+    }
+
+    public static String name(String indexPrefix) {
+        return "rollindex_" + indexPrefix;
+    }
+
+    /**
+     * @return the number of underscores in the prefix, nested prefixes get a higher order
+     */
+    static int order(String indexPrefix) {
+        int order = 0;
+        for (int i = 0; i < indexPrefix.length(); i++) {
+            if (indexPrefix.charAt(i) == '_')
+                order++;
+        }
+        return order;
+    }
+
+    /**
+     * Drops the cached hash of the prefix if the index created by the previous roll does not
+     * carry it, e.g. because the template was deleted or a template of another node replaced it,
+     * so that the next ensure reads the template again.
+     *
+     * @param createdHash the template hash of the previous index, null if it has none
+     */
+    public void verify(String prefix, String createdHash) {
+        String hash = hashes.get(prefix);
+        if (hash != null && !hash.equals(createdHash)) {
+            logger.info("index of {} was not created from the template with hash {}, checking it again", prefix, hash);
+            hashes.remove(prefix, hash);
+        }
+    }
+
+    /**
+     * @param source the template body with 'settings' and 'mappings' like the body of a create index request
+     */
+    public void ensure(Collection<String> prefixes, String source, final ActionListener<Void> listener) {
+        final String hash = hash(source);
+        final Map<String, Object> sourceMap = XContentHelper.convertToMap(source.getBytes(), false).v2();
+        final CountDown countDown = new CountDown(prefixes.size());
+        ActionListener<Void> prefixListener = new ActionListener<Void>() {
+            @Override public void onResponse(Void v) {
+                if (countDown.countDown())
+                    listener.onResponse(null);
+            }
+
+            @Override public void onFailure(Throwable t) {
+                if (countDown.fastForward())
+                    listener.onFailure(t);
+            }
+        };
+        for (String prefix : prefixes) {
+            if (hash.equals(hashes.get(prefix)))
+                prefixListener.onResponse(null);
+            else
+                ensure(prefix, hash, sourceMap, prefixListener);
+        }
+    }
+
+    void ensure(final String prefix, final String hash, final Map<String, Object> sourceMap,
+            final ActionListener<Void> listener) {
+        final String name = name(prefix);
+        client.admin().indices().prepareGetTemplates(name).
+                execute(new StepListener<GetIndexTemplatesResponse>(listener) {
+                    @Override void run(GetIndexTemplatesResponse response) {
+                        for (IndexTemplateMetaData template : response.getIndexTemplates()) {
+                            if (template.name().equals(name) && template.order() == order(prefix)
+                                    && hash.equals(template.settings().get(HASH_SETTING))) {
+                                hashes.put(prefix, hash);
+                                listener.onResponse(null);
+                                return;
+                            }
+                        }
+                        put(prefix, hash, sourceMap, listener);
+                    }
+                });
+    }
+
+    @SuppressWarnings("unchecked")
+    void put(final String prefix, final String hash, Map<String, Object> sourceMap,
+            final ActionListener<Void> listener) {
+        Map<String, Object> templateSource = new HashMap<String, Object>(sourceMap);
+        Object settings = templateSource.get("settings");
+        Map<String, Object> templateSettings = settings instanceof Map
+                ? new HashMap<String, Object>((Map<String, Object>) settings) : new HashMap<String, Object>();
+        templateSettings.put(HASH_SETTING, hash);
+        templateSource.put("settings", templateSettings);
+        templateSource.put("template", prefix + "_*");
+        templateSource.put("order", order(prefix));
+        // replaces the whole template with one cluster state update
+        client.admin().indices().putTemplate(new PutIndexTemplateRequest(name(prefix)).source(templateSource).
+                create(false), new StepListener<PutIndexTemplateResponse>(listener) {
+                    @Override void run(PutIndexTemplateResponse response) {
+                        logger.info("registered template {} with hash {}", name(prefix), hash);
+                        hashes.put(prefix, hash);
+                        listener.onResponse(null);
+                    }
+                });
+    }
+
+    static String hash(String source) {
+        BytesRef bytes = new BytesRef(source);
+        MurmurHash3.Hash128 hash = MurmurHash3.hash128(bytes.bytes, bytes.offset, bytes.length, 0,
+                new MurmurHash3.Hash128());
+        return Long.toHexString(hash.h1) + Long.toHexString(hash.h2);
+    }
+
+    Map<String, String> hashes() {
+        return hashes;
+    }
+}
@@ -0,0 +1,198 @@
+package com.pannous.es.rollindex;
+
+import static org.elasticsearch.rest.RestRequest.Method.POST;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.action.update.UpdateResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.CountDown;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.search.SearchHit;
+
+/**
+ * Updates a document in the index of the family which holds it. An update via the feed alias
+ * would create a second document if the original is in an older index:
+ *
+ * curl -XPOST 'localhost:9200/tweets/tweet/1/_rollupdate' -d '{"doc":{"retweets":3}, "doc_as_upsert":true}'
+ *
+ * The id filters of the older indices exclude most of them, a hit of a filter is confirmed with
+ * a realtime get. Only older indices without a filter are searched. If no index holds the document
+ * the update goes to the feed index.
+ */
+public class RollUpdateAction extends BaseRestHandler {
+
+    private final RollAction rollAction;
+
+    @Inject public RollUpdateAction(Settings settings, Client client, RestController controller,
+            RollAction rollAction) {
+        super(settings, client);
+        this.rollAction = rollAction;
+
+        controller.registerHandler(POST, "/{index}/{type}/{id}/_rollupdate", this);
+    }
+
+    @Override public void handleRequest(RestRequest request, RestChannel channel) {
+        final RestMapListener listener = new RestMapListener(request, channel);
+        try {
+            UpdateRequest updateRequest = new UpdateRequest(request.param("index"), request.param("type"),
+                    request.param("id")).
+                    retryOnConflict(request.paramAsInt("retryOnConflict", 0)).
+                    refresh(request.paramAsBoolean("refresh", false)).
+                    source(request.content());
+            update(request.param("index"), request.param("indexTimestampPattern"), updateRequest, listener);
+        } catch (Throwable ex) {
+            listener.onFailure(ex);
+        }
+    }
+
+    /**
+     * Sends the update request to the index of the family which holds the document.
+     */
+    public void update(final String indexPrefix, String indexTimestampPattern, final UpdateRequest updateRequest,
+            final ActionListener<Map<String, Object>> listener) {
+        locate(indexPrefix, indexTimestampPattern, updateRequest.type(), updateRequest.id(),
+                new StepListener<String[]>(listener) {
+            @Override void run(final String[] located) {
+                updateRequest.index(located[0]);
+                client.update(updateRequest, new StepListener<UpdateResponse>(listener) {
+                    @Override void run(UpdateResponse response) {
+                        Map<String, Object> map = new LinkedHashMap<String, Object>();
+                        map.put("_index", response.getIndex());
+                        map.put("_type", response.getType());
+                        map.put("_id", response.getId());
+                        map.put("_version", response.getVersion());
+                        map.put("created", response.isCreated());
+                        map.put("routedBy", located[1]);
+                        listener.onResponse(map);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Finds the index of the document, the newest older index first.
+     *
+     * @return the index and how it was found: filter, search or feed
+     */
+    public void locate(final String indexPrefix, final String indexTimestampPattern, final String type,
+            final String id, final ActionListener<String[]> listener) {
+        rollAction.readFamilies(new String[]{indexPrefix}, new StepListener<Map<String, RollFamily>>(listener) {
+            @Override void run(Map<String, RollFamily> families) {
+                RollFamily family = families.get(indexPrefix);
+                final String feedIndex = family.feedIndex();
+                if (feedIndex == null)
+                    throw new IllegalStateException("no feed index for " + indexPrefix + ", roll first");
+
+                final List<String> candidates = candidates(family, indexTimestampPattern);
+                if (candidates.isEmpty()) {
+                    listener.onResponse(new String[]{feedIndex, "feed"});
+                    return;
+                }
+                final Boolean[] contained = new Boolean[candidates.size()];
+                final CountDown countDown = new CountDown(contained.length);
+                for (int i = 0; i < contained.length; i++) {
+                    final int pos = i;
+                    String candidate = candidates.get(i);
+                    rollAction.demoter().idFilters().mightContain(candidate, family.member(candidate).idFilter(), id,
+                            new StepListener<Boolean>(listener) {
+                                @Override void run(Boolean result) {
+                                    contained[pos] = result;
+                                    if (countDown.countDown())
+                                        confirm(candidates, contained, 0, type, id, feedIndex, listener);
+                                }
+
+                                @Override public void onFailure(Throwable t) {
+                                    if (countDown.fastForward())
+                                        listener.onFailure(t);
+                                }
+                            });
+                }
+            }
+        });
+    }
+
+    /**
+     * The open indices of the family which do not get new documents anymore, newest first.
+     */
+    List<String> candidates(RollFamily family, String indexTimestampPattern) {
+        List<String> candidates = new ArrayList<String>();
+        String feedIndex = family.feedIndex();
+        RollFamily.Timeline timeline = family.timeline(String.valueOf(indexTimestampPattern),
+                rollAction.createFormatter(indexTimestampPattern));
+        for (RollFamily.Member member : timeline.newestFirst(RollFamily.ROLL)) {
+            if (member.isOpen() && !member.is(RollFamily.STANDBY) && !member.name().equals(feedIndex))
+                candidates.add(member.name());
+        }
+        return candidates;
+    }
+
+    /**
+     * Checks the filter hits from the specified position on with a realtime get and searches the
+     * indices without filter if no hit was confirmed.
+     */
+    void confirm(final List<String> candidates, final Boolean[] contained, int start, final String type,
+            final String id, final String feedIndex, final ActionListener<String[]> listener) {
+        for (int i = start; i < contained.length; i++) {
+            if (!Boolean.TRUE.equals(contained[i]))
+                continue;
+
+            final int next = i + 1;
+            final String index = candidates.get(i);
+            client.prepareGet(index, type, id).setRealtime(true).setFields().
+                    execute(new StepListener<GetResponse>(listener) {
+                        @Override void run(GetResponse response) {
+                            if (response.isExists())
+                                listener.onResponse(new String[]{index, "filter"});
+                            else
+                                confirm(candidates, contained, next, type, id, feedIndex, listener);
+                        }
+                    });
+            return;
+        }
+
+        final List<String> unfiltered = new ArrayList<String>();
+        for (int i = 0; i < contained.length; i++) {
+            if (contained[i] == null)
+                unfiltered.add(candidates.get(i));
+        }
+        if (unfiltered.isEmpty()) {
+            listener.onResponse(new String[]{feedIndex, "feed"});
+            return;
+        }
+        client.prepareSearch(unfiltered.toArray(new String[unfiltered.size()])).setTypes(type).
+                setQuery(QueryBuilders.idsQuery(type).ids(id)).setNoFields().setSize(unfiltered.size()).
+                execute(new StepListener<SearchResponse>(listener) {
+                    @Override void run(SearchResponse response) {
+                        Set<String> found = new HashSet<String>();
+                        for (SearchHit hit : response.getHits()) {
+                            found.add(hit.getIndex());
+                        }
+                        // the newest index wins if the document was indexed twice
+                        for (String index : unfiltered) {
+                            if (found.contains(index)) {
+                                listener.onResponse(new String[]{index, "search"});
+                                return;
+                            }
+                        }
+                        listener.onResponse(new String[]{feedIndex, "feed"});
+                    }
+                });
+    }
+}
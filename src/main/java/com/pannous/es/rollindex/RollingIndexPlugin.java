@@ -1,9 +1,14 @@
 package com.pannous.es.rollindex;
 
-import org.elasticsearch.common.inject.Inject;
+import java.util.Collection;
+
+import org.elasticsearch.cluster.settings.Validator;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.component.LifecycleComponent;
 import org.elasticsearch.common.inject.Module;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.index.settings.IndexDynamicSettingsModule;
 import org.elasticsearch.plugins.AbstractPlugin;
 import org.elasticsearch.rest.RestModule;
 
@@ -22,8 +27,34 @@ public class RollingIndexPlugin extends AbstractPlugin {
         return "Rolling Index Plugin";
     }
 
+    @Override public Collection<Class<? extends Module>> modules() {
+        Collection<Class<? extends Module>> modules = Lists.newArrayList();
+        modules.add(RollIndexModule.class);
+        return modules;
+    }
+
+    @Override public Collection<Class<? extends LifecycleComponent>> services() {
+        Collection<Class<? extends LifecycleComponent>> services = Lists.newArrayList();
+        services.add(RollRegistry.class);
+        services.add(RollScheduler.class);
+        return services;
+    }
+
     @Override public void processModule(Module module) {
-        if (module instanceof RestModule)
+        if (module instanceof RestModule) {
             ((RestModule) module).addRestAction(RollAction.class);
+            ((RestModule) module).addRestAction(RollPolicyAction.class);
+            ((RestModule) module).addRestAction(RollDemotionAction.class);
+            ((RestModule) module).addRestAction(RollSearchAction.class);
+            ((RestModule) module).addRestAction(RollBulkAction.class);
+            ((RestModule) module).addRestAction(RollUpdateAction.class);
+            ((RestModule) module).addRestAction(RollCompactAction.class);
+            ((RestModule) module).addRestAction(RollSweeperAction.class);
+            ((RestModule) module).addRestAction(RollStatsAction.class);
+        }
+        if (module instanceof IndexDynamicSettingsModule) {
+            ((IndexDynamicSettingsModule) module).addDynamicSetting(RollFamily.START, Validator.EMPTY);
+            ((IndexDynamicSettingsModule) module).addDynamicSetting(RollFamily.ID_FILTER, Validator.EMPTY);
+        }
     }
 }
@@ -0,0 +1,117 @@
+package com.pannous.es.rollindex;
+
+import static org.elasticsearch.common.xcontent.support.XContentMapValues.nodeStringValue;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.Strings;
+
+/**
+ * The index settings while an index is fed and after it left the feed alias. A new index is
+ * created with the feed profile, e.g. without replicas and refresh, and the previous feed index
+ * gets the search profile asynchronously right after the alias swap, see RollDemoter.
+ */
+public class SettingsProfiles {
+
+    private final Map<String, String> feed = new LinkedHashMap<String, String>();
+    private final Map<String, String> search = new LinkedHashMap<String, String>();
+
+    public Map<String, String> feed() {
+        return Collections.unmodifiableMap(feed);
+    }
+
+    public SettingsProfiles feed(String key, Object value) {
+        feed.put(normalize(key), value.toString());
+        return this;
+    }
+
+    public SettingsProfiles feed(Map<String, ?> settings) {
+        for (Map.Entry<String, ?> e : settings.entrySet()) {
+            feed(e.getKey(), e.getValue());
+        }
+        return this;
+    }
+
+    public Map<String, String> search() {
+        return Collections.unmodifiableMap(search);
+    }
+
+    public SettingsProfiles search(String key, Object value) {
+        search.put(normalize(key), value.toString());
+        return this;
+    }
+
+    public SettingsProfiles search(Map<String, ?> settings) {
+        for (Map.Entry<String, ?> e : settings.entrySet()) {
+            search(e.getKey(), e.getValue());
+        }
+        return this;
+    }
+
+    /**
+     * The same setting with and without the index prefix would be two settings of the new index.
+     */
+    static String normalize(String key) {
+        return key.startsWith("index.") ? key : "index." + key;
+    }
+
+    /**
+     * @param settings the settings as name:value,name:value
+     */
+    public static Map<String, String> parseSettings(String settings) {
+        Map<String, String> map = new LinkedHashMap<String, String>();
+        if (settings == null)
+            return map;
+        for (String setting : Strings.splitStringByCommaToArray(settings)) {
+            int pos = setting.indexOf(':');
+            if (pos <= 0)
+                throw new IllegalArgumentException("setting must be specified as name:value but was " + setting);
+            map.put(setting.substring(0, pos).trim(), setting.substring(pos + 1).trim());
+        }
+        return map;
+    }
+
+    /**
+     * @throws IllegalArgumentException if a profile changes the number of shards
+     */
+    public void validate() {
+        // the number of shards is picked via newIndexShards or the shard sizing
+        if (feed.containsKey(IndexMetaData.SETTING_NUMBER_OF_SHARDS)
+                || search.containsKey(IndexMetaData.SETTING_NUMBER_OF_SHARDS))
+            throw new IllegalArgumentException("a settings profile cannot change the number of shards");
+    }
+
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("feed", new LinkedHashMap<String, String>(feed));
+        map.put("search", new LinkedHashMap<String, String>(search));
+        return map;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static SettingsProfiles parse(Map<String, Object> source) {
+        SettingsProfiles profiles = new SettingsProfiles();
+        for (Map.Entry<String, Object> e : source.entrySet()) {
+            String key = e.getKey();
+            Object value = e.getValue();
+            if (!(value instanceof Map))
+                throw new IllegalArgumentException("settings profile " + key + " must be an object but was "
+                        + nodeStringValue(value, null));
+            if ("feed".equals(key))
+                profiles.feed((Map<String, Object>) value);
+            else if ("search".equals(key))
+                profiles.search((Map<String, Object>) value);
+            else
+                throw new IllegalArgumentException("unknown settings profile " + key);
+        }
+        profiles.validate();
+        return profiles;
+    }
+
+    @Override public String toString() {
+        return toMap().toString();
+    }
+}
@@ -0,0 +1,163 @@
+package com.pannous.es.rollindex;
+
+import static org.elasticsearch.common.xcontent.support.XContentMapValues.nodeIntegerValue;
+import static org.elasticsearch.common.xcontent.support.XContentMapValues.nodeStringValue;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.common.unit.ByteSizeValue;
+
+/**
+ * Picks the number of shards of a new index from the ingest volume of the last rolled indices,
+ * so that the shards of the new index reach the target size within its lifetime.
+ */
+public class ShardSizing {
+
+    // a younger index does not give a meaningful rate
+    private static final long MIN_WINDOW = 1000;
+    private ByteSizeValue targetShardSize;
+    // the number of the newest rolled indices, including the current feed index, to look at
+    private int indices = 3;
+    private int minShards = 1;
+    private int maxShards = 10;
+
+    public ShardSizing(ByteSizeValue targetShardSize) {
+        this.targetShardSize = targetShardSize;
+    }
+
+    public ByteSizeValue targetShardSize() {
+        return targetShardSize;
+    }
+
+    public int indices() {
+        return indices;
+    }
+
+    public ShardSizing indices(int indices) {
+        this.indices = indices;
+        return this;
+    }
+
+    public int minShards() {
+        return minShards;
+    }
+
+    public ShardSizing minShards(int minShards) {
+        this.minShards = minShards;
+        return this;
+    }
+
+    public int maxShards() {
+        return maxShards;
+    }
+
+    public ShardSizing maxShards(int maxShards) {
+        this.maxShards = maxShards;
+        return this;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the bounds are invalid
+     */
+    public void validate() {
+        if (targetShardSize == null || targetShardSize.bytes() <= 0)
+            throw new IllegalArgumentException("targetShardSize must be positive");
+        if (indices < 1)
+            throw new IllegalArgumentException("the number of indices to size the shards must be at least 1");
+        if (minShards < 1 || maxShards < minShards)
+            throw new IllegalArgumentException("minShards must be at least 1 and at most maxShards but was "
+                    + minShards + " and " + maxShards);
+    }
+
+    /**
+     * One of the last rolled indices.
+     */
+    public static class Sample {
+
+        final long primaryStoreSize;
+        final long docs;
+        // the time window of the index, -1 if the name has no time
+        final long window;
+
+        public Sample(long primaryStoreSize, long docs, long window) {
+            this.primaryStoreSize = primaryStoreSize;
+            this.docs = docs;
+            this.window = window;
+        }
+    }
+
+    /**
+     * The predicted size of the next index is the average ingest rate of the samples over their
+     * average window, or their average size if their windows are unknown.
+     *
+     * @return the number of shards and the reason or null if there are no samples
+     */
+    public Object[] decide(List<Sample> samples) {
+        if (samples.isEmpty())
+            return null;
+        long size = 0;
+        long docs = 0;
+        long windows = 0;
+        double rate = 0;
+        int timed = 0;
+        for (Sample sample : samples) {
+            size += sample.primaryStoreSize;
+            docs += sample.docs;
+            if (sample.window >= MIN_WINDOW) {
+                rate += (double) sample.primaryStoreSize / sample.window;
+                windows += sample.window;
+                timed++;
+            }
+        }
+        long predicted;
+        String reason;
+        if (timed > 0) {
+            predicted = (long) (rate / timed * windows / timed);
+            reason = "predicted " + new ByteSizeValue(predicted) + " from "
+                    + new ByteSizeValue((long) (rate / timed * 1000)) + "/s and " + (docs * 1000 / windows)
+                    + " docs/s over " + timed + " indices";
+        } else {
+            predicted = size / samples.size();
+            reason = "predicted " + new ByteSizeValue(predicted) + " as average of " + samples.size() + " indices";
+        }
+        long target = targetShardSize.bytes();
+        long shards = (predicted + target - 1) / target;
+        shards = Math.max(minShards, Math.min(maxShards, shards));
+        return new Object[]{(int) shards, reason + ", target shard size " + targetShardSize};
+    }
+
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("targetShardSize", targetShardSize.toString());
+        map.put("indices", indices);
+        map.put("minShards", minShards);
+        map.put("maxShards", maxShards);
+        return map;
+    }
+
+    public static ShardSizing parse(Map<String, Object> source) {
+        ShardSizing sizing = new ShardSizing(null);
+        for (Map.Entry<String, Object> e : source.entrySet()) {
+            String key = e.getKey();
+            Object value = e.getValue();
+            if ("targetShardSize".equals(key))
+                sizing.targetShardSize = ByteSizeValue.parseBytesSizeValue(nodeStringValue(value, null));
+            else if ("indices".equals(key))
+                sizing.indices(nodeIntegerValue(value));
+            else if ("minShards".equals(key))
+                sizing.minShards(nodeIntegerValue(value));
+            else if ("maxShards".equals(key))
+                sizing.maxShards(nodeIntegerValue(value));
+            else
+                throw new IllegalArgumentException("unknown shard sizing field " + key);
+        }
+        sizing.validate();
+        return sizing;
+    }
+
+    @Override public String toString() {
+        return toMap().toString();
+    }
+}
@@ -0,0 +1,30 @@
+package com.pannous.es.rollindex;
+
+import org.elasticsearch.action.ActionListener;
+
+/**
+ * One step of an asynchronous pipeline. Failures, including exceptions thrown while handling the
+ * response, are passed to the listener of the whole pipeline.
+ */
+abstract class StepListener<T> implements ActionListener<T> {
+
+    private final ActionListener<?> parent;
+
+    StepListener(ActionListener<?> parent) {
+        this.parent = parent;
+    }
+
+    @Override public final void onResponse(T response) {
+        try {
+            run(response);
+        } catch (Throwable t) {
+            parent.onFailure(t);
+        }
+    }
+
+    @Override public void onFailure(Throwable t) {
+        parent.onFailure(t);
+    }
+
+    abstract void run(T response) throws Exception;
+}
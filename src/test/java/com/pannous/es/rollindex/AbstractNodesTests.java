@@ -1,5 +1,6 @@
 package com.pannous.es.rollindex;
 
+import java.io.File;
 import java.util.HashMap;
 import java.util.Map;
 import org.elasticsearch.client.Client;
@@ -24,6 +25,8 @@ public abstract class AbstractNodesTests {
     private Settings defaultSettings = ImmutableSettings
             .settingsBuilder()
             .put("cluster.name", "test-cluster-" + NetworkUtils.getLocalAddress().getHostName())
+            // keep the node data out of the working directory
+            .put("path.data", new File(System.getProperty("java.io.tmpdir"), "rollindex-test-data").getAbsolutePath())
             .build();
 
     public void putDefaultSettings(Settings.Builder settings) {
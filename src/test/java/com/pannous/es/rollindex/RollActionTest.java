@@ -4,17 +4,60 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.isEmptyString;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
 import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.PlainActionFuture;
+import org.elasticsearch.action.update.UpdateRequest;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.inject.Injector;
 import org.elasticsearch.common.joda.time.format.DateTimeFormat;
 import org.elasticsearch.common.joda.time.format.DateTimeFormatter;
+import org.elasticsearch.common.joda.time.format.ISODateTimeFormat;
 import org.elasticsearch.common.settings.ImmutableSettings;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.BloomFilter;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.elasticsearch.node.internal.InternalNode;
+import org.elasticsearch.rest.RestChannel;
 import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestHandler;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestResponse;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.threadpool.ThreadPool;
 import org.testng.annotations.AfterClass;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.BeforeMethod;
@@ -128,4 +171,1207 @@ public class RollActionTest extends AbstractNodesTests {
         assertThat(action.getAliases(action.getFeed("tweets")).size(), equalTo(1));
         assertThat(action.getAliases(action.getFeed("tweets")).toString(), containsString("tweets"));
     }
+
+    @Test public void dryRunShouldOnlyReturnPlan() throws Exception {
+        Settings emptySettings = ImmutableSettings.settingsBuilder().build();
+        RollAction action = new RollAction(emptySettings, client, new RestController(emptySettings));
+        String pattern = "yyyy-MM-dd-HH-mm-ss-S";
+
+        String firstIndex = action.rollIndex("tweets", 2, 1, pattern).get("created").toString();
+        Thread.sleep(20);
+        Map<String, Object> result = action.rollIndex("tweets", 2, 1, false, true, pattern,
+                new CreateIndexRequest(""), true);
+        assertThat((Boolean) result.get("dryRun"), equalTo(true));
+        RollPlan plan = action.plan(action.getMetaData(action.getRoll("tweets")),
+                new RollRequest("tweets", 2, 1), action.createFormatter(pattern), result.get("created").toString());
+        assertThat(plan.getOldFeedIndex(), equalTo(firstIndex));
+        assertThat(plan.removedAliasIndices(), equalTo(firstIndex));
+
+        // nothing changed
+        assertThat(action.getAliases(action.getRoll("tweets")).size(), equalTo(1));
+        assertThat(action.getAliases(action.getFeed("tweets")).containsKey(firstIndex), equalTo(true));
+    }
+
+    @Test public void rollOnlyIfConditionMatches() throws Exception {
+        Settings emptySettings = ImmutableSettings.settingsBuilder().build();
+        RollAction action = new RollAction(emptySettings, client, new RestController(emptySettings));
+        String pattern = "yyyy-MM-dd-HH-mm-ss-S";
+
+        RollRequest request = new RollRequest("tweets", 3, 3).indexTimestampPattern(pattern).maxDocs(2).
+                indexSettings(action.toSettings(
+                action.createIndexSettings(1, 0, "10s").string()));
+        Map<String, Object> result = action.rollIndex(request);
+        assertThat((Boolean) result.get("rolled"), equalTo(true));
+        assertThat((String) result.get("condition"), equalTo("no feed index"));
+        String feedIndex = result.get("created").toString();
+
+        client.prepareIndex(action.getFeed("tweets"), "tweet", "1").setSource("{\"text\": \"a\"}").setRefresh(true).
+                execute().actionGet();
+        Thread.sleep(20);
+        result = action.rollIndex(request);
+        assertThat((Boolean) result.get("rolled"), equalTo(false));
+        assertThat((String) result.get("feed"), equalTo(feedIndex));
+        assertThat(action.getAliases(action.getRoll("tweets")).size(), equalTo(1));
+
+        client.prepareIndex(action.getFeed("tweets"), "tweet", "2").setSource("{\"text\": \"b\"}").setRefresh(true).
+                execute().actionGet();
+        result = action.rollIndex(request);
+        assertThat((Boolean) result.get("rolled"), equalTo(true));
+        assertThat((String) result.get("condition"), containsString("maxDocs"));
+        assertThat(action.getAliases(action.getRoll("tweets")).size(), equalTo(2));
+    }
+
+    @Test public void standbyIndexShouldBePromoted() throws Exception {
+        Settings emptySettings = ImmutableSettings.settingsBuilder().build();
+        RollAction action = new RollAction(emptySettings, client, new RestController(emptySettings));
+        String pattern = "yyyy-MM-dd-HH-mm-ss-S";
+
+        RollRequest request = new RollRequest("tweets", 2, 2).indexTimestampPattern(pattern).standby(true).
+                indexSettings(action.toSettings(
+                action.createIndexSettings(1, 0, "10s").string()));
+        Map<String, Object> result = action.rollIndex(request);
+        assertThat(result.containsKey("promotedStandby"), equalTo(false));
+        String standby = result.get("standby").toString();
+        waitForAliases(action, action.getStandby("tweets"), 1);
+        // the standby index is neither searched nor fed
+        assertThat(action.getAliases(action.getRoll("tweets")).size(), equalTo(2));
+        assertThat(action.getAliases(action.getSearch("tweets")).size(), equalTo(1));
+
+        result = action.rollIndex(request);
+        assertThat((Boolean) result.get("promotedStandby"), equalTo(true));
+        assertThat(result.get("created").toString(), equalTo(standby));
+        assertThat(action.getAliases(action.getFeed("tweets")).containsKey(standby), equalTo(true));
+        assertThat(action.getAliases(action.getSearch("tweets")).size(), equalTo(2));
+        waitForAliases(action, action.getStandby("tweets"), 1);
+        assertThat(action.getAliases(action.getStandby("tweets")).containsKey(result.get("standby").toString()),
+                equalTo(true));
+    }
+
+    @Test public void immediateRollsShouldPromoteTheStandby() throws Exception {
+        Settings emptySettings = ImmutableSettings.settingsBuilder().build();
+        RollAction action = new RollAction(emptySettings, client, new RestController(emptySettings));
+        RollRequest request = new RollRequest("tweets", 4, 4).indexNaming("sequence").standby(true).
+                indexSettings(action.toSettings(
+                action.createIndexSettings(1, 0, "10s").string()));
+        String standby = action.rollIndex(request).get("standby").toString();
+        for (int i = 0; i < 3; i++) {
+            // no wait for the standby, its name is taken as soon as the roll returns
+            Map<String, Object> result = action.rollIndex(request);
+            assertThat((Boolean) result.get("promotedStandby"), equalTo(true));
+            assertThat(result.get("created").toString(), equalTo(standby));
+            standby = result.get("standby").toString();
+        }
+        assertThat(action.getAliases(action.getStandby("tweets")).containsKey(standby), equalTo(true));
+    }
+
+    @Test public void promotedStandbyShouldStartAtThePromotion() throws Exception {
+        Settings emptySettings = ImmutableSettings.settingsBuilder().build();
+        RollAction action = new RollAction(emptySettings, client, new RestController(emptySettings));
+        String pattern = "yyyy-MM-dd-HH-mm";
+        RollRequest request = new RollRequest("tweets", 4, 4).indexTimestampPattern(pattern).standby(true).
+                indexSettings(action.toSettings(
+                action.createIndexSettings(1, 0, "10s").string()));
+        String feed = action.rollIndex(request).get("created").toString();
+        long before = System.currentTimeMillis();
+        String promoted = action.rollIndex(request).get("created").toString();
+        long after = System.currentTimeMillis();
+
+        // the name of the standby carries the next minute after its creation
+        RollFamily.Timeline timeline = RollFamily.create(action.getMetaData(action.getRoll("tweets")), "tweets").
+                timeline(pattern, action.createFormatter(pattern));
+        assertThat(timeline.get(0).name(), equalTo(feed));
+        assertThat(timeline.get(1).name(), equalTo(promoted));
+        assertThat(timeline.time(1) >= before && timeline.time(1) <= after, equalTo(true));
+        assertThat(timeline.end(0), equalTo(timeline.time(1)));
+    }
+
+    @Test public void batchRollShouldRollAllFamilies() throws Exception {
+        Settings emptySettings = ImmutableSettings.settingsBuilder().build();
+        RollAction action = new RollAction(emptySettings, client, new RestController(emptySettings));
+        String pattern = "yyyy-MM-dd-HH-mm-ss-S";
+
+        Map<String, Object> result = action.rollIndex(new RollRequest("tweets,users", 2, 1).indexTimestampPattern(pattern));
+        assertThat(result.keySet().toString(), equalTo("[tweets, users]"));
+        assertThat(action.getAliases(action.getFeed("tweets")).size(), equalTo(1));
+        assertThat(action.getAliases(action.getFeed("users")).size(), equalTo(1));
+        String firstTweets = ((Map<?, ?>) result.get("tweets")).get("created").toString();
+
+        Thread.sleep(20);
+        // wildcards only match existing families
+        result = action.rollIndex(new RollRequest("tw*,us*,unknown*", 2, 1).indexTimestampPattern(pattern));
+        assertThat(result.keySet().toString(), equalTo("[tweets, users]"));
+        assertThat(action.getAliases(action.getRoll("tweets")).size(), equalTo(2));
+        assertThat(action.getAliases(action.getRoll("users")).size(), equalTo(2));
+        assertThat(action.getAliases(action.getSearch("tweets")).size(), equalTo(1));
+        assertThat(action.getAliases(action.getFeed("tweets")).containsKey(firstTweets), equalTo(false));
+    }
+
+    @Test public void registryShouldFollowRolls() throws Exception {
+        Settings emptySettings = ImmutableSettings.settingsBuilder().build();
+        RollRegistry registry = ((InternalNode) node("node1")).injector().getInstance(RollRegistry.class);
+        RollAction action = new RollAction(emptySettings, client, new RestController(emptySettings), registry,
+                new RollDemoter(emptySettings, client));
+        String pattern = "yyyy-MM-dd-HH-mm-ss-S";
+
+        String first = action.rollIndex("tweets", 2, 1, pattern).get("created").toString();
+        Thread.sleep(20);
+        String second = action.rollIndex("tweets", 2, 1, pattern).get("created").toString();
+        assertThat(registry.isReady(), equalTo(true));
+        RollFamily family = registry.family("tweets");
+        assertThat(family.members().size(), equalTo(2));
+        assertThat(family.feedIndex(), equalTo(second));
+        RollFamily.Timeline timeline = family.timeline(pattern, action.createFormatter(pattern));
+        assertThat(timeline.get(0).name(), equalTo(first));
+        assertThat(timeline.get(1).name(), equalTo(second));
+
+        client.admin().indices().delete(new DeleteIndexRequest(first)).actionGet();
+        assertThat(registry.family("tweets").members().size(), equalTo(1));
+        assertThat(registry.prefixes().contains("tweets"), equalTo(true));
+    }
+
+    @Test public void indicesWithIdenticalDateShouldBeSortedByName() throws Exception {
+        Settings emptySettings = ImmutableSettings.settingsBuilder().build();
+        RollAction action = new RollAction(emptySettings, client, new RestController(emptySettings));
+        for (String index : new String[]{"tweets_2014-01-01-00-00", "tweets_2014-1-1-0-0"}) {
+            client.admin().indices().create(new CreateIndexRequest(index)).actionGet();
+            action.addAlias(index, action.getRoll("tweets"));
+        }
+        assertThat(RollFamily.parseTimestamp(action.createFormatter(), "tweets_2014-1-1-0-0"),
+                equalTo(RollFamily.parseTimestamp(action.createFormatter(), "tweets_2014-01-01-00-00")));
+        assertThat(RollFamily.parseTimestamp(action.createFormatter(), "tweets_2014-01-01-00-00-b"),
+                equalTo(RollFamily.NO_TIME));
+
+        RollPlan plan = action.plan(action.getMetaData(action.getRoll("tweets")), new RollRequest("tweets", 2, 1),
+                action.createFormatter(), "tweets_2014-01-02-00-00");
+        assertThat(plan.getOldFeedIndex(), equalTo("tweets_2014-1-1-0-0"));
+        assertThat(plan.getCloseIndices().toString(), equalTo("[tweets_2014-01-01-00-00]"));
+    }
+
+    @Test public void demotionWithoutMergeShouldRefresh() throws Exception {
+        Settings emptySettings = ImmutableSettings.settingsBuilder().build();
+        RollAction action = new RollAction(emptySettings, client, new RestController(emptySettings));
+        String pattern = "yyyy-MM-dd-HH-mm-ss-S";
+        RollRequest request = new RollRequest("tweets", 3, 2).indexTimestampPattern(pattern).
+                demotion(new Demotion().maxNumSegments(0).readOnly(false));
+
+        String first = action.rollIndex(request).get("created").toString();
+        // not refreshed before the refresh is disabled
+        client.prepareIndex(first, "tweet", "1").setSource("{\"text\":\"a\"}").get();
+        Thread.sleep(20);
+        action.rollIndex(request);
+        for (int i = 0; i < 100 && !isDone(action.demoter().progress().get(first)); i++) {
+            Thread.sleep(50);
+        }
+        assertThat(isDone(action.demoter().progress().get(first)), equalTo(true));
+        assertThat(indexSettings(first).get("index.refresh_interval"), equalTo("-1"));
+        assertThat(client.prepareCount(first).get().getCount(), equalTo(1L));
+    }
+
+    @Test public void oldFeedIndexShouldBeDemoted() throws Exception {
+        Settings emptySettings = ImmutableSettings.settingsBuilder().build();
+        RollAction action = new RollAction(emptySettings, client, new RestController(emptySettings));
+        String pattern = "yyyy-MM-dd-HH-mm-ss-S";
+        RollRequest request = new RollRequest("tweets", 3, 2).indexTimestampPattern(pattern).
+                demotion(new Demotion().maxNumSegments(1).replicas(0));
+
+        String first = action.rollIndex(request).get("created").toString();
+        client.prepareIndex(first, "tweet", "1").setSource("{\"text\":\"a\"}").setRefresh(true).get();
+        Thread.sleep(20);
+        Map<String, Object> result = action.rollIndex(request);
+        assertThat(result.get("demoting").toString(), equalTo(first));
+        for (int i = 0; i < 100 && !isDone(action.demoter().progress().get(first)); i++) {
+            Thread.sleep(50);
+        }
+        assertThat(isDone(action.demoter().progress().get(first)), equalTo(true));
+
+        Settings settings = indexSettings(first);
+        assertThat(settings.get("index.refresh_interval"), equalTo("-1"));
+        assertThat(settings.get("index.number_of_replicas"), equalTo("0"));
+        assertThat(settings.getAsBoolean("index.blocks.write", false), equalTo(true));
+        // still searchable
+        assertThat(client.prepareCount(action.getSearch("tweets")).get().getCount(), equalTo(1L));
+    }
+
+    @Test public void feedProfileShouldSwitchToSearchProfileAfterRoll() throws Exception {
+        Settings emptySettings = ImmutableSettings.settingsBuilder().build();
+        RollAction action = new RollAction(emptySettings, client, new RestController(emptySettings));
+        RollRequest request = new RollRequest("tweets", 3, 2).indexNaming("sequence").
+                indexSettings(ImmutableSettings.settingsBuilder().
+                        put("number_of_shards", 1).put("number_of_replicas", 1).put("refresh_interval", "10s").build()).
+                profiles(new SettingsProfiles().
+                        feed(SettingsProfiles.parseSettings("number_of_replicas:0,refresh_interval:-1")).
+                        search("number_of_replicas", 1).search("refresh_interval", "5s"));
+
+        String first = action.rollIndex(request).get("created").toString();
+        Settings settings = indexSettings(first);
+        assertThat(settings.get("index.number_of_replicas"), equalTo("0"));
+        assertThat(settings.get("index.refresh_interval"), equalTo("-1"));
+        assertThat(settings.get("refresh_interval"), nullValue());
+
+        Map<String, Object> result = action.rollIndex(request);
+        assertThat(result.get("demoting").toString(), equalTo(first));
+        for (int i = 0; i < 100 && !isDone(action.demoter().progress().get(first)); i++) {
+            Thread.sleep(50);
+        }
+        assertThat(isDone(action.demoter().progress().get(first)), equalTo(true));
+        settings = indexSettings(first);
+        assertThat(settings.get("index.number_of_replicas"), equalTo("1"));
+        assertThat(settings.get("index.refresh_interval"), equalTo("5s"));
+        // only the search profile is applied without a demotion
+        assertThat(settings.getAsBoolean("index.blocks.write", false), equalTo(false));
+        assertThat(indexSettings(result.get("created").toString()).get("index.number_of_replicas"), equalTo("0"));
+
+        // the template mode gets the feed profile via the create request
+        request.template("{\"settings\":{\"number_of_replicas\":1}}");
+        result = action.rollIndex(request);
+        assertThat(indexSettings(result.get("created").toString()).get("index.number_of_replicas"), equalTo("0"));
+    }
+
+    @Test public void bodySettingsShouldBeMergedWithTheFeedProfile() throws Exception {
+        Settings emptySettings = ImmutableSettings.settingsBuilder().build();
+        RollAction action = new RollAction(emptySettings, client, new RestController(emptySettings));
+        Map<String, Object> body = XContentHelper.convertToMap(("{\"settings\":{\"number_of_shards\":1,"
+                + "\"number_of_replicas\":1},\"mappings\":{\"tweet\":{\"properties\":{\"user\":{\"type\":\"string\"}}}}}").
+                getBytes(), false).v2();
+        Settings bodySettings = RollAction.removeSettings(body);
+        assertThat(body.keySet().toString(), equalTo("[mappings]"));
+        // a body without sections consists only of settings
+        Map<String, Object> plain = new HashMap<String, Object>();
+        plain.put("number_of_shards", 1);
+        assertThat(RollAction.removeSettings(plain).get("number_of_shards"), equalTo("1"));
+        assertThat(plain.isEmpty(), equalTo(true));
+
+        RollRequest request = new RollRequest("tweets", 3, 2).indexNaming("sequence").indexSettings(bodySettings).
+                createIndexRequest(new CreateIndexRequest("").source(body)).
+                profiles(new SettingsProfiles().feed(SettingsProfiles.parseSettings("number_of_replicas:0")));
+        String created = action.rollIndex(request).get("created").toString();
+        IndexMetaData metaData = client.admin().cluster().prepareState().get().getState().getMetaData().index(created);
+        assertThat(metaData.numberOfShards(), equalTo(1));
+        assertThat(metaData.numberOfReplicas(), equalTo(0));
+        assertThat(metaData.mappings().containsKey("tweet"), equalTo(true));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test public void rollStatsShouldCountRollsAndFamilySize() throws Exception {
+        Settings emptySettings = ImmutableSettings.settingsBuilder().build();
+        RollAction action = new RollAction(emptySettings, client, new RestController(emptySettings));
+        RollRequest request = new RollRequest("tweets", 3, 2).indexNaming("sequence").
+                indexSettings(ImmutableSettings.settingsBuilder().
+                        put("number_of_shards", 2).put("number_of_replicas", 0).build());
+        action.rollIndex(request);
+        Map<String, Object> result = action.rollIndex(request);
+        assertThat(((Map<String, Long>) result.get("took")).keySet().toString(),
+                equalTo("[state, prepare, create, swap, retire]"));
+        // without started primaries the feed index has no stats and would be rolled
+        client.admin().cluster().prepareHealth("tweets_000002").setWaitForYellowStatus().get();
+        action.rollIndex(new RollRequest("tweets", 3, 2).indexNaming("sequence").maxDocs(100));
+        // the index of the next roll exists without aliases
+        client.admin().indices().prepareCreate("tweets_000003").get();
+        try {
+            action.rollIndex(request);
+            assertThat("roll should fail", false);
+        } catch (Exception ex) {
+        }
+
+        PlainActionFuture<Map<String, Object>> future = PlainActionFuture.newFuture();
+        action.rollStats(new String[]{"tw*"}, future);
+        Map<String, Object> tweets = (Map<String, Object>) ((Map<String, Object>) future.get().get("prefixes")).get("tweets");
+        assertThat(tweets.get("rolls"), equalTo((Object) 2L));
+        assertThat(tweets.get("skipped"), equalTo((Object) 1L));
+        assertThat(tweets.get("failures"), equalTo((Object) 1L));
+        assertThat(tweets.get("lastError").toString(), containsString("tweets_000003"));
+        Map<String, Object> phases = (Map<String, Object>) tweets.get("phases");
+        assertThat(((Map<String, Object>) phases.get("swap")).get("count"), equalTo((Object) 2L));
+        // the failed roll passed the state read
+        assertThat(((Map<String, Object>) phases.get("state")).get("count"), equalTo((Object) 3L));
+
+        Map<String, Object> family = (Map<String, Object>) tweets.get("family");
+        assertThat(((Map<String, Object>) family.get("search")).get("indices"), equalTo((Object) 2L));
+        assertThat(((Map<String, Object>) family.get("roll")).get("shards"), equalTo((Object) 4L));
+        assertThat(((Map<String, Object>) family.get("feed")).get("primaries"), equalTo((Object) 2L));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test public void rollUpdateShouldRouteToOwningIndex() throws Exception {
+        Settings emptySettings = ImmutableSettings.settingsBuilder().build();
+        RollAction action = new RollAction(emptySettings, client, new RestController(emptySettings));
+        RollUpdateAction updateAction = new RollUpdateAction(emptySettings, client, new RestController(emptySettings),
+                action);
+        RollBulkAction bulkAction = new RollBulkAction(emptySettings, client, new RestController(emptySettings), action);
+        String pattern = "yyyy-MM-dd-HH-mm-ss-S";
+        // the default demotion blocks writes, but not with an id filter
+        RollRequest request = new RollRequest("tweets", 3, 3).indexTimestampPattern(pattern).
+                demotion(new Demotion().maxNumSegments(0).idFilter(true));
+
+        String first = action.rollIndex(request).get("created").toString();
+        client.prepareIndex(first, "tweet", "1").setSource("{\"text\":\"a\"}").get();
+        client.prepareIndex(first, "tweet", "2").setSource("{\"text\":\"b\"}").get();
+        long late = System.currentTimeMillis();
+        Thread.sleep(200);
+        String second = action.rollIndex(request).get("created").toString();
+        for (int i = 0; i < 100 && !isDone(action.demoter().progress().get(first)); i++) {
+            Thread.sleep(50);
+        }
+        assertThat(isDone(action.demoter().progress().get(first)), equalTo(true));
+        assertThat(indexSettings(first).get("index.blocks.write"), equalTo(null));
+        assertThat(indexSettings(first).getAsLong(RollFamily.ID_FILTER, RollFamily.NO_TIME),
+                not(equalTo(RollFamily.NO_TIME)));
+        Map<String, Object> mapping = client.admin().indices().prepareGetMappings(RollPolicy.INDEX).
+                setTypes(RollIdFilters.TYPE).get().mappings().get(RollPolicy.INDEX).get(RollIdFilters.TYPE).sourceAsMap();
+        assertThat(((Map<String, Object>) ((Map<String, Object>) mapping.get("properties")).get("filter")).get("type"),
+                equalTo((Object) "binary"));
+
+        PlainActionFuture<Map<String, Object>> future = PlainActionFuture.newFuture();
+        updateAction.update("tweets", pattern, new UpdateRequest("tweets", "tweet", "1").
+                source(new BytesArray("{\"doc\":{\"text\":\"c\"}}")), future);
+        Map<String, Object> result = future.get();
+        assertThat(result.get("_index").toString(), equalTo(first));
+        assertThat(result.get("routedBy").toString(), equalTo("filter"));
+
+        future = PlainActionFuture.newFuture();
+        updateAction.update("tweets", pattern, new UpdateRequest("tweets", "tweet", "3").
+                source(new BytesArray("{\"doc\":{\"text\":\"d\"}, \"doc_as_upsert\":true}")), future);
+        result = future.get();
+        assertThat(result.get("_index").toString(), equalTo(second));
+        assertThat(result.get("routedBy").toString(), equalTo("feed"));
+
+        // a late document drops the filter, which does not know its id
+        PlainActionFuture<BulkResponse> bulkFuture = PlainActionFuture.newFuture();
+        bulkAction.bulk(new RollBulkRequest("tweets", new BulkRequest().refresh(true).add(new IndexRequest("tweets",
+                "tweet", "4").source("{\"timestamp\":" + late + "}"))).indexTimestampPattern(pattern), bulkFuture);
+        assertThat(bulkFuture.get().getItems()[0].getIndex(), equalTo(first));
+        assertThat(indexSettings(first).getAsLong(RollFamily.ID_FILTER, 0L), equalTo(RollFamily.NO_TIME));
+
+        future = PlainActionFuture.newFuture();
+        updateAction.update("tweets", pattern, new UpdateRequest("tweets", "tweet", "4").
+                source(new BytesArray("{\"doc\":{\"text\":\"e\"}, \"doc_as_upsert\":true}")), future);
+        result = future.get();
+        assertThat(result.get("_index").toString(), equalTo(first));
+        assertThat(result.get("routedBy").toString(), equalTo("search"));
+
+        client.admin().indices().prepareRefresh().get();
+        assertThat(client.prepareCount(action.getSearch("tweets")).get().getCount(), equalTo(4L));
+    }
+
+    @Test public void idFilterCacheShouldDropTheLeastRecentlyUsedFilters() throws Exception {
+        long filterSize = BloomFilter.create(1000, 0.01).getSizeInBytes();
+        RollIdFilters idFilters = new RollIdFilters(ImmutableSettings.settingsBuilder().
+                put("rollindex.idfilter.cache_size", 2 * filterSize + "b").build(), client);
+        idFilters.cache("a", new RollIdFilters.Cached(1, BloomFilter.create(1000, 0.01), 0));
+        idFilters.cache("b", new RollIdFilters.Cached(1, BloomFilter.create(1000, 0.01), 0));
+        PlainActionFuture<Boolean> future = PlainActionFuture.newFuture();
+        idFilters.mightContain("a", 1, "1", future);
+        assertThat(future.get(), equalTo(false));
+
+        idFilters.cache("c", new RollIdFilters.Cached(1, BloomFilter.create(1000, 0.01), 0));
+        assertThat(idFilters.cache().keySet(), equalTo((Object) new HashSet<String>(Arrays.asList("a", "c"))));
+        assertThat(idFilters.cachedBytes(), equalTo(2 * filterSize));
+
+        // a closed index does not need its filter in memory
+        idFilters.evict(Arrays.asList("a"));
+        assertThat(idFilters.cache().keySet(), equalTo((Object) Collections.singleton("c")));
+        assertThat(idFilters.cachedBytes(), equalTo(filterSize));
+
+        idFilters.cache("d", new RollIdFilters.Cached(1, BloomFilter.create(3000, 0.01), 0));
+        assertThat(idFilters.cache().keySet(), equalTo((Object) Collections.emptySet()));
+        assertThat(idFilters.cachedBytes(), equalTo(0L));
+    }
+
+    @Test public void agingIndicesShouldMoveToWarmNodes() throws Exception {
+        Settings emptySettings = ImmutableSettings.settingsBuilder().build();
+        RollAction action = new RollAction(emptySettings, client, new RestController(emptySettings));
+        String pattern = "yyyy-MM-dd-HH-mm-ss-S";
+        // the warm nodes do not exist, so the shards stay where they are
+        RollRequest request = new RollRequest("tweets", 3, 2).indexTimestampPattern(pattern).
+                hotNodeAttribute("_name:node1").warmNodeAttribute("_name:warmnode").hotIndices(1);
+
+        String first = action.rollIndex(request).get("created").toString();
+        assertThat(indexSettings(first).get("index.routing.allocation.require._name"), equalTo("node1"));
+        Thread.sleep(20);
+        Map<String, Object> result = action.rollIndex(request);
+        String second = result.get("created").toString();
+        assertThat(result.get("warm").toString(), equalTo(first));
+        for (int i = 0; i < 100 && !isDone(action.demoter().progress().get(first)); i++) {
+            Thread.sleep(50);
+        }
+        assertThat(indexSettings(first).get("index.routing.allocation.require._name"), equalTo("warmnode"));
+        assertThat(indexSettings(second).get("index.routing.allocation.require._name"), equalTo("node1"));
+
+        // already warm indices are not moved again
+        Thread.sleep(20);
+        result = action.rollIndex(request);
+        assertThat(result.get("warm").toString(), equalTo(second));
+    }
+
+    @Test public void warmMoveShouldClearTheHotAttribute() throws Exception {
+        Settings emptySettings = ImmutableSettings.settingsBuilder().build();
+        RollAction action = new RollAction(emptySettings, client, new RestController(emptySettings));
+        String nodeId = client.admin().cluster().prepareState().get().getState().getNodes().getMasterNodeId();
+        String pattern = "yyyy-MM-dd-HH-mm-ss-S";
+        RollRequest request = new RollRequest("tweets", 3, 2).indexTimestampPattern(pattern).
+                hotNodeAttribute("_name:node1").warmNodeAttribute("_id:" + nodeId).hotIndices(1);
+
+        String first = action.rollIndex(request).get("created").toString();
+        Thread.sleep(20);
+        action.rollIndex(request);
+        for (int i = 0; i < 100 && !isDone(action.demoter().progress().get(first)); i++) {
+            Thread.sleep(50);
+        }
+        assertThat(isDone(action.demoter().progress().get(first)), equalTo(true));
+        Settings settings = indexSettings(first);
+        assertThat(settings.get("index.routing.allocation.require._id"), equalTo(nodeId));
+        assertThat(settings.get("index.routing.allocation.require._name"), equalTo(""));
+        assertThat(client.admin().cluster().prepareHealth(first).setWaitForYellowStatus().get().isTimedOut(),
+                equalTo(false));
+    }
+
+    @Test public void rollSearchShouldOnlySearchOverlappingIndices() throws Exception {
+        Settings emptySettings = ImmutableSettings.settingsBuilder().build();
+        RollAction action = new RollAction(emptySettings, client, new RestController(emptySettings));
+        RollSearchAction searchAction = new RollSearchAction(emptySettings, client, new RestController(emptySettings),
+                action);
+        String[] indices = new String[]{"tweets_2014-01-01-00-00", "tweets_2014-01-02-00-00", "tweets_2014-01-03-00-00"};
+        for (String index : indices) {
+            client.admin().indices().create(new CreateIndexRequest(index)).actionGet();
+            action.addAlias(index, action.getRoll("tweets"));
+            action.addAlias(index, action.getSearch("tweets"));
+            client.prepareIndex(index, "tweet", "1").setSource("{\"text\":\"a\"}").setRefresh(true).get();
+        }
+        DateTimeFormatter formatter = action.createFormatter();
+        long day2 = formatter.parseMillis("2014-01-02-00-00");
+        RollFamily family = RollFamily.create(action.getMetaData(action.getRoll("tweets")), "tweets");
+
+        assertThat(Arrays.asList(searchAction.searchIndices(family, null, day2 + 3600000, day2 + 7200000)).toString(),
+                equalTo("[tweets_2014-01-02-00-00]"));
+        // the newest index is open ended
+        assertThat(Arrays.asList(searchAction.searchIndices(family, null, day2 * 2, Long.MAX_VALUE)).toString(),
+                equalTo("[tweets_2014-01-03-00-00]"));
+        assertThat(searchAction.searchIndices(family, null, 0, day2 - 48 * 3600000).length, equalTo(0));
+        assertThat(searchAction.searchIndices(family, null, Long.MIN_VALUE, Long.MAX_VALUE).length, equalTo(3));
+
+        PlainActionFuture<SearchResponse> future = PlainActionFuture.newFuture();
+        searchAction.search("tweets", null, day2 - 1, day2 + 1, new SearchRequest(), future);
+        SearchResponse response = future.actionGet();
+        assertThat(response.getHits().getTotalHits(), equalTo(2L));
+        assertThat(response.getTotalShards(), equalTo(10));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test public void rollSearchShouldTakeTheTimeRangeFromItsOwnParameters() throws Exception {
+        Settings emptySettings = ImmutableSettings.settingsBuilder().build();
+        RollAction action = new RollAction(emptySettings, client, new RestController(emptySettings));
+        RollSearchAction searchAction = new RollSearchAction(emptySettings, client, new RestController(emptySettings),
+                action);
+        String[] indices = new String[]{"tweets_2014-01-01-00-00", "tweets_2014-01-02-00-00", "tweets_2014-01-03-00-00"};
+        for (String index : indices) {
+            client.admin().indices().create(new CreateIndexRequest(index)).actionGet();
+            action.addAlias(index, action.getRoll("tweets"));
+            action.addAlias(index, action.getSearch("tweets"));
+            client.prepareIndex(index, "tweet", "1").setSource("{\"text\":\"a\"}").setRefresh(true).get();
+        }
+        long day2 = action.createFormatter().parseMillis("2014-01-02-00-00");
+        DateTimeFormatter iso = ISODateTimeFormat.dateTime().withZoneUTC();
+
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("index", "tweets");
+        params.put("timeFrom", iso.print(day2 + 3600000));
+        params.put("timeTo", iso.print(day2 + 7200000));
+        Map<String, Object> response = restCall(searchAction, params);
+        assertThat(((Map<String, Object>) response.get("hits")).get("total"), equalTo((Object) 1));
+        assertThat(((Map<String, Object>) response.get("_shards")).get("total"), equalTo((Object) 5));
+
+        // from pages through the hits like for a normal search
+        params.remove("timeTo");
+        params.put("timeFrom", "now-1h");
+        params.put("from", "1");
+        response = restCall(searchAction, params);
+        assertThat(((Map<String, Object>) response.get("hits")).get("total"), equalTo((Object) 1));
+        assertThat(((List<?>) ((Map<String, Object>) response.get("hits")).get("hits")).size(), equalTo(0));
+    }
+
+    @Test public void rollSearchShouldReopenArchivedIndices() throws Exception {
+        Settings emptySettings = ImmutableSettings.settingsBuilder().build();
+        RollAction action = new RollAction(emptySettings, client, new RestController(emptySettings));
+        // nothing stays open after the search
+        RollReopener reopener = new RollReopener(ImmutableSettings.settingsBuilder().
+                put("rollindex.reopen.max_indices", 0).build(), client);
+        RollSearchAction searchAction = new RollSearchAction(emptySettings, client, new RestController(emptySettings),
+                action, reopener);
+        String pattern = "yyyy-MM-dd-HH-mm-ss-S";
+        RollRequest request = new RollRequest("tweets", 2, 2).indexTimestampPattern(pattern);
+
+        String first = action.rollIndex(request).get("created").toString();
+        Thread.sleep(20);
+        action.rollIndex(request);
+        Thread.sleep(20);
+        Map<String, Object> result = action.rollIndex(request);
+        assertThat(result.get("closed").toString(), equalTo(first));
+        waitForSweeper(action.sweeper());
+
+        PlainActionFuture<SearchResponse> future = PlainActionFuture.newFuture();
+        searchAction.search("tweets", pattern, Long.MIN_VALUE, Long.MAX_VALUE, new SearchRequest(), future);
+        assertThat(future.actionGet().getTotalShards(), equalTo(10));
+
+        // the test nodes have no gateway, so only the shards of the reopened index can be checked
+        future = PlainActionFuture.newFuture();
+        searchAction.search("tweets", pattern, Long.MIN_VALUE, Long.MAX_VALUE, true, new SearchRequest(), future);
+        SearchResponse response = future.actionGet();
+        assertThat(response.getTotalShards(), equalTo(15));
+        assertThat(response.getFailedShards(), equalTo(0));
+        // closed again as least recently used
+        assertThat(reopener.reopened().isEmpty(), equalTo(true));
+        for (int i = 0; i < 100 && isOpen(first); i++) {
+            Thread.sleep(50);
+        }
+        assertThat(isOpen(first), equalTo(false));
+    }
+
+    @Test public void compactShouldMergeIndicesWhichLeftSearch() throws Exception {
+        Settings emptySettings = ImmutableSettings.settingsBuilder().build();
+        RollAction action = new RollAction(emptySettings, client, new RestController(emptySettings));
+        RollCompactAction compactAction = new RollCompactAction(emptySettings, client, new RestController(emptySettings),
+                action);
+        String pattern = "yyyy-MM-dd-HH-mm-ss-S";
+        RollRequest request = new RollRequest("tweets", 5, 1).indexTimestampPattern(pattern);
+        List<String> indices = new ArrayList<String>();
+        for (int i = 0; i < 4; i++) {
+            String index = action.rollIndex(request).get("created").toString();
+            client.prepareIndex(index, "tweet", "" + i).setSource("{\"text\":\"a\"}").setRefresh(true).get();
+            indices.add(index);
+            Thread.sleep(20);
+        }
+
+        PlainActionFuture<Map<String, Object>> future = PlainActionFuture.newFuture();
+        compactAction.compact(new RollCompactRequest("tweets").indexTimestampPattern(pattern), future);
+        Map<String, Object> result = future.get();
+        assertThat(result.get("sources").toString(), equalTo(indices.subList(0, 3).toString()));
+        assertThat(result.get("docs").toString(), equalTo("3"));
+        String compacted = result.get("index").toString();
+
+        RollFamily family = RollFamily.create(action.getMetaData(action.getRoll("tweets")), "tweets");
+        assertThat(family.members().size(), equalTo(2));
+        RollFamily.Timeline timeline = family.timeline(pattern, action.createFormatter(pattern));
+        assertThat(timeline.get(0).name(), equalTo(compacted));
+        assertThat(timeline.get(1).name(), equalTo(indices.get(3)));
+        client.admin().indices().prepareRefresh(compacted).get();
+        assertThat(client.prepareCount(action.getRoll("tweets")).get().getCount(), equalTo(4L));
+
+        // a single index is not compacted
+        future = PlainActionFuture.newFuture();
+        compactAction.compact(new RollCompactRequest("tweets").indexTimestampPattern(pattern), future);
+        assertThat(future.get().get("compacted"), equalTo((Object) false));
+    }
+
+    @Test public void compactedIndexShouldKeepTheTierAndProfileOfTheSources() throws Exception {
+        Settings emptySettings = ImmutableSettings.settingsBuilder().build();
+        RollAction action = new RollAction(emptySettings, client, new RestController(emptySettings));
+        RollCompactAction compactAction = new RollCompactAction(emptySettings, client, new RestController(emptySettings),
+                action);
+        String nodeId = client.admin().cluster().prepareState().get().getState().getNodes().getMasterNodeId();
+        String pattern = "yyyy-MM-dd-HH-mm-ss-S";
+        RollRequest request = new RollRequest("tweets", 5, 1).indexTimestampPattern(pattern);
+        List<String> indices = new ArrayList<String>();
+        for (int i = 0; i < 3; i++) {
+            indices.add(action.rollIndex(request).get("created").toString());
+            Thread.sleep(20);
+        }
+        // like a demotion to the warm nodes with the search profile
+        client.admin().indices().prepareUpdateSettings(indices.get(0), indices.get(1)).setSettings(
+                ImmutableSettings.settingsBuilder().put("index.routing.allocation.require._id", nodeId).
+                        put("index.refresh_interval", "30s").put("index.blocks.write", true)).get();
+
+        PlainActionFuture<Map<String, Object>> future = PlainActionFuture.newFuture();
+        compactAction.compact(new RollCompactRequest("tweets").indexTimestampPattern(pattern).
+                indexSettings(ImmutableSettings.settingsBuilder().put("number_of_shards", 1).
+                        put("refresh_interval", "10s").build()), future);
+        String compacted = future.get().get("index").toString();
+        Settings settings = indexSettings(compacted);
+        assertThat(settings.get("index.routing.allocation.require._id"), equalTo(nodeId));
+        assertThat(settings.get("index.refresh_interval"), equalTo("30s"));
+        assertThat(settings.get("refresh_interval"), nullValue());
+        assertThat(settings.get("index.number_of_shards"), equalTo("1"));
+        assertThat(settings.get("index.blocks.write"), nullValue());
+        assertThat(settings.get(RollFamily.START), nullValue());
+    }
+
+    @Test public void failedCompactionShouldKeepTheSources() throws Exception {
+        Settings emptySettings = ImmutableSettings.settingsBuilder().build();
+        RollAction action = new RollAction(emptySettings, client, new RestController(emptySettings));
+        RollCompactAction compactAction = new RollCompactAction(emptySettings, client, new RestController(emptySettings),
+                action) {
+            @Override void swap(String alias, List<String> sources, String target, ActionListener<Object> listener) {
+                assertThat(indexSettings(sources.get(0)).get("index.blocks.write"), equalTo("true"));
+                listener.onFailure(new IllegalStateException("swap failed"));
+            }
+        };
+        String pattern = "yyyy-MM-dd-HH-mm-ss-S";
+        RollRequest request = new RollRequest("tweets", 5, 1).indexTimestampPattern(pattern);
+        List<String> indices = new ArrayList<String>();
+        for (int i = 0; i < 3; i++) {
+            String index = action.rollIndex(request).get("created").toString();
+            client.prepareIndex(index, "tweet", "" + i).setSource("{\"text\":\"a\"}").setRefresh(true).get();
+            indices.add(index);
+            Thread.sleep(20);
+        }
+
+        PlainActionFuture<Map<String, Object>> future = PlainActionFuture.newFuture();
+        compactAction.compact(new RollCompactRequest("tweets").indexTimestampPattern(pattern), future);
+        try {
+            future.get();
+            assertThat("compaction should fail", false);
+        } catch (ExecutionException ex) {
+            assertThat(ex.getCause().getMessage(), equalTo("swap failed"));
+        }
+
+        RollFamily family = RollFamily.create(action.getMetaData(action.getRoll("tweets")), "tweets");
+        assertThat(family.members().size(), equalTo(3));
+        for (String index : indices.subList(0, 2)) {
+            assertThat(indexSettings(index).get("index.blocks.write"), equalTo("false"));
+        }
+        List<String> existing = new ArrayList<String>();
+        for (String index : client.admin().cluster().prepareState().get().getState().metaData().concreteAllIndices()) {
+            if (index.startsWith("tweets"))
+                existing.add(index);
+        }
+        assertThat(existing.size(), equalTo(3));
+    }
+
+    @Test public void shardSizingShouldFollowIngestVolume() throws Exception {
+        Settings emptySettings = ImmutableSettings.settingsBuilder().build();
+        RollAction action = new RollAction(emptySettings, client, new RestController(emptySettings));
+        RollRequest request = new RollRequest("tweets", 3, 2).indexNaming("sequence");
+        String first = action.rollIndex(request).get("created").toString();
+        for (int i = 0; i < 20; i++) {
+            client.prepareIndex(first, "tweet", "" + i).setSource("{\"text\":\"tweet " + i + "\"}").get();
+        }
+        client.admin().indices().prepareFlush(first).get();
+
+        // every byte needs a shard, so the upper bound wins
+        request.shardSizing(new ShardSizing(new ByteSizeValue(1)).maxShards(3));
+        Map<String, Object> result = action.rollIndex(request);
+        assertThat(result.get("shards"), equalTo((Object) 3));
+        assertThat(result.get("shardsReason").toString(), containsString("average of 1 indices"));
+        assertThat(numberOfShards(result.get("created").toString()), equalTo(3));
+
+        // a quiet prefix gets the lower bound
+        request.shardSizing(new ShardSizing(ByteSizeValue.parseBytesSizeValue("1gb")).minShards(1));
+        result = action.rollIndex(request);
+        assertThat(result.get("shards"), equalTo((Object) 1));
+        assertThat(numberOfShards(result.get("created").toString()), equalTo(1));
+
+        // the body settings are kept
+        request.indexSettings(ImmutableSettings.settingsBuilder().
+                put("number_of_shards", 4).put("number_of_replicas", 0).build());
+        result = action.rollIndex(request);
+        IndexMetaData metaData = client.admin().cluster().prepareState().get().getState().getMetaData().
+                index(result.get("created").toString());
+        assertThat(metaData.numberOfShards(), equalTo(1));
+        assertThat(metaData.numberOfReplicas(), equalTo(0));
+    }
+
+    int numberOfShards(String index) {
+        return client.admin().cluster().prepareState().get().getState().getMetaData().index(index).numberOfShards();
+    }
+
+    @Test public void rollShouldRegisterTemplateOnce() throws Exception {
+        Settings emptySettings = ImmutableSettings.settingsBuilder().build();
+        RollAction action = new RollAction(emptySettings, client, new RestController(emptySettings));
+        String template = "{\"settings\":{\"index.number_of_shards\":1,\"index.number_of_replicas\":0},"
+                + "\"mappings\":{\"tweet\":{\"properties\":{\"user\":{\"type\":\"string\",\"index\":\"not_analyzed\"}}}}}";
+        RollRequest request = new RollRequest("tweets", 3, 2).indexNaming("sequence").template(template);
+        String first = action.rollIndex(request).get("created").toString();
+        String second = action.rollIndex(request).get("created").toString();
+        for (String index : Arrays.asList(first, second)) {
+            IndexMetaData metaData = client.admin().cluster().prepareState().get().getState().getMetaData().index(index);
+            assertThat(metaData.numberOfShards(), equalTo(1));
+            assertThat(metaData.mappings().containsKey("tweet"), equalTo(true));
+        }
+        String hash = client.admin().indices().prepareGetTemplates(RollTemplates.name("tweets")).get().
+                getIndexTemplates().get(0).settings().get(RollTemplates.HASH_SETTING);
+        assertThat(hash, equalTo(RollTemplates.hash(template)));
+
+        // a changed body replaces the template
+        String changed = template.replace("\"index.number_of_shards\":1", "\"index.number_of_shards\":2");
+        String third = action.rollIndex(request.template(changed)).get("created").toString();
+        assertThat(client.admin().cluster().prepareState().get().getState().getMetaData().index(third).
+                numberOfShards(), equalTo(2));
+        assertThat(client.admin().indices().prepareGetTemplates(RollTemplates.name("tweets")).get().
+                getIndexTemplates().get(0).settings().get(RollTemplates.HASH_SETTING),
+                equalTo(RollTemplates.hash(changed)));
+
+        // the template of the nested prefix wins over the one of tweets_* for tweets_de_*
+        String nested = template.replace("\"index.number_of_shards\":1", "\"index.number_of_shards\":3");
+        String nestedIndex = action.rollIndex(new RollRequest("tweets_de", 3, 2).indexNaming("sequence").
+                template(nested)).get("created").toString();
+        assertThat(client.admin().cluster().prepareState().get().getState().getMetaData().index(nestedIndex).
+                numberOfShards(), equalTo(3));
+        assertThat(client.admin().indices().prepareGetTemplates(RollTemplates.name("tweets_de")).get().
+                getIndexTemplates().get(0).order(), equalTo(1));
+
+        // a template deleted behind the cache is registered again after the next roll created an index without it
+        client.admin().indices().prepareDeleteTemplate(RollTemplates.name("tweets")).get();
+        String fourth = action.rollIndex(request).get("created").toString();
+        assertThat(client.admin().cluster().prepareState().get().getState().getMetaData().index(fourth).
+                settings().get(RollTemplates.HASH_SETTING), equalTo(null));
+        String fifth = action.rollIndex(request).get("created").toString();
+        assertThat(client.admin().cluster().prepareState().get().getState().getMetaData().index(fifth).
+                settings().get(RollTemplates.HASH_SETTING), equalTo(RollTemplates.hash(changed)));
+        client.admin().indices().prepareDeleteTemplate(RollTemplates.name("tweets")).get();
+        client.admin().indices().prepareDeleteTemplate(RollTemplates.name("tweets_de")).get();
+    }
+
+    @Test public void sequenceNamingShouldRollWithoutPause() throws Exception {
+        Settings emptySettings = ImmutableSettings.settingsBuilder().build();
+        RollAction action = new RollAction(emptySettings, client, new RestController(emptySettings));
+        // an existing timestamp named index stays older than the sequence named ones
+        String legacy = action.rollIndex(new RollRequest("tweets", 3, 2)).get("created").toString();
+        RollRequest request = new RollRequest("tweets", 3, 2).indexNaming("sequence").deleteAfterRoll(true).
+                closeAfterRoll(false);
+        Map<String, Object> result = null;
+        for (int i = 1; i <= 4; i++) {
+            result = action.rollIndex(request);
+            assertThat(result.get("created").toString(), equalTo("tweets_00000" + i));
+            if (i == 3)
+                assertThat(result.get("deleted").toString(), equalTo(legacy));
+            waitForSweeper(action.sweeper());
+        }
+        assertThat(result.get("deleted").toString(), equalTo("tweets_000001"));
+        assertThat(action.getAliases(action.getFeed("tweets")).containsKey("tweets_000004"), equalTo(true));
+        assertThat(action.getAliases(action.getSearch("tweets")).size(), equalTo(2));
+
+        result = action.rollIndex(request.indexNaming("timestamp_sequence"));
+        String created = result.get("created").toString();
+        assertThat(created.startsWith("tweets_") && created.endsWith("_000005"), equalTo(true));
+        assertThat(RollFamily.parseTimestamp(action.createFormatter(), created) != RollFamily.NO_TIME, equalTo(true));
+        assertThat(result.get("deleted").toString(), equalTo("tweets_000002"));
+        waitForSweeper(action.sweeper());
+    }
+
+    @Test public void digitOnlyPatternShouldNotBeReadAsGeneration() throws Exception {
+        Settings emptySettings = ImmutableSettings.settingsBuilder().build();
+        RollAction action = new RollAction(emptySettings, client, new RestController(emptySettings));
+        DateTimeFormatter formatter = action.createFormatter("yyyyMMddHHmm");
+        assertThat(RollFamily.parseGeneration(formatter, "tweets_201401011200"), equalTo(RollFamily.NO_GENERATION));
+        assertThat(RollFamily.parseGeneration(formatter, "tweets_000042"), equalTo(42L));
+        assertThat(RollFamily.parseGeneration(formatter, "tweets_201401011200_000042"), equalTo(42L));
+        assertThat(RollFamily.parseGeneration(action.createFormatter("yyyyMMdd"), "tweets_000402"), equalTo(402L));
+
+        RollRequest request = new RollRequest("tweets", 3, 2).indexTimestampPattern("yyyyMMddHHmm");
+        String first = action.rollIndex(request).get("created").toString();
+        String second = action.rollIndex(request).get("created").toString();
+        assertThat(RollFamily.parseTimestamp(formatter, second) > RollFamily.parseTimestamp(formatter, first),
+                equalTo(true));
+        // the timestamp named indices stay older than the first sequence named one
+        Map<String, Object> result = action.rollIndex(request.indexNaming("sequence"));
+        assertThat(result.get("created").toString(), equalTo("tweets_000001"));
+        assertThat(action.getAliases(action.getSearch("tweets")).containsKey(first), equalTo(false));
+        assertThat(action.getAliases(action.getSearch("tweets")).containsKey(second), equalTo(true));
+    }
+
+    @Test public void concurrentRollsShouldCoalesceAndResumeFromJournal() throws Exception {
+        Settings emptySettings = ImmutableSettings.settingsBuilder().build();
+        RollAction action = new RollAction(emptySettings, client, new RestController(emptySettings));
+        String pattern = "yyyy-MM-dd-HH-mm-ss-S";
+        RollRequest request = new RollRequest("tweets", 2, 1).indexTimestampPattern(pattern);
+        PlainActionFuture<Map<String, Object>> first = PlainActionFuture.newFuture();
+        PlainActionFuture<Map<String, Object>> second = PlainActionFuture.newFuture();
+        action.rollIndex(request, first);
+        action.rollIndex(request, second);
+        String created = first.actionGet().get("created").toString();
+        assertThat(second.actionGet().get("created").toString(), equalTo(created));
+        assertThat(second.actionGet().get("coalesced"), equalTo((Object) true));
+        assertThat(action.getAliases(action.getRoll("tweets")).size(), equalTo(1));
+        assertThat(client.prepareGet(RollPolicy.INDEX, RollJournal.TYPE, "tweets").get().getSource().get("step"),
+                equalTo((Object) RollJournal.RETIRED));
+
+        // a roll interrupted after the creation of its index is resumed with the same index
+        Thread.sleep(20);
+        String interrupted = "tweets_" + DateTimeFormat.forPattern(pattern).print(System.currentTimeMillis());
+        client.admin().indices().create(new CreateIndexRequest(interrupted)).actionGet();
+        Map<String, Object> entry = new HashMap<String, Object>();
+        entry.put("step", RollJournal.CREATED);
+        entry.put("time", System.currentTimeMillis());
+        entry.put("created", interrupted);
+        client.prepareIndex(RollPolicy.INDEX, RollJournal.TYPE, "tweets").setSource(entry).get();
+        try {
+            action.rollIndex(request);
+            assertThat("roll should be rejected while the journal entry is fresh", false);
+        } catch (Exception ex) {
+            assertThat(ex.getCause().getMessage(), containsString("in progress"));
+        }
+
+        action = new RollAction(ImmutableSettings.settingsBuilder().put("rollindex.journal.stale_after", 0).build(),
+                client, new RestController(emptySettings));
+        Map<String, Object> result = action.rollIndex(request);
+        assertThat(result.get("created").toString(), equalTo(interrupted));
+        assertThat(result.get("resumed"), equalTo((Object) true));
+        assertThat(action.getAliases(action.getFeed("tweets")).containsKey(interrupted), equalTo(true));
+        assertThat(action.getAliases(action.getRoll("tweets")).size(), equalTo(2));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test public void batchRollsShouldCoalescePerPrefix() throws Exception {
+        Settings emptySettings = ImmutableSettings.settingsBuilder().build();
+        final PlainActionFuture<Map<String, Object>> other = PlainActionFuture.newFuture();
+        final AtomicBoolean holdSwap = new AtomicBoolean();
+        // the roll with other parameters is started while the first one holds the journal entry
+        RollAction action = new RollAction(emptySettings, client, new RestController(emptySettings)) {
+            @Override void swap(final RollRequest request, final DateTimeFormatter formatter,
+                    final List<RollPlan> plans, final ActionListener<List<Map<String, Object>>> listener)
+                    throws IOException {
+                if (!holdSwap.compareAndSet(true, false)) {
+                    super.swap(request, formatter, plans, listener);
+                    return;
+                }
+                rollIndex(new RollRequest("tweets", 3, 1), new ActionListener<Map<String, Object>>() {
+                    @Override public void onResponse(Map<String, Object> response) {
+                        other.onResponse(response);
+                        resume(request, formatter, plans, listener);
+                    }
+
+                    @Override public void onFailure(Throwable t) {
+                        other.onFailure(t);
+                        resume(request, formatter, plans, listener);
+                    }
+                });
+            }
+
+            void resume(RollRequest request, DateTimeFormatter formatter, List<RollPlan> plans,
+                    ActionListener<List<Map<String, Object>>> listener) {
+                try {
+                    super.swap(request, formatter, plans, listener);
+                } catch (Throwable t) {
+                    listener.onFailure(t);
+                }
+            }
+        };
+        String pattern = "yyyy-MM-dd-HH-mm-ss-S";
+        RollRequest request = new RollRequest("tweets", 2, 1).indexTimestampPattern(pattern);
+        PlainActionFuture<Map<String, Object>> single = PlainActionFuture.newFuture();
+        PlainActionFuture<Map<String, Object>> batch = PlainActionFuture.newFuture();
+        action.rollIndex(request, single);
+        action.rollIndex(new RollRequest("tweets,users", 2, 1).indexTimestampPattern(pattern), batch);
+        String created = single.actionGet().get("created").toString();
+        Map<String, Object> tweets = (Map<String, Object>) batch.actionGet().get("tweets");
+        assertThat(tweets.get("created").toString(), equalTo(created));
+        assertThat(tweets.get("coalesced"), equalTo((Object) true));
+        assertThat(((Map<String, Object>) batch.actionGet().get("users")).get("coalesced"), nullValue());
+        assertThat(action.getAliases(action.getRoll("tweets")).size(), equalTo(1));
+
+        // other parameters are not coalesced in memory, the journal lets only one of them roll
+        holdSwap.set(true);
+        PlainActionFuture<Map<String, Object>> first = PlainActionFuture.newFuture();
+        action.rollIndex(request, first);
+        assertThat(first.get().get("coalesced"), nullValue());
+        assertThat(holdSwap.get(), equalTo(false));
+        try {
+            other.get();
+            assertThat("roll with other parameters should be rejected while the journal entry is open", false);
+        } catch (ExecutionException ex) {
+            assertThat(ExceptionsHelper.detailedMessage(ex), containsString("roll of [tweets] in progress"));
+        }
+        String rolled = first.get().get("created").toString();
+        assertThat(action.getAliases(action.getRoll("tweets")).containsKey(rolled), equalTo(true));
+        assertThat(action.getAliases(action.getRoll("tweets")).size(), equalTo(2));
+    }
+
+    @Test public void rollOfAnotherNodeShouldBeWaitedForOrResumed() throws Exception {
+        Settings emptySettings = ImmutableSettings.settingsBuilder().build();
+        Injector injector = ((InternalNode) node("node1")).injector();
+        String localNode = injector.getInstance(ClusterService.class).localNode().id();
+        final CountDownLatch waiting = new CountDownLatch(1);
+        RollJournal journal = new RollJournal(emptySettings, client, injector.getInstance(ClusterService.class),
+                injector.getInstance(ThreadPool.class)) {
+            @Override public void await(Collection<String> prefixes, ActionListener<Map<String, Entry>> listener) {
+                waiting.countDown();
+                super.await(prefixes, listener);
+            }
+        };
+        RollDemoter demoter = new RollDemoter(emptySettings, client);
+        RollAction action = new RollAction(emptySettings, client, new RestController(emptySettings), null, demoter,
+                new RollSweeper(emptySettings, client, null, demoter.idFilters()), journal,
+                new RollTemplates(emptySettings, client), new RollStats(emptySettings));
+        String pattern = "yyyy-MM-dd-HH-mm-ss-S";
+        RollRequest request = new RollRequest("tweets", 2, 1).indexTimestampPattern(pattern);
+        action.rollIndex(request);
+
+        // the node of the interrupted roll left the cluster, it is resumed before stale_after
+        Thread.sleep(20);
+        String interrupted = "tweets_" + DateTimeFormat.forPattern(pattern).print(System.currentTimeMillis());
+        client.admin().indices().create(new CreateIndexRequest(interrupted)).actionGet();
+        Map<String, Object> entry = new HashMap<String, Object>();
+        entry.put("step", RollJournal.CREATED);
+        entry.put("time", System.currentTimeMillis());
+        entry.put("created", interrupted);
+        entry.put("node", "left");
+        client.prepareIndex(RollPolicy.INDEX, RollJournal.TYPE, "tweets").setSource(entry).get();
+        Map<String, Object> result = action.rollIndex(request);
+        assertThat(result.get("created").toString(), equalTo(interrupted));
+        assertThat(result.get("resumed"), equalTo((Object) true));
+
+        // a running roll of a node in the cluster is waited for and its result is taken
+        entry.put("step", RollJournal.SWAPPED);
+        entry.put("time", System.currentTimeMillis());
+        entry.put("created", "tweets_running");
+        entry.put("node", localNode);
+        long version = client.prepareIndex(RollPolicy.INDEX, RollJournal.TYPE, "tweets").setSource(entry).get().
+                getVersion();
+        assertThat(waiting.getCount(), equalTo(1L));
+        PlainActionFuture<Map<String, Object>> future = PlainActionFuture.newFuture();
+        action.rollIndex(request, future);
+        assertThat(waiting.await(10, TimeUnit.SECONDS), equalTo(true));
+        // the waiting roll neither claimed the entry nor finished
+        assertThat(client.prepareGet(RollPolicy.INDEX, RollJournal.TYPE, "tweets").get().getVersion(),
+                equalTo(version));
+        assertThat(future.isDone(), equalTo(false));
+        entry.put("step", RollJournal.RETIRED);
+        client.prepareIndex(RollPolicy.INDEX, RollJournal.TYPE, "tweets").setSource(entry).get();
+        result = future.actionGet();
+        assertThat(result.get("created").toString(), equalTo("tweets_running"));
+        assertThat(result.get("coalesced"), equalTo((Object) true));
+        assertThat(action.getAliases(action.getFeed("tweets")).containsKey(interrupted), equalTo(true));
+    }
+
+    @Test public void sweeperShouldRetireInBatchesAndResume() throws Exception {
+        Settings emptySettings = ImmutableSettings.settingsBuilder().build();
+        RollSweeper sweeper = new RollSweeper(ImmutableSettings.settingsBuilder().
+                put("rollindex.sweeper.batch_size", 2).build(), client, null, new RollIdFilters(emptySettings, client));
+        RollAction action = new RollAction(emptySettings, client, new RestController(emptySettings), null,
+                new RollDemoter(emptySettings, client), sweeper);
+        String pattern = "yyyy-MM-dd-HH-mm-ss-S";
+        RollRequest request = new RollRequest("tweets", 1, 1).indexTimestampPattern(pattern).deleteAfterRoll(true).
+                closeAfterRoll(false);
+        String first = action.rollIndex(request).get("created").toString();
+        Thread.sleep(20);
+        Map<String, Object> result = action.rollIndex(request);
+        assertThat(result.get("deleted").toString(), equalTo(first));
+        waitForSweeper(sweeper);
+        assertThat(client.admin().indices().prepareExists(first).get().isExists(), equalTo(false));
+
+        // an index which was expired by an interrupted roll is retired by the next roll
+        String interrupted = result.get("created").toString();
+        action.addAlias(interrupted, action.getExpired("tweets"));
+        Thread.sleep(20);
+        result = action.rollIndex(request);
+        assertThat(result.get("deleted").toString(), equalTo(interrupted));
+        waitForSweeper(sweeper);
+        assertThat(client.admin().indices().prepareExists(interrupted).get().isExists(), equalTo(false));
+        assertThat(sweeper.progress().get("deleted"), equalTo((Object) 2L));
+
+        List<String> indices = new ArrayList<String>();
+        for (int i = 0; i < 3; i++) {
+            String index = "tweets_2014-01-0" + (i + 1) + "-00-00";
+            client.admin().indices().create(new CreateIndexRequest(index)).actionGet();
+            indices.add(index);
+        }
+        sweeper.retire("tweets", indices, Arrays.<String>asList());
+        waitForSweeper(sweeper);
+        assertThat(sweeper.progress().get("deleted"), equalTo((Object) 5L));
+        assertThat(client.admin().indices().prepareExists(indices.get(2)).get().isExists(), equalTo(false));
+
+        // a deleted index does not block the queue, a closed one is deleted and a missing expired alias is skipped
+        String closedIndex = "tweets_2014-02-01-00-00";
+        String unaliased = "tweets_2014-02-02-00-00";
+        client.admin().indices().create(new CreateIndexRequest(closedIndex)).actionGet();
+        client.admin().cluster().prepareHealth(closedIndex).setWaitForYellowStatus().get();
+        client.admin().indices().prepareClose(closedIndex).get();
+        client.admin().indices().create(new CreateIndexRequest(unaliased)).actionGet();
+        sweeper.retire("tweets", Arrays.asList("tweets_2014-01-31-00-00", closedIndex), Arrays.asList(unaliased));
+        waitForSweeper(sweeper);
+        assertThat(sweeper.progress().get("failures"), equalTo((Object) 0L));
+        assertThat(sweeper.progress().get("deleted"), equalTo((Object) 6L));
+        assertThat(sweeper.progress().get("closed"), equalTo((Object) 1L));
+        assertThat(client.admin().indices().prepareExists(closedIndex).get().isExists(), equalTo(false));
+        assertThat(client.admin().cluster().prepareState().get().getState().getMetaData().index(unaliased).state(),
+                equalTo(IndexMetaData.State.CLOSE));
+    }
+
+    @Test public void failedSweepShouldNotBlockTheQueue() throws Exception {
+        Settings emptySettings = ImmutableSettings.settingsBuilder().build();
+        final List<String> failing = new ArrayList<String>();
+        RollSweeper sweeper = new RollSweeper(ImmutableSettings.settingsBuilder().
+                put("rollindex.sweeper.batch_size", 1).build(), client, null, new RollIdFilters(emptySettings, client)) {
+            @Override void retire(Map<String, String> batch, MetaData metaData, ActionListener<Object> listener) {
+                if (failing.containsAll(batch.keySet()))
+                    listener.onFailure(new IllegalStateException("cannot retire " + batch.keySet()));
+                else
+                    super.retire(batch, metaData, listener);
+            }
+        };
+        for (String index : Arrays.asList("tweets_2014-01-01-00-00", "tweets_2014-01-02-00-00")) {
+            client.admin().indices().create(new CreateIndexRequest(index)).actionGet();
+        }
+        failing.add("tweets_2014-01-01-00-00");
+        sweeper.retire("tweets", Arrays.asList("tweets_2014-01-01-00-00", "tweets_2014-01-02-00-00"),
+                Arrays.<String>asList());
+        waitForFailures(sweeper, 1);
+        assertThat(sweeper.progress().get("pending").toString(),
+                equalTo("[tweets_2014-01-02-00-00, tweets_2014-01-01-00-00]"));
+        // without a thread pool the next retire call resumes with the index queued behind the failed one
+        sweeper.retire("tweets", Arrays.<String>asList(), Arrays.<String>asList());
+        waitForFailures(sweeper, 2);
+        assertThat(client.admin().indices().prepareExists("tweets_2014-01-02-00-00").get().isExists(), equalTo(false));
+        assertThat(sweeper.progress().get("pending").toString(), equalTo("[tweets_2014-01-01-00-00]"));
+        failing.clear();
+        sweeper.retire("tweets", Arrays.<String>asList(), Arrays.<String>asList());
+        waitForSweeper(sweeper);
+        assertThat(sweeper.progress().get("deleted"), equalTo((Object) 2L));
+        assertThat(sweeper.progress().get("failures"), equalTo((Object) 2L));
+    }
+
+    @Test public void rollBulkShouldRouteByTimestamp() throws Exception {
+        Settings emptySettings = ImmutableSettings.settingsBuilder().build();
+        RollAction action = new RollAction(emptySettings, client, new RestController(emptySettings));
+        RollBulkAction bulkAction = new RollBulkAction(emptySettings, client, new RestController(emptySettings), action);
+        String feed = action.rollIndex("tweets", 3, 3).get("created").toString();
+
+        long now = System.currentTimeMillis();
+        long old = now - 2 * 24 * 3600 * 1000L;
+        BulkRequest bulk = new BulkRequest().refresh(true).
+                add(new IndexRequest("tweets", "tweet", "1").source("{\"timestamp\":" + now + "}")).
+                add(new IndexRequest("tweets", "tweet", "2").source("{\"timestamp\":" + old + "}")).
+                add(new IndexRequest("tweets", "tweet", "3").source("{\"timestamp\":\"2000-01-01\"}")).
+                add(new IndexRequest("tweets", "tweet", "4").source("{\"text\":\"a\"}")).
+                add(new IndexRequest("tweets", "tweet", "5").source("{\"timestamp\":\"" + old + "\"}"));
+        PlainActionFuture<BulkResponse> future = PlainActionFuture.newFuture();
+        bulkAction.bulk(new RollBulkRequest("tweets", bulk).retention(TimeValue.timeValueHours(7 * 24)), future);
+        BulkItemResponse[] items = future.actionGet().getItems();
+
+        assertThat(items[0].getIndex(), equalTo(feed));
+        String bucket = items[1].getIndex();
+        assertThat(bucket, equalTo("tweets_" + action.createFormatter().print(old - old % (24 * 3600 * 1000L))));
+        assertThat(items[2].isFailed(), equalTo(true));
+        assertThat(items[2].getFailureMessage(), containsString("retention"));
+        assertThat(items[3].getIndex(), equalTo(feed));
+        assertThat(items[4].getIndex(), equalTo(bucket));
+        assertThat(action.getAliases(action.getSearch("tweets")).containsKey(bucket), equalTo(true));
+        assertThat(action.getAliases(action.getFeed("tweets")).containsKey(bucket), equalTo(false));
+        assertThat(client.prepareCount(action.getSearch("tweets")).get().getCount(), equalTo(4L));
+    }
+
+    @Test public void rollBulkShouldRejectDocumentsOfWriteBlockedIndices() throws Exception {
+        Settings emptySettings = ImmutableSettings.settingsBuilder().build();
+        RollAction action = new RollAction(emptySettings, client, new RestController(emptySettings));
+        RollBulkAction bulkAction = new RollBulkAction(emptySettings, client, new RestController(emptySettings), action);
+        String pattern = "yyyy-MM-dd-HH-mm-ss-S";
+        RollRequest request = new RollRequest("tweets", 3, 3).indexTimestampPattern(pattern);
+        String first = action.rollIndex(request).get("created").toString();
+        long late = System.currentTimeMillis();
+        Thread.sleep(200);
+        String second = action.rollIndex(request).get("created").toString();
+        // like the default demotion with readOnly
+        client.admin().indices().prepareUpdateSettings(first).setSettings(ImmutableSettings.settingsBuilder().
+                put("index.blocks.write", true)).get();
+
+        BulkRequest bulk = new BulkRequest().refresh(true).
+                add(new IndexRequest("tweets", "tweet", "1").source("{\"timestamp\":" + late + "}")).
+                add(new IndexRequest("tweets", "tweet", "2").source("{\"text\":\"a\"}"));
+        PlainActionFuture<BulkResponse> future = PlainActionFuture.newFuture();
+        bulkAction.bulk(new RollBulkRequest("tweets", bulk).indexTimestampPattern(pattern), future);
+        BulkItemResponse[] items = future.get().getItems();
+
+        assertThat(items[0].isFailed(), equalTo(true));
+        assertThat(items[0].getFailureMessage(), containsString(first + " is write blocked"));
+        assertThat(items[1].isFailed(), equalTo(false));
+        assertThat(items[1].getIndex(), equalTo(second));
+        assertThat(client.prepareCount(first).get().getCount(), equalTo(0L));
+    }
+
+    /**
+     * Sends a request with the specified parameters and without content through the handler.
+     */
+    static Map<String, Object> restCall(RestHandler handler, final Map<String, String> params) throws Exception {
+        final PlainActionFuture<RestResponse> future = PlainActionFuture.newFuture();
+        handler.handleRequest(new RestRequest() {
+            @Override public Method method() {
+                return Method.GET;
+            }
+
+            @Override public String uri() {
+                return rawPath();
+            }
+
+            @Override public String rawPath() {
+                return "/" + params.get("index") + "/_test";
+            }
+
+            @Override public boolean hasContent() {
+                return false;
+            }
+
+            @Override public boolean contentUnsafe() {
+                return false;
+            }
+
+            @Override public BytesReference content() {
+                return BytesArray.EMPTY;
+            }
+
+            @Override public String header(String name) {
+                return null;
+            }
+
+            @Override public Iterable<Map.Entry<String, String>> headers() {
+                return Collections.<String, String>emptyMap().entrySet();
+            }
+
+            @Override public boolean hasParam(String key) {
+                return params.containsKey(key);
+            }
+
+            @Override public String param(String key) {
+                return params.get(key);
+            }
+
+            @Override public String param(String key, String defaultValue) {
+                return params.containsKey(key) ? params.get(key) : defaultValue;
+            }
+
+            @Override public Map<String, String> params() {
+                return params;
+            }
+        }, new RestChannel() {
+            @Override public void sendResponse(RestResponse response) {
+                future.onResponse(response);
+            }
+        });
+        RestResponse response = future.actionGet();
+        Map<String, Object> map = JsonXContent.jsonXContent.createParser(response.content(), response.contentOffset(),
+                response.contentLength()).mapAndClose();
+        assertThat(map.toString(), response.status(), equalTo(RestStatus.OK));
+        return map;
+    }
+
+    Settings indexSettings(String index) {
+        return client.admin().cluster().prepareState().get().getState().metaData().index(index).settings();
+    }
+
+    boolean isOpen(String index) {
+        return client.admin().cluster().prepareState().get().getState().metaData().index(index).state()
+                == IndexMetaData.State.OPEN;
+    }
+
+    static void waitForSweeper(RollSweeper sweeper) throws InterruptedException {
+        for (int i = 0; i < 100 && !((List<?>) sweeper.progress().get("pending")).isEmpty(); i++) {
+            Thread.sleep(50);
+        }
+        assertThat(((List<?>) sweeper.progress().get("pending")).isEmpty(), equalTo(true));
+    }
+
+    static void waitForFailures(RollSweeper sweeper, long failures) throws InterruptedException {
+        for (int i = 0; i < 100 && !sweeper.progress().get("failures").equals(failures); i++) {
+            Thread.sleep(50);
+        }
+        assertThat(sweeper.progress().get("failures"), equalTo((Object) failures));
+    }
+
+    static boolean isDone(Object progress) {
+        return progress != null && "done".equals(((Map<?, ?>) progress).get("phase"));
+    }
+
+    void waitForAliases(RollAction action, String alias, int expected) throws InterruptedException {
+        for (int i = 0; i < 100 && action.getAliases(alias).size() != expected; i++) {
+            Thread.sleep(50);
+        }
+    }
 }
@@ -0,0 +1,216 @@
+package com.pannous.es.rollindex;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.node.internal.InternalNode;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Feeds via the _feed alias and searches via the _search alias of a small cluster while rolling
+ * it frequently. Latencies, failures and rejections are recorded separately for the requests
+ * started during a roll or shortly after its alias swap, so that a pause or an error spike caused
+ * by a roll is visible. Longer or heavier runs via system properties, e.g.
+ *
+ * mvn test -Dtest=RollLoadTest -Drollindex.load.seconds=300 -Drollindex.load.rollInterval=200
+ */
+public class RollLoadTest extends AbstractNodesTests {
+
+    private static final String PREFIX = "load";
+    // requests started this long after the end of a roll still count as around the swap
+    private static final long SWAP_MARGIN = 250;
+    private final int nodes = Integer.getInteger("rollindex.load.nodes", 3);
+    private final long seconds = Long.getLong("rollindex.load.seconds", 10);
+    private final long rollInterval = Long.getLong("rollindex.load.rollInterval", 1000);
+    private final int writers = Integer.getInteger("rollindex.load.writers", 2);
+    private final int searchers = Integer.getInteger("rollindex.load.searchers", 2);
+    private final int bulkSize = Integer.getInteger("rollindex.load.bulkSize", 100);
+    private final long maxStall = Long.getLong("rollindex.load.maxStall", 5000);
+    private Client client;
+    private RollAction action;
+    private volatile boolean rolling;
+    private volatile long lastSwap;
+
+    @BeforeClass public void createNodes() throws Exception {
+        // local transport and discovery, the nodes of this JVM only find each other
+        putDefaultSettings(ImmutableSettings.settingsBuilder().put("node.local", true).put("http.enabled", false));
+        for (int i = 1; i <= nodes; i++) {
+            startNode("node" + i);
+        }
+        client = client("node1");
+        client.admin().cluster().prepareHealth().setWaitForNodes(Integer.toString(nodes)).get();
+        client.admin().indices().delete(new DeleteIndexRequest("_all")).actionGet();
+        action = ((InternalNode) node("node1")).injector().getInstance(RollAction.class);
+    }
+
+    @AfterClass public void closeNodes() {
+        client.close();
+        closeAllNodes();
+    }
+
+    /**
+     * The latencies and the failed and rejected requests of one kind, started in steady state or
+     * around a swap.
+     */
+    static class Load {
+
+        final RollStats.Histogram steady = new RollStats.Histogram();
+        final RollStats.Histogram aroundSwap = new RollStats.Histogram();
+        final AtomicLong failed = new AtomicLong();
+        final AtomicLong rejected = new AtomicLong();
+        final AtomicReference<String> lastError = new AtomicReference<String>();
+
+        void record(boolean around, long millis) {
+            (around ? aroundSwap : steady).record(millis);
+        }
+
+        void failed(Throwable t) {
+            if (ExceptionsHelper.unwrapCause(t) instanceof EsRejectedExecutionException)
+                rejected.incrementAndGet();
+            else
+                failed.incrementAndGet();
+            lastError.set(ExceptionsHelper.detailedMessage(t));
+        }
+
+        void failed(String message) {
+            if (message != null && message.contains("EsRejectedExecutionException"))
+                rejected.incrementAndGet();
+            else
+                failed.incrementAndGet();
+            lastError.set(message);
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<String, Object>();
+            map.put("steady", steady.toMap());
+            map.put("aroundSwap", aroundSwap.toMap());
+            map.put("failed", failed.get());
+            map.put("rejected", rejected.get());
+            map.put("lastError", lastError.get());
+            return map;
+        }
+    }
+
+    @Test public void rollsShouldNotStallFeedingAndSearching() throws Exception {
+        // the standby index is created and allocated before the roll which moves the feed alias to it
+        final RollRequest request = new RollRequest(PREFIX, 4, 3).indexNaming("sequence").closeAfterRoll(false).
+                standby(true).indexSettings(action.toSettings(
+                action.createIndexSettings(2, 1, "1s").string()));
+        action.rollIndex(request);
+
+        final long end = System.currentTimeMillis() + seconds * 1000;
+        final Load writes = new Load();
+        final Load searches = new Load();
+        final AtomicLong rolls = new AtomicLong();
+        final AtomicReference<Throwable> rollError = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < writers; i++) {
+            threads.add(new Thread("load-writer-" + i) {
+                @Override public void run() {
+                    long id = 0;
+                    while (System.currentTimeMillis() < end) {
+                        BulkRequest bulk = new BulkRequest();
+                        for (int j = 0; j < bulkSize; j++) {
+                            bulk.add(new IndexRequest(action.getFeed(PREFIX), "doc").
+                                    source("{\"writer\":\"" + getName() + "\",\"seq\":" + id++ + "}"));
+                        }
+                        boolean around = isAroundSwap();
+                        long started = System.nanoTime();
+                        try {
+                            BulkResponse response = client.bulk(bulk).actionGet();
+                            writes.record(around, (System.nanoTime() - started) / 1000000);
+                            for (BulkItemResponse item : response.getItems()) {
+                                if (item.isFailed())
+                                    writes.failed(item.getFailureMessage());
+                            }
+                        } catch (Throwable t) {
+                            writes.failed(t);
+                        }
+                    }
+                }
+            });
+        }
+        for (int i = 0; i < searchers; i++) {
+            threads.add(new Thread("load-searcher-" + i) {
+                @Override public void run() {
+                    while (System.currentTimeMillis() < end) {
+                        boolean around = isAroundSwap();
+                        long started = System.nanoTime();
+                        try {
+                            SearchResponse response = client.search(new SearchRequest(action.getSearch(PREFIX)).
+                                    source("{\"size\":10}")).actionGet();
+                            searches.record(around, (System.nanoTime() - started) / 1000000);
+                            if (response.getFailedShards() > 0)
+                                searches.failed(response.getShardFailures()[0].reason());
+                        } catch (Throwable t) {
+                            searches.failed(t);
+                        }
+                    }
+                }
+            });
+        }
+        threads.add(new Thread("load-roller") {
+            @Override public void run() {
+                try {
+                    while (System.currentTimeMillis() + rollInterval < end) {
+                        Thread.sleep(rollInterval);
+                        rolling = true;
+                        try {
+                            action.rollIndex(request);
+                        } finally {
+                            lastSwap = System.currentTimeMillis();
+                            rolling = false;
+                        }
+                        rolls.incrementAndGet();
+                    }
+                } catch (Throwable t) {
+                    rollError.set(t);
+                }
+            }
+        });
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        logger.info("{} rolls in {}s, writes {}, searches {}, roll phases {}", rolls.get(), seconds,
+                writes.toMap(), searches.toMap(), action.stats().toMap(Arrays.asList(PREFIX)));
+        assertThat(rollError.get(), equalTo(null));
+        assertThat(rolls.get(), greaterThan(1L));
+        assertThat(writes.aroundSwap.count(), greaterThan(0L));
+        assertThat(searches.aroundSwap.count(), greaterThan(0L));
+        assertThat(writes.toMap().toString(), writes.failed.get() + writes.rejected.get(), equalTo(0L));
+        assertThat(searches.toMap().toString(), searches.failed.get() + searches.rejected.get(), equalTo(0L));
+        assertThat(writes.toMap().toString(), writes.aroundSwap.percentile(100), lessThan(maxStall));
+        assertThat(searches.toMap().toString(), searches.aroundSwap.percentile(100), lessThan(maxStall));
+    }
+
+    boolean isAroundSwap() {
+        return rolling || System.currentTimeMillis() - lastSwap < SWAP_MARGIN;
+    }
+}
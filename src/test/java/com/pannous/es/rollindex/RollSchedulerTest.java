@@ -0,0 +1,129 @@
+package com.pannous.es.rollindex;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+
+import java.util.Map;
+
+import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.support.PlainActionFuture;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.common.inject.Injector;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.node.internal.InternalNode;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class RollSchedulerTest extends AbstractNodesTests {
+
+    private Client client;
+    private RollScheduler scheduler;
+
+    @BeforeClass public void createNodes() throws Exception {
+        // the test triggers the checks itself
+        startNode("node1", ImmutableSettings.settingsBuilder().put("rollindex.scheduler.enabled", false));
+        client = client("node1");
+        scheduler = ((InternalNode) node("node1")).injector().getInstance(RollScheduler.class);
+    }
+
+    @AfterClass public void closeNodes() {
+        client.close();
+        closeAllNodes();
+    }
+
+    @BeforeMethod
+    public void deleteAll() {
+        client.admin().indices().delete(new DeleteIndexRequest("_all")).actionGet();
+    }
+
+    @Test public void duePolicyShouldRollOnce() throws Exception {
+        Settings emptySettings = ImmutableSettings.settingsBuilder().build();
+        RollAction action = new RollAction(emptySettings, client, new RestController(emptySettings));
+        RollPolicyAction policyAction = new RollPolicyAction(emptySettings, client, new RestController(emptySettings));
+
+        PlainActionFuture<Map<String, Object>> future = PlainActionFuture.newFuture();
+        policyAction.putPolicy(new RollPolicy("tweets").indexPrefix("tweets").interval(TimeValue.timeValueHours(1)).
+                rollIndices(2).searchIndices(2), future);
+        future.actionGet();
+
+        scheduler.runDuePolicies();
+        waitForAliases(action, action.getFeed("tweets"), 1);
+        assertThat(action.getAliases(action.getRoll("tweets")).size(), equalTo(1));
+
+        future = PlainActionFuture.newFuture();
+        policyAction.getPolicy("tweets", future);
+        Map<?, ?> policy = (Map<?, ?>) future.actionGet().get("tweets");
+        assertThat(((Number) policy.get("lastRoll")).longValue(), greaterThan(0L));
+
+        // the interval did not pass yet
+        scheduler.runDuePolicies();
+        Thread.sleep(500);
+        assertThat(action.getAliases(action.getRoll("tweets")).size(), equalTo(1));
+    }
+
+    @Test public void brokenPolicyShouldNotStopOthers() throws Exception {
+        Settings emptySettings = ImmutableSettings.settingsBuilder().build();
+        RollAction action = new RollAction(emptySettings, client, new RestController(emptySettings));
+        RollPolicyAction policyAction = new RollPolicyAction(emptySettings, client, new RestController(emptySettings));
+
+        client.prepareIndex(RollPolicy.INDEX, RollPolicy.TYPE, "broken").setSource("{\"interval\":\"often\"}").
+                setRefresh(true).get();
+        PlainActionFuture<Map<String, Object>> future = PlainActionFuture.newFuture();
+        policyAction.putPolicy(new RollPolicy("tweets").indexPrefix("tweets").interval(TimeValue.timeValueHours(1)).
+                rollIndices(2).searchIndices(2), future);
+        future.actionGet();
+
+        scheduler.runDuePolicies();
+        waitForAliases(action, action.getFeed("tweets"), 1);
+        assertThat(action.getAliases(action.getRoll("tweets")).size(), equalTo(1));
+    }
+
+    @Test public void racingSchedulersShouldRollOnce() throws Exception {
+        Settings emptySettings = ImmutableSettings.settingsBuilder().build();
+        RollAction action = new RollAction(emptySettings, client, new RestController(emptySettings));
+        RollPolicyAction policyAction = new RollPolicyAction(emptySettings, client, new RestController(emptySettings));
+        PlainActionFuture<Map<String, Object>> future = PlainActionFuture.newFuture();
+        policyAction.putPolicy(new RollPolicy("tweets").indexPrefix("tweets").interval(TimeValue.timeValueHours(1)).
+                rollIndices(2).searchIndices(2), future);
+        future.actionGet();
+
+        // like an old master which read the policy before the failover and the new master
+        Injector injector = ((InternalNode) node("node1")).injector();
+        final RollScheduler other = new RollScheduler(ImmutableSettings.settingsBuilder().
+                put("rollindex.scheduler.enabled", false).build(), client, injector.getInstance(ClusterService.class),
+                injector.getInstance(ThreadPool.class), injector.getInstance(RollAction.class));
+        GetResponse response = client.prepareGet(RollPolicy.INDEX, RollPolicy.TYPE, "tweets").get();
+        final long now = System.currentTimeMillis();
+        final RollPolicy first = RollPolicy.parse("tweets", response.getSourceAsMap()).version(response.getVersion());
+        final RollPolicy second = RollPolicy.parse("tweets", response.getSourceAsMap()).version(response.getVersion());
+        Thread thread = new Thread() {
+            @Override public void run() {
+                other.claimAndRoll(second, now);
+            }
+        };
+        thread.start();
+        scheduler.claimAndRoll(first, now);
+        thread.join();
+
+        waitForAliases(action, action.getFeed("tweets"), 1);
+        Thread.sleep(500);
+        assertThat(action.getAliases(action.getRoll("tweets")).size(), equalTo(1));
+        assertThat(client.prepareGet(RollPolicy.INDEX, RollPolicy.TYPE, "tweets").get().getVersion(),
+                equalTo(response.getVersion() + 1));
+    }
+
+    void waitForAliases(RollAction action, String alias, int expected) throws InterruptedException {
+        for (int i = 0; i < 100 && action.getAliases(alias).size() != expected; i++) {
+            Thread.sleep(50);
+        }
+    }
+}